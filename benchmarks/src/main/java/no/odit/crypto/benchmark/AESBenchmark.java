@@ -0,0 +1,91 @@
+package no.odit.crypto.benchmark;
+
+import no.odit.crypto.util.AES;
+import no.odit.crypto.util.ChunkedAES;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File encryption throughput, divide the file size by the average time for bytes per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AESBenchmark {
+
+    private static final String ALGORITHM = "AES/CBC/PKCS5Padding";
+
+    @Param({"1048576", "67108864", "536870912"})
+    public long fileSize;
+
+    @Param({"65536", "1048576", "8388608"})
+    public int bufferSize;
+
+    private SecretKey secretKey;
+    private IvParameterSpec iv;
+    private File plainFile;
+    private File encryptedFile;
+    private File chunkedFile;
+    private File outputFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        AES.BUFFER_SIZE = bufferSize;
+        secretKey = AES.generateKey(256);
+        iv = AES.generateIv();
+        plainFile = BenchmarkFiles.createRandomFile("plain", fileSize);
+        encryptedFile = BenchmarkFiles.createTempFile("encrypted");
+        chunkedFile = BenchmarkFiles.createTempFile("chunked");
+        outputFile = BenchmarkFiles.createTempFile("output");
+        AES.encryptFile(ALGORITHM, secretKey, iv, plainFile, encryptedFile);
+        ChunkedAES.encryptFile(secretKey, iv, ChunkedAES.CHUNK_SIZE, plainFile, chunkedFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        plainFile.delete();
+        encryptedFile.delete();
+        chunkedFile.delete();
+        outputFile.delete();
+    }
+
+    @Benchmark
+    public void encryptFile() throws Exception {
+        AES.encryptFile(ALGORITHM, secretKey, iv, plainFile, outputFile);
+    }
+
+    @Benchmark
+    public void decryptFile() throws Exception {
+        AES.decryptFile(ALGORITHM, secretKey, iv, encryptedFile, outputFile);
+    }
+
+    @Benchmark
+    public void encryptFileChunked() throws Exception {
+        ChunkedAES.encryptFile(secretKey, iv, ChunkedAES.CHUNK_SIZE, plainFile, outputFile);
+    }
+
+    @Benchmark
+    public void decryptFileChunked() throws Exception {
+        ChunkedAES.decryptFile(secretKey, iv, ChunkedAES.CHUNK_SIZE, chunkedFile, outputFile);
+    }
+
+}
@@ -0,0 +1,29 @@
+package no.odit.crypto.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+class BenchmarkFiles {
+
+    static File createRandomFile(String prefix, long size) throws Exception {
+        File file = File.createTempFile(prefix, ".bin");
+        file.deleteOnExit();
+        byte[] buffer = new byte[1024 * 1024];
+        Random random = new Random(size);
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                outputStream.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    static File createTempFile(String prefix) throws Exception {
+        File file = File.createTempFile(prefix, ".tmp");
+        file.deleteOnExit();
+        return file;
+    }
+
+}
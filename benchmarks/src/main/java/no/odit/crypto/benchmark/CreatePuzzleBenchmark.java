@@ -0,0 +1,33 @@
+package no.odit.crypto.benchmark;
+
+import no.odit.crypto.model.PuzzleDetails;
+import no.odit.crypto.util.TimeLockPuzzle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to create a puzzle with a single squaring, which is dominated by the prime search.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CreatePuzzleBenchmark {
+
+    private static final String SECRET = "NJ7ZOr1GXqGCCq1Q8P6w5yNLb1C0lUzOVB2lRDv3pXs=";
+
+    @Benchmark
+    public PuzzleDetails createPuzzle() {
+        return TimeLockPuzzle.createPuzzle(SECRET, BigInteger.ONE, BigInteger.ONE);
+    }
+
+}
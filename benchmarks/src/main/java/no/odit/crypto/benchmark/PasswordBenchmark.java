@@ -0,0 +1,29 @@
+package no.odit.crypto.benchmark;
+
+import no.odit.crypto.service.VaultService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The two-stage bcrypt hashing takes seconds per call, so it is measured as single shots.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class PasswordBenchmark {
+
+    @Benchmark
+    public String hashPassword() {
+        return VaultService.hashPassword("Password123", "benchmark");
+    }
+
+}
@@ -0,0 +1,52 @@
+package no.odit.crypto.benchmark;
+
+import no.odit.crypto.model.PuzzleDetails;
+import no.odit.crypto.type.SolverType;
+import no.odit.crypto.util.TimeLockPuzzle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TimeLockPuzzleBenchmark {
+
+    private static final int SQUARINGS = 10000;
+    private static final String SECRET = "NJ7ZOr1GXqGCCq1Q8P6w5yNLb1C0lUzOVB2lRDv3pXs=";
+
+    @Param({"BIG_INTEGER", "MONTGOMERY"})
+    public SolverType solverType;
+
+    private PuzzleDetails puzzle;
+
+    @Setup
+    public void setUp() {
+        puzzle = TimeLockPuzzle.createPuzzle(SECRET, BigInteger.ONE, BigInteger.valueOf(SQUARINGS));
+    }
+
+    /**
+     * Squarings per second of the solver.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(SQUARINGS)
+    public String solvePuzzle() {
+        return TimeLockPuzzle.solvePuzzle(puzzle.getN(), puzzle.getT(), puzzle.getZ(), solverType);
+    }
+
+}
@@ -0,0 +1,111 @@
+package no.odit.crypto.benchmark;
+
+import net.lingala.zip4j.ZipFile;
+import no.odit.crypto.model.EncryptionDetails;
+import no.odit.crypto.type.PayloadFormat;
+import no.odit.crypto.util.AES;
+import no.odit.crypto.util.ChunkedAES;
+import no.odit.crypto.util.VaultUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading the zip4j vault container, including the payload encryption.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VaultBenchmark {
+
+    private static final String PASSWORD = "$2a$16$benchmarkbenchmarkbenchmarkbenchmarkbenchmarkbench";
+
+    @Param({"1048576", "67108864"})
+    public long fileSize;
+
+    private SecretKey secretKey;
+    private IvParameterSpec iv;
+    private EncryptionDetails details;
+    private File plainFile;
+    private File containerFile;
+    private File readFile;
+    private File outputFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        secretKey = AES.generateKey(256);
+        iv = AES.generateIv();
+        details = EncryptionDetails.builder()
+                .fileName("benchmark")
+                .fileExtension("bin")
+                .date(LocalDate.now())
+                .time(LocalTime.now())
+                .ivParameterSpec(AES.encodeIvParameterSpec(iv))
+                .payloadFormat(PayloadFormat.CHUNKED_GCM)
+                .chunkSize(ChunkedAES.CHUNK_SIZE)
+                .n(BigInteger.ONE.shiftLeft(2047))
+                .t(BigInteger.ONE)
+                .z(BigInteger.ONE.shiftLeft(2047))
+                .build();
+        plainFile = BenchmarkFiles.createRandomFile("plain", fileSize);
+        containerFile = BenchmarkFiles.createTempFile("container");
+        readFile = BenchmarkFiles.createTempFile("read");
+        outputFile = BenchmarkFiles.createTempFile("output");
+        createVault(readFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        plainFile.delete();
+        containerFile.delete();
+        readFile.delete();
+        outputFile.delete();
+    }
+
+    @Benchmark
+    public void createVault() throws Exception {
+        createVault(containerFile);
+    }
+
+    @Benchmark
+    public void extractVault() throws Exception {
+        try (ZipFile zipFile = new ZipFile(readFile, PASSWORD.toCharArray());
+             OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(outputFile), VaultUtil.BUFFER_SIZE)) {
+            VaultUtil.decryptPayload(zipFile, VaultUtil.readDetails(readFile, PASSWORD), secretKey, outputStream);
+        }
+    }
+
+    private void createVault(File target) throws Exception {
+        target.delete();
+        try (InputStream inputStream = new FileInputStream(plainFile)) {
+            VaultUtil.createVault(target, PASSWORD, details, secretKey, iv, inputStream, fileSize);
+        }
+    }
+
+}
@@ -1,27 +1,34 @@
 package no.odit.crypto;
 
-import at.favre.lib.crypto.bcrypt.BCrypt;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import net.lingala.zip4j.ZipFile;
-import net.lingala.zip4j.model.ZipParameters;
-import net.lingala.zip4j.model.enums.AesKeyStrength;
-import net.lingala.zip4j.model.enums.EncryptionMethod;
-import net.lingala.zip4j.util.FileUtils;
 import no.odit.crypto.model.EncryptionDetails;
-import no.odit.crypto.model.PuzzleDetails;
+import no.odit.crypto.model.HostProfile;
+import no.odit.crypto.service.BatchService;
+import no.odit.crypto.service.CatalogService;
+import no.odit.crypto.service.DaemonService;
+import no.odit.crypto.service.InPlaceService;
+import no.odit.crypto.service.KeyringService;
+import no.odit.crypto.service.PipeService;
+import no.odit.crypto.service.RekeyService;
+import no.odit.crypto.service.SchedulerService;
+import no.odit.crypto.service.VaultService;
+import no.odit.crypto.service.VerifyService;
+import no.odit.crypto.service.WarmUpService;
 import no.odit.crypto.type.ActionType;
-import no.odit.crypto.util.AES;
+import no.odit.crypto.type.JournalMode;
+import no.odit.crypto.util.CalibrationUtil;
 import no.odit.crypto.util.InputUtil;
-import no.odit.crypto.util.TimeLockPuzzle;
+import no.odit.crypto.util.MetricsUtil;
+import no.odit.crypto.util.VaultUtil;
 
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.time.LocalDate;
-import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
@@ -29,26 +36,39 @@ import java.util.Scanner;
 public class CryptoApp {
 
     public static String APPLICATION_ID = "fWyDzpN64CRQrDU5";
-    private static String AES_ALGORITHM = "AES/CBC/PKCS5Padding";
-    private static String DETAILS_FILE_NAME = "capsule.json";
     public static Scanner scanner = new Scanner(System.in);
-
-    private static List<File> deleteQueue = new ArrayList<>();
+    private static final String PASSPHRASE_VARIABLE = "CRYPTO_PASSPHRASE";
+    private static final String PIN_CODE_VARIABLE = "CRYPTO_PIN";
 
     public static void main(String... args) {
 
-        try {
-
-            long startTime;
-            long endTime;
-            long timeUsed;
+        if (args.length == 1 && args[0].equals("warm-up")) {
+            runWarmUp();
+            return;
+        }
+        if (args.length > 1 && args[0].equals("verify")) {
+            runVerify(args);
+            return;
+        }
+        if (args.length > 0) {
+            runPipe(args);
+            return;
+        }
 
-            ObjectMapper objectMapper = new ObjectMapper();
-            objectMapper.findAndRegisterModules();
+        try {
 
             System.out.println("Choose an action:");
             System.out.println("1 - Encrypt a file");
             System.out.println("2 - Decrypt a file");
+            System.out.println("3 - Calibrate host");
+            System.out.println("4 - Solve many vaults");
+            System.out.println("5 - Encrypt many files");
+            System.out.println("6 - Encrypt many files into a keyring");
+            System.out.println("7 - Change passphrase, PIN code or lock time");
+            System.out.println("8 - Start daemon");
+            System.out.println("9 - Catalog vaults");
+            System.out.println("10 - Verify vaults");
+            System.out.println("11 - Encrypt a file in place");
             System.out.print("Enter action: ");
             Integer actionInput = Integer.parseInt(scanner.nextLine());
             ActionType actionType = ActionType.values()[actionInput - 1];
@@ -56,163 +76,214 @@ public class CryptoApp {
             if (actionType == ActionType.ENCRYPT_FILE) {
 
                 File contentFile = InputUtil.inputFile("file name");
-                String fileName = FileUtils.getFileNameWithoutExtension(contentFile.getName());
-                String fileExtension = FileUtils.getFileExtension(contentFile);
                 BigInteger duration = InputUtil.inputNumber("seconds", 2);
                 String passphrase = InputUtil.inputSecretText("passphrase", 6);
                 BigInteger pinCode = InputUtil.inputSecretNumber("PIN code", 4);
-                String password = hashPassword(passphrase, fileName);
-
-                System.out.println("Preparing files...");
-                File encryptedFile = new File(fileName + ".enc");
-                File containerFile = new File(fileName + ".vault");
-
-                System.out.println("Generating keys...");
-                startTime = System.currentTimeMillis();
-                IvParameterSpec iv = AES.generateIv();
-                String encodedIv = AES.encodeIvParameterSpec(iv);
-                SecretKey secretKey = AES.generateKey(256);
-                String encodedSecretKey = AES.encodeSecretKey(secretKey);
-                endTime = System.currentTimeMillis();
-                timeUsed = endTime - startTime;
-                System.out.println("Generated keys in " + timeUsed + "ms.");
-
-                System.out.println("Creating puzzle...");
-                startTime = System.currentTimeMillis();
-                PuzzleDetails puzzle = TimeLockPuzzle.createPuzzle(encodedSecretKey, duration);
-                puzzle.setZ(puzzle.getZ().add(pinCode));
-                endTime = System.currentTimeMillis();
-                timeUsed = endTime - startTime;
-                System.out.println("Puzzle created in " + timeUsed + "ms.");
-
-                System.out.println("Encrypting file...");
-                startTime = System.currentTimeMillis();
-                if (encryptedFile.exists()) encryptedFile.delete();
-                AES.encryptFile(AES_ALGORITHM, secretKey, iv, contentFile, encryptedFile);
-                forceDeleteFile(contentFile);
-                endTime = System.currentTimeMillis();
-                timeUsed = endTime - startTime;
-                System.out.println("Encrypted file in " + timeUsed + "ms.");
-
-                System.out.println("Creating details file...");
-                File detailsFile = new File(DETAILS_FILE_NAME);
-                if (detailsFile.exists()) detailsFile.delete();
-                else detailsFile.createNewFile();
-                EncryptionDetails details = EncryptionDetails.builder()
-                        .fileName(fileName)
-                        .fileExtension(fileExtension)
-                        .date(LocalDate.now())
-                        .time(LocalTime.now())
-                        .ivParameterSpec(encodedIv)
-                        .n(puzzle.getN())
-                        .t(puzzle.getT())
-                        .z(puzzle.getZ())
-                        .build();
-                details.setIvParameterSpec(encodedIv);
-                details.setN(puzzle.getN());
-                details.setT(puzzle.getT());
-                details.setZ(puzzle.getZ());
-                objectMapper.writeValue(detailsFile, details);
-
-                System.out.println("Compressing files...");
-                startTime = System.currentTimeMillis();
-                List<File> files = List.of(encryptedFile, detailsFile);
-                if (containerFile.exists()) containerFile.delete();
-                compressFiles(files, containerFile, password);
-                forceDeleteFile(detailsFile);
-                forceDeleteFile(encryptedFile);
-                endTime = System.currentTimeMillis();
-                timeUsed = endTime - startTime;
-                System.out.println("Compressed files in " + timeUsed + "ms.");
+                VaultService.encryptFile(contentFile, duration, passphrase, pinCode);
 
                 System.out.println("Completed encryption task!");
 
             } else if (actionType == ActionType.DECRYPT_FILE) {
 
                 File containerFile = InputUtil.inputFile("file name");
-                String fileName = FileUtils.getFileNameWithoutExtension(containerFile.getName());
+                String keyName = VaultService.readKeyName(containerFile);
                 String passphrase = InputUtil.inputSecretText("passphrase", 6);
                 BigInteger pinCode = InputUtil.inputSecretNumber("PIN code", 4);
-                String password = hashPassword(passphrase, fileName);
-
-                System.out.println("Reading details...");
-                File detailsFile = extractFile(DETAILS_FILE_NAME, containerFile, password);
-                EncryptionDetails details = objectMapper.readValue(detailsFile, EncryptionDetails.class);
-                forceDeleteFile(detailsFile);
-                File contentFile = new File(details.getFileName() + "." + details.getFileExtension());
-                IvParameterSpec iv = AES.decodeIvParameterSpec(details.getIvParameterSpec());
-
-                System.out.println("Solving puzzle... (this may take a while!)");
-                startTime = System.currentTimeMillis();
-                details.setZ(details.getZ().subtract(pinCode));
-                String secret = TimeLockPuzzle.solvePuzzle(details.getN(), details.getT(), details.getZ());
-                endTime = System.currentTimeMillis();
-                timeUsed = endTime - startTime;
-                System.out.println("Solved puzzle in " + (timeUsed / 1000) + "s.");
-
-                System.out.println("Parsing secret key...");
-                SecretKey secretKey = AES.decodeSecretKey(secret);
-
-                System.out.println("Decrypting file...");
-                startTime = System.currentTimeMillis();
-                File encryptedFile = extractFile(fileName + ".enc", containerFile, password);
-                forceDeleteFile(containerFile);
-                AES.decryptFile(AES_ALGORITHM, secretKey, iv, encryptedFile, contentFile);
-                forceDeleteFile(encryptedFile);
-                endTime = System.currentTimeMillis();
-                timeUsed = endTime - startTime;
-                System.out.println("Decrypted file in " + timeUsed + "ms.");
+                String password = VaultService.hashPassword(passphrase, keyName);
+
+                EncryptionDetails details = VaultService.readDetails(containerFile, password);
+                while (!VaultService.verifyPin(details, password, pinCode)) {
+                    System.out.println("Wrong PIN code!");
+                    if (!InputUtil.inputRetry()) throw new Exception("Wrong PIN code!");
+                    pinCode = InputUtil.inputSecretNumber("PIN code", 4);
+                }
+                VaultService.decryptFile(containerFile, password, details, pinCode, new File(System.getProperty("user.dir")));
 
                 System.out.println("Completed decryption task!");
+
+            } else if (actionType == ActionType.CALIBRATE_HOST) {
+
+                HostProfile hostProfile = CalibrationUtil.calibrateHost();
+                System.out.println("Saved profile for host " + hostProfile.getMachineId() + ".");
+
+            } else if (actionType == ActionType.SCHEDULE_VAULTS) {
+
+                List<File> containerFiles = InputUtil.inputFiles("vaults or directories", VaultService.VAULT_FILE_EXTENSION);
+                String passphrase = InputUtil.inputSecretText("passphrase", 6);
+                BigInteger pinCode = InputUtil.inputSecretNumber("PIN code", 4);
+                SchedulerService.solveVaults(containerFiles, passphrase, pinCode);
+
+                System.out.println("Completed scheduled tasks!");
+
+            } else if (actionType == ActionType.ENCRYPT_FILES) {
+
+                List<File> contentFiles = InputUtil.inputFiles("files or directories", null, true);
+                contentFiles.removeIf(file -> file.getName().endsWith(VaultService.VAULT_FILE_EXTENSION));
+                BigInteger duration = InputUtil.inputNumber("seconds", 2);
+                String passphrase = InputUtil.inputSecretText("passphrase", 6);
+                BigInteger pinCode = InputUtil.inputSecretNumber("PIN code", 4);
+                boolean sharedPuzzle = InputUtil.inputConfirm("Share one puzzle between all files?");
+                BatchService.encryptFiles(contentFiles, duration, passphrase, pinCode, sharedPuzzle);
+
+                System.out.println("Completed batch encryption task!");
+
+            } else if (actionType == ActionType.CREATE_KEYRING) {
+
+                List<File> contentFiles = InputUtil.inputFiles("files or directories", null, true);
+                contentFiles.removeIf(file -> file.getName().endsWith(VaultService.VAULT_FILE_EXTENSION));
+                String keyringName = InputUtil.inputText("keyring name", 1);
+                BigInteger duration = InputUtil.inputNumber("seconds", 2);
+                String passphrase = InputUtil.inputSecretText("passphrase", 6);
+                BigInteger pinCode = InputUtil.inputSecretNumber("PIN code", 4);
+                KeyringService.createKeyring(contentFiles, keyringName, duration, passphrase, pinCode);
+
+                System.out.println("Completed keyring encryption task!");
+
+            } else if (actionType == ActionType.REKEY_VAULT) {
+
+                File containerFile = InputUtil.inputFile("file name");
+                String keyName = VaultService.readKeyName(containerFile);
+                String passphrase = InputUtil.inputSecretText("passphrase", 6);
+                BigInteger pinCode = InputUtil.inputSecretNumber("PIN code", 4);
+                String password = VaultService.hashPassword(passphrase, keyName);
+
+                EncryptionDetails details = VaultService.readDetails(containerFile, password);
+                while (!VaultService.verifyPin(details, password, pinCode)) {
+                    System.out.println("Wrong PIN code!");
+                    if (!InputUtil.inputRetry()) throw new Exception("Wrong PIN code!");
+                    pinCode = InputUtil.inputSecretNumber("PIN code", 4);
+                }
+                String newPassword = password;
+                if (InputUtil.inputConfirm("Change the passphrase?")) {
+                    newPassword = VaultService.hashPassword(InputUtil.inputSecretText("new passphrase", 6), keyName);
+                }
+                BigInteger newPinCode = pinCode;
+                if (InputUtil.inputConfirm("Change the PIN code?")) {
+                    newPinCode = InputUtil.inputSecretNumber("new PIN code", 4);
+                }
+                BigInteger extraDuration = InputUtil.inputNumber("seconds to add", 0);
+                RekeyService.rekeyVault(containerFile, password, details, pinCode, newPassword, newPinCode, extraDuration);
+
+                System.out.println("Completed rekey task!");
+
+            } else if (actionType == ActionType.START_DAEMON) {
+
+                DaemonService.start();
+
+                System.out.println("Completed daemon task!");
+
+            } else if (actionType == ActionType.CATALOG_VAULTS) {
+
+                List<File> containerFiles = InputUtil.inputFiles("vaults or directories to scan", VaultService.VAULT_FILE_EXTENSION, true);
+                if (!containerFiles.isEmpty()) CatalogService.scanVaults(containerFiles);
+                BigInteger maxSeconds = InputUtil.inputNumber("seconds until unlock (0 for all)", 0);
+                CatalogService.printVaults(maxSeconds.longValueExact());
+
+                System.out.println("Completed catalog task!");
+
+            } else if (actionType == ActionType.VERIFY_VAULTS) {
+
+                List<File> containerFiles = InputUtil.inputFiles("vaults or directories", VaultService.VAULT_FILE_EXTENSION, true);
+                VerifyService.verifyVaults(containerFiles);
+
+                System.out.println("Completed verification task!");
+
+            } else if (actionType == ActionType.ENCRYPT_IN_PLACE) {
+
+                File contentFile = InputUtil.inputFile("file name");
+                JournalMode interruptedMode = InPlaceService.getInterruptedMode(contentFile);
+                if (interruptedMode != null) {
+                    System.out.println("The in-place " + (interruptedMode == JournalMode.ENCRYPTION ? "encryption" : "decryption") + " of " + contentFile.getName() + " was interrupted.");
+                    String passphrase = InputUtil.inputSecretText("passphrase", 6);
+                    boolean rollBack = interruptedMode == JournalMode.ENCRYPTION && !InputUtil.inputConfirm("Resume the encryption? Otherwise it is rolled back.");
+                    InPlaceService.resumeFile(contentFile, passphrase, rollBack);
+                } else {
+                    BigInteger duration = InputUtil.inputNumber("seconds", 2);
+                    String passphrase = InputUtil.inputSecretText("passphrase", 6);
+                    BigInteger pinCode = InputUtil.inputSecretNumber("PIN code", 4);
+                    InPlaceService.encryptFile(contentFile, duration, passphrase, pinCode);
+                }
+
+                System.out.println("Completed in-place encryption task!");
             }
         } catch (Exception exception) {
             exception.printStackTrace();
         } finally {
-            deleteQueue.forEach(file -> file.delete());
+            VaultService.deleteQueuedFiles();
+            MetricsUtil.exportSummary();
         }
     }
 
-    private static void forceDeleteFile(File file) throws Exception {
+    /**
+     * Runs a short encryption and decryption without prompts, as the training run that decides
+     * which classes go into the class data sharing archive.
+     */
+    private static void runWarmUp() {
+        boolean success = false;
         try {
-            deleteQueue.add(file);
-            file.delete();
+            WarmUpService.warmUp();
+            System.out.println("Completed warm-up task!");
+            success = true;
         } catch (Exception exception) {
-            Files.setAttribute(file.toPath(), "dos:hidden", true);
-            throw exception;
+            exception.printStackTrace();
+        } finally {
+            VaultService.deleteQueuedFiles();
         }
+        System.exit(success ? 0 : 1);
     }
 
-    private static String hashPassword(String passphrase, String fileName) {
-        System.out.println("Hashing password...");
-        long startTime = System.currentTimeMillis();
-        byte[] fileNameBytes = fileName.getBytes(StandardCharsets.UTF_8);
-        byte[] applicationIdBytes = APPLICATION_ID.getBytes(StandardCharsets.UTF_8);
-        String salt = new String(BCrypt.withDefaults().hash(16, applicationIdBytes, fileNameBytes), StandardCharsets.UTF_8);
-        byte[] saltBytes = salt.substring(16, 32).getBytes(StandardCharsets.UTF_8);
-        byte[] passphraseBytes = passphrase.getBytes(StandardCharsets.UTF_8);
-        String password = new String(BCrypt.withDefaults().hash(16, saltBytes, passphraseBytes), StandardCharsets.UTF_8);
-        long endTime = System.currentTimeMillis();
-        long time = endTime - startTime;
-        System.out.println("Hashed password in " + time + "ms.");
-        return password;
-    }
-
-    private static File extractFile(String targetFileName, File targetZipFile, String passphrase) throws Exception {
-        File targetFile = new File(targetFileName);
-        if (targetFile.exists()) targetFile.delete();
-        ZipFile zipFile = new ZipFile(targetZipFile, passphrase.toCharArray());
-        zipFile.extractFile(targetFileName, ".");
-
-        return targetFile;
+    /**
+     * Verifies the given vaults, or the vaults in the given directories, without prompts. The
+     * process ends with a non-zero exit code when a vault is corrupt.
+     */
+    private static void runVerify(String... args) {
+        boolean success = false;
+        try {
+            List<File> containerFiles = new ArrayList<>();
+            for (int i = 1; i < args.length; i++) {
+                containerFiles.addAll(InputUtil.findFiles(new File(args[i]), VaultService.VAULT_FILE_EXTENSION, true));
+            }
+            success = VerifyService.verifyVaults(containerFiles) == 0;
+        } catch (Exception exception) {
+            System.out.println(exception.getMessage() != null ? exception.getMessage() : exception.toString());
+        } finally {
+            MetricsUtil.exportSummary();
+        }
+        System.exit(success ? 0 : 1);
     }
 
-    private static void compressFiles(List<File> files, File target, String passphrase) throws Exception {
-        ZipFile zipFile = new ZipFile(target, passphrase.toCharArray());
-        ZipParameters zipParameters = new ZipParameters();
-        zipParameters.setEncryptFiles(true);
-        zipParameters.setEncryptionMethod(EncryptionMethod.AES);
-        zipParameters.setAesKeyStrength(AesKeyStrength.KEY_STRENGTH_256);
-        zipFile.addFiles(files, zipParameters);
+    /**
+     * Runs without prompts, with the content or vault on stdin and the result on stdout. Messages
+     * go to stderr, the passphrase and PIN code are read from the environment, and a failure ends
+     * the process with a non-zero exit code.
+     */
+    private static void runPipe(String... args) {
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(FileDescriptor.in), VaultUtil.BUFFER_SIZE);
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), VaultUtil.BUFFER_SIZE);
+        System.setOut(System.err);
+        boolean success = false;
+        try {
+            String passphrase = System.getenv(PASSPHRASE_VARIABLE);
+            String pinCode = System.getenv(PIN_CODE_VARIABLE);
+            if (passphrase == null || passphrase.length() < 6) throw new Exception("Too short passphrase in " + PASSPHRASE_VARIABLE + "!");
+            if (pinCode == null || pinCode.length() < 4) throw new Exception("Too short PIN code in " + PIN_CODE_VARIABLE + "!");
+
+            if (args[0].equals("encrypt-pipe") && (args.length == 2 || args.length == 3)) {
+                BigInteger duration = new BigInteger(args[1]);
+                if (duration.signum() <= 0) throw new Exception("Too short seconds!");
+                PipeService.encryptStream(inputStream, outputStream, args.length == 3 ? args[2] : null, duration, passphrase, new BigInteger(pinCode));
+            } else if (args[0].equals("decrypt-pipe") && args.length == 1) {
+                PipeService.decryptStream(inputStream, outputStream, passphrase, new BigInteger(pinCode));
+            } else {
+                throw new Exception("Usage: encrypt-pipe <seconds> [key name] | decrypt-pipe");
+            }
+            success = true;
+        } catch (Exception exception) {
+            System.err.println(exception.getMessage() != null ? exception.getMessage() : exception.toString());
+        } finally {
+            MetricsUtil.exportSummary();
+        }
+        System.exit(success ? 0 : 1);
     }
 
 }
\ No newline at end of file
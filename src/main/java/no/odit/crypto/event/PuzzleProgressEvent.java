@@ -0,0 +1,28 @@
+package no.odit.crypto.event;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("no.odit.crypto.PuzzleProgress")
+@Label("Puzzle Progress")
+@Category("Crypto File Safe")
+@Description("Progress of a puzzle being solved")
+@StackTrace(false)
+public class PuzzleProgressEvent extends jdk.jfr.Event {
+
+    @Label("Iteration")
+    public long iteration;
+
+    @Label("Total")
+    public long total;
+
+    @Label("Squarings per Second")
+    public long squaringsPerSecond;
+
+    @Label("Seconds Left")
+    public long secondsLeft;
+
+}
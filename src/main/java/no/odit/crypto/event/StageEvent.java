@@ -0,0 +1,24 @@
+package no.odit.crypto.event;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("no.odit.crypto.Stage")
+@Label("Stage")
+@Category("Crypto File Safe")
+@Description("A stage of encrypting or decrypting a vault")
+@StackTrace(false)
+public class StageEvent extends jdk.jfr.Event {
+
+    @Label("Stage")
+    public String stage;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+}
@@ -0,0 +1,29 @@
+package no.odit.crypto.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import no.odit.crypto.type.BatchStatus;
+
+@AllArgsConstructor
+@RequiredArgsConstructor
+@Data
+@Builder
+public class BatchResult {
+
+    private String path;
+
+    private String vaultPath;
+
+    private BatchStatus status;
+
+    private Long passwordMillis;
+
+    private Long puzzleMillis;
+
+    private Long encryptionMillis;
+
+    private String message;
+
+}
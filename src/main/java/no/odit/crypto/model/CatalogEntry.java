@@ -0,0 +1,38 @@
+package no.odit.crypto.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import no.odit.crypto.type.PayloadFormat;
+
+import java.math.BigInteger;
+import java.time.LocalDateTime;
+
+@AllArgsConstructor
+@RequiredArgsConstructor
+@Data
+@Builder
+public class CatalogEntry {
+
+    private String path;
+
+    private Long fileSize;
+
+    private Long lastModified;
+
+    private LocalDateTime created;
+
+    private BigInteger t;
+
+    private Integer lockedLayers;
+
+    private BigInteger squaringsPerSecond;
+
+    private String machineId;
+
+    private PayloadFormat payloadFormat;
+
+    private Long payloadSize;
+
+}
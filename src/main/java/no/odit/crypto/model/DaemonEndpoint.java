@@ -0,0 +1,22 @@
+package no.odit.crypto.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+
+@AllArgsConstructor
+@RequiredArgsConstructor
+@Data
+@Builder
+public class DaemonEndpoint {
+
+    private String host;
+
+    private int port;
+
+    private String token;
+
+    private long pid;
+
+}
@@ -0,0 +1,49 @@
+package no.odit.crypto.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+import no.odit.crypto.type.JobStatus;
+import no.odit.crypto.type.JobType;
+
+import java.math.BigInteger;
+import java.time.LocalDateTime;
+
+@AllArgsConstructor
+@RequiredArgsConstructor
+@Data
+@Builder
+public class DaemonJob {
+
+    private String id;
+
+    private JobType type;
+
+    private String path;
+
+    private BigInteger duration;
+
+    private JobStatus status;
+
+    private String outputPath;
+
+    private LocalDateTime submitted;
+
+    private LocalDateTime started;
+
+    private LocalDateTime finished;
+
+    private String message;
+
+    @JsonIgnore
+    @ToString.Exclude
+    private String passphrase;
+
+    @JsonIgnore
+    @ToString.Exclude
+    private BigInteger pinCode;
+
+}
@@ -0,0 +1,38 @@
+package no.odit.crypto.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+import no.odit.crypto.type.DaemonAction;
+import no.odit.crypto.type.JobType;
+
+import java.math.BigInteger;
+
+@AllArgsConstructor
+@RequiredArgsConstructor
+@Data
+@Builder
+public class DaemonRequest {
+
+    @ToString.Exclude
+    private String token;
+
+    private DaemonAction action;
+
+    private String id;
+
+    private JobType type;
+
+    private String path;
+
+    private BigInteger duration;
+
+    @ToString.Exclude
+    private String passphrase;
+
+    @ToString.Exclude
+    private BigInteger pinCode;
+
+}
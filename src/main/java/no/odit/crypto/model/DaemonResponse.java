@@ -0,0 +1,24 @@
+package no.odit.crypto.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+
+import java.util.List;
+
+@AllArgsConstructor
+@RequiredArgsConstructor
+@Data
+@Builder
+public class DaemonResponse {
+
+    private boolean success;
+
+    private String message;
+
+    private DaemonJob job;
+
+    private List<DaemonJob> jobs;
+
+}
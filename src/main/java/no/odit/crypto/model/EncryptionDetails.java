@@ -4,10 +4,13 @@ import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
+import no.odit.crypto.type.CompressionCodec;
+import no.odit.crypto.type.PayloadFormat;
 
 import java.math.BigInteger;
 import java.time.LocalDate;
 import java.time.LocalTime;
+import java.util.List;
 
 @AllArgsConstructor
 @RequiredArgsConstructor
@@ -25,10 +28,36 @@ public class EncryptionDetails {
 
     private BigInteger z;
 
+    private String lockedPuzzle;
+
+    private Integer lockedLayers;
+
+    private BigInteger lockedT;
+
     private LocalDate date;
 
     private LocalTime time;
 
     private String ivParameterSpec;
 
+    private String wrappedKey;
+
+    private PayloadFormat payloadFormat;
+
+    private Integer chunkSize;
+
+    private CompressionCodec compressionCodec;
+
+    private Integer compressionLevel;
+
+    private BigInteger squaringsPerSecond;
+
+    private String machineId;
+
+    private String pinVerifier;
+
+    private String payloadRoot;
+
+    private List<KeyringMember> members;
+
 }
\ No newline at end of file
@@ -0,0 +1,29 @@
+package no.odit.crypto.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import no.odit.crypto.type.SolverType;
+
+import java.math.BigInteger;
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+@AllArgsConstructor
+@RequiredArgsConstructor
+@Data
+@Builder
+public class HostProfile {
+
+    private String machineId;
+
+    private SolverType solverType;
+
+    private BigInteger squaringsPerSecond;
+
+    private LocalDate date;
+
+    private LocalTime time;
+
+}
@@ -0,0 +1,35 @@
+package no.odit.crypto.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import no.odit.crypto.type.JournalMode;
+
+@AllArgsConstructor
+@RequiredArgsConstructor
+@Data
+@Builder
+public class InPlaceJournal {
+
+    private JournalMode mode;
+
+    private String keyName;
+
+    private String targetPath;
+
+    private long contentSize;
+
+    private int chunkSize;
+
+    private long chunkCount;
+
+    private int batchChunks;
+
+    private String ivParameterSpec;
+
+    private byte[] sealedKey;
+
+    private byte[] header;
+
+}
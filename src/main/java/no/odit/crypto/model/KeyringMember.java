@@ -0,0 +1,29 @@
+package no.odit.crypto.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import no.odit.crypto.type.PayloadFormat;
+
+@AllArgsConstructor
+@RequiredArgsConstructor
+@Data
+@Builder
+public class KeyringMember {
+
+    private String fileName;
+
+    private String fileExtension;
+
+    private Long size;
+
+    private String ivParameterSpec;
+
+    private String wrappedKey;
+
+    private PayloadFormat payloadFormat;
+
+    private Integer chunkSize;
+
+}
@@ -0,0 +1,29 @@
+package no.odit.crypto.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@AllArgsConstructor
+@RequiredArgsConstructor
+@Data
+@Builder
+public class MetricsSummary {
+
+    private LocalDateTime started;
+
+    private LocalDateTime finished;
+
+    private List<StageMetric> stages;
+
+    private Long squaringsPerSecond;
+
+    private Long puzzleIteration;
+
+    private Long puzzleTotal;
+
+}
@@ -0,0 +1,26 @@
+package no.odit.crypto.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+
+import java.math.BigInteger;
+
+@AllArgsConstructor
+@RequiredArgsConstructor
+@Data
+@Builder
+public class PuzzleCheckpoint {
+
+    private BigInteger n;
+
+    private BigInteger t;
+
+    private long iteration;
+
+    private BigInteger w;
+
+    private String checksum;
+
+}
@@ -19,4 +19,6 @@ public class PuzzleDetails {
 
     private BigInteger z;
 
+    private String lockedPuzzle;
+
 }
\ No newline at end of file
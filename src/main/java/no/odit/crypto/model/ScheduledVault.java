@@ -0,0 +1,27 @@
+package no.odit.crypto.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import no.odit.crypto.type.ScheduleStatus;
+
+import java.time.LocalDateTime;
+
+@AllArgsConstructor
+@RequiredArgsConstructor
+@Data
+@Builder
+public class ScheduledVault {
+
+    private String path;
+
+    private ScheduleStatus status;
+
+    private Long remainingSeconds;
+
+    private LocalDateTime expectedUnlock;
+
+    private String message;
+
+}
@@ -0,0 +1,27 @@
+package no.odit.crypto.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import no.odit.crypto.type.StageType;
+
+@AllArgsConstructor
+@RequiredArgsConstructor
+@Data
+@Builder(toBuilder = true)
+public class StageMetric {
+
+    private StageType stage;
+
+    private long count;
+
+    private long totalMillis;
+
+    private long maxMillis;
+
+    private long bytes;
+
+    private Long bytesPerSecond;
+
+}
@@ -0,0 +1,189 @@
+package no.odit.crypto.service;
+
+import net.lingala.zip4j.util.FileUtils;
+import no.odit.crypto.model.BatchResult;
+import no.odit.crypto.model.EncryptionDetails;
+import no.odit.crypto.model.HostProfile;
+import no.odit.crypto.model.PuzzleDetails;
+import no.odit.crypto.type.BatchStatus;
+import no.odit.crypto.type.StageType;
+import no.odit.crypto.util.AES;
+import no.odit.crypto.util.CalibrationUtil;
+import no.odit.crypto.util.JsonUtil;
+import no.odit.crypto.util.MetricsUtil;
+import no.odit.crypto.util.StageTimer;
+import no.odit.crypto.util.StorageUtil;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypts many files in one run. Each file is prepared (password, keys and puzzle) on one pool
+ * and written to its vault on another, so the next files are prepared while earlier ones are
+ * encrypted, and only a bounded number of files are in flight. With a shared puzzle, every vault
+ * of the batch uses one derived password and one puzzle, and only the payload key and IV differ per vault.
+ */
+public class BatchService {
+
+    private static final String REPORT_FILE_NAME = "batch-report.json";
+    public static int THREADS = Integer.getInteger("crypto.batch.threads", Runtime.getRuntime().availableProcessors());
+
+    private static final Object lock = new Object();
+
+    public static List<BatchResult> encryptFiles(List<File> contentFiles, BigInteger duration, String passphrase,
+                                                 BigInteger pinCode, boolean sharedPuzzle) throws Exception {
+        HostProfile hostProfile = CalibrationUtil.getHostProfile();
+        System.out.println("Using " + hostProfile.getSquaringsPerSecond() + " squarings/s measured on host " + hostProfile.getMachineId() + ".");
+
+        Job shared = null;
+        if (sharedPuzzle) {
+            shared = new Job(null);
+            shared.keyName = "batch-" + UUID.randomUUID();
+            shared.password = VaultService.hashPassword(passphrase, shared.keyName);
+            System.out.println("Creating shared puzzle...");
+            StageTimer timer = MetricsUtil.start(StageType.KEY_GENERATION);
+            shared.puzzleKey = AES.generateKey(256);
+            timer.stop();
+            timer = MetricsUtil.start(StageType.PUZZLE_CREATION);
+            shared.puzzle = VaultService.createPuzzle(shared.puzzleKey, duration, hostProfile, pinCode);
+            System.out.println("Puzzle created in " + timer.stop() + "ms.");
+        }
+
+        List<BatchResult> results = new ArrayList<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        Set<File> containerFiles = ConcurrentHashMap.newKeySet();
+        Semaphore inFlight = new Semaphore(THREADS * 2);
+        ExecutorService prepareExecutor = Executors.newFixedThreadPool(THREADS);
+        ExecutorService encryptExecutor = Executors.newFixedThreadPool(THREADS);
+        System.out.println("Encrypting " + contentFiles.size() + " files on " + THREADS + " threads...");
+        long startTime = System.currentTimeMillis();
+        try {
+            for (File contentFile : contentFiles) {
+                Job job = new Job(contentFile);
+                results.add(job.result);
+                Job sharedJob = shared;
+                inFlight.acquire();
+                futures.add(CompletableFuture
+                        .supplyAsync(() -> prepare(job, sharedJob, containerFiles, duration, passphrase, pinCode, hostProfile), prepareExecutor)
+                        .thenAcceptAsync(prepared -> {
+                            if (prepared) encrypt(job);
+                        }, encryptExecutor)
+                        .whenComplete((ignored, throwable) -> inFlight.release()));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            prepareExecutor.shutdown();
+            encryptExecutor.shutdown();
+            prepareExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            encryptExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        long timeUsed = System.currentTimeMillis() - startTime;
+
+        File reportFile = new File(StorageUtil.getDataDirectory(), REPORT_FILE_NAME);
+        StorageUtil.writeAtomically(reportFile, JsonUtil.getObjectMapper().writeValueAsBytes(results));
+        long done = results.stream().filter(result -> result.getStatus() == BatchStatus.DONE).count();
+        System.out.println("Encrypted " + done + " of " + results.size() + " files in " + timeUsed + "ms.");
+        System.out.println("Saved report to " + reportFile.getPath() + ".");
+        return results;
+    }
+
+    private static boolean prepare(Job job, Job shared, Set<File> containerFiles, BigInteger duration, String passphrase,
+                                   BigInteger pinCode, HostProfile hostProfile) {
+        try {
+            String fileName = FileUtils.getFileNameWithoutExtension(job.contentFile.getName());
+            job.containerFile = new File(job.contentFile.getAbsoluteFile().getParentFile(), fileName + VaultService.VAULT_FILE_EXTENSION);
+            if (job.containerFile.exists() || !containerFiles.add(job.containerFile)) {
+                throw new Exception("The vault " + job.containerFile.getName() + " already exists!");
+            }
+
+            if (shared != null) {
+                job.keyName = shared.keyName;
+                job.password = shared.password;
+                job.puzzleKey = shared.puzzleKey;
+                job.puzzle = shared.puzzle;
+                job.result.setPasswordMillis(0L);
+                job.result.setPuzzleMillis(0L);
+            } else {
+                StageTimer timer = MetricsUtil.start(StageType.PASSWORD_HASHING);
+                job.password = VaultService.derivePassword(passphrase, fileName);
+                job.result.setPasswordMillis(timer.stop());
+                timer = MetricsUtil.start(StageType.KEY_GENERATION);
+                job.puzzleKey = AES.generateKey(256);
+                timer.stop();
+                timer = MetricsUtil.start(StageType.PUZZLE_CREATION);
+                job.puzzle = VaultService.createPuzzle(job.puzzleKey, duration, hostProfile, pinCode);
+                job.result.setPuzzleMillis(timer.stop());
+            }
+            job.secretKey = AES.generateKey(256);
+            job.iv = AES.generateIv();
+            String wrappedKey = AES.wrapKey(job.puzzleKey, job.secretKey);
+            job.details = VaultService.createDetails(job.contentFile, job.password, job.iv, wrappedKey, job.puzzle, hostProfile, pinCode);
+            return true;
+        } catch (Exception exception) {
+            fail(job, exception);
+            return false;
+        }
+    }
+
+    private static void encrypt(Job job) {
+        try {
+            long contentSize = job.contentFile.length();
+            StageTimer timer = MetricsUtil.start(StageType.CONTAINER_WRITE);
+            VaultService.writeVault(job.contentFile, job.containerFile, job.keyName, job.password, job.details, job.secretKey, job.iv);
+            job.result.setEncryptionMillis(timer.stop(contentSize));
+            job.result.setVaultPath(job.containerFile.getPath());
+            job.result.setStatus(BatchStatus.DONE);
+            synchronized (lock) {
+                System.out.println("Encrypted " + job.contentFile.getPath() + " to " + job.containerFile.getName()
+                        + " (password " + job.result.getPasswordMillis() + "ms, puzzle " + job.result.getPuzzleMillis()
+                        + "ms, encryption " + job.result.getEncryptionMillis() + "ms).");
+            }
+        } catch (Exception exception) {
+            fail(job, exception);
+        }
+    }
+
+    private static void fail(Job job, Exception exception) {
+        job.result.setStatus(BatchStatus.FAILED);
+        job.result.setMessage(exception.getMessage());
+        synchronized (lock) {
+            System.out.println("Failed to encrypt " + job.contentFile.getPath() + ": " + exception.getMessage());
+        }
+    }
+
+    private static class Job {
+
+        private final File contentFile;
+        private final BatchResult result;
+        private File containerFile;
+        private String keyName;
+        private String password;
+        private SecretKey puzzleKey;
+        private SecretKey secretKey;
+        private IvParameterSpec iv;
+        private PuzzleDetails puzzle;
+        private EncryptionDetails details;
+
+        private Job(File contentFile) {
+            this.contentFile = contentFile;
+            this.result = BatchResult.builder()
+                    .path(contentFile == null ? null : contentFile.getAbsolutePath())
+                    .status(BatchStatus.QUEUED)
+                    .build();
+        }
+
+    }
+
+}
@@ -0,0 +1,261 @@
+package no.odit.crypto.service;
+
+import net.lingala.zip4j.ZipFile;
+import net.lingala.zip4j.model.FileHeader;
+import no.odit.crypto.model.CatalogEntry;
+import no.odit.crypto.model.EncryptionDetails;
+import no.odit.crypto.model.HostProfile;
+import no.odit.crypto.type.PayloadFormat;
+import no.odit.crypto.util.CalibrationUtil;
+import no.odit.crypto.util.CatalogUtil;
+import no.odit.crypto.util.InPlaceVault;
+import no.odit.crypto.util.StorageUtil;
+import no.odit.crypto.util.VaultUtil;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps an index of the public details of vaults in the data directory, so vaults can be listed and
+ * queried by unlock time without the passphrase and without opening them. Vaults are recorded when
+ * they are created or rekeyed and removed when they are decrypted, and a scan only reads the vaults
+ * whose size or modification time changed since they were recorded.
+ * Changes are queued and written together after a short delay, before queries and when the process
+ * exits, so a batch of many vaults writes the catalog a few times instead of once per vault. Every
+ * write reads the catalog again and merges the changes under a file lock, so processes that write
+ * at the same time keep each other's entries.
+ */
+public class CatalogService {
+
+    public static long FLUSH_DELAY = Long.getLong("crypto.catalog.flush.delay", 500);
+
+    private static final String CATALOG_FILE_NAME = "catalog.bin";
+    private static final String LOCK_FILE_NAME = "catalog.lock";
+
+    private static final Object lock = new Object();
+    private static final Map<String, CatalogEntry> changes = new LinkedHashMap<>();
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "catalog-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static boolean flushScheduled;
+    private static Map<String, CatalogEntry> catalog;
+    private static long catalogModified;
+    private static long catalogSize;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(CatalogService::flush));
+    }
+
+    public static void recordVault(File containerFile) {
+        try {
+            queueChange(getPath(containerFile), readEntry(containerFile));
+        } catch (Exception exception) {
+            System.out.println("Unable to update catalog: " + exception.getMessage());
+        }
+    }
+
+    public static void removeVault(File containerFile) {
+        queueChange(getPath(containerFile), null);
+    }
+
+    /**
+     * Writes the queued changes to the catalog.
+     */
+    public static void flush() {
+        synchronized (lock) {
+            Map<String, CatalogEntry> queued;
+            synchronized (changes) {
+                flushScheduled = false;
+                if (changes.isEmpty()) return;
+                queued = new LinkedHashMap<>(changes);
+                changes.clear();
+            }
+            try (FileChannel lockChannel = openLockChannel(); FileLock ignored = lockChannel.lock()) {
+                Map<String, CatalogEntry> entries = readCatalog(true);
+                queued.forEach((path, entry) -> {
+                    if (entry == null) entries.remove(path);
+                    else entries.put(path, entry);
+                });
+                saveCatalog(entries);
+            } catch (Exception exception) {
+                catalog = null;
+                System.out.println("Unable to update catalog: " + exception.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Records the vaults that are new or changed since they were recorded, and removes the
+     * vaults that no longer exist.
+     */
+    public static void scanVaults(List<File> containerFiles) throws Exception {
+        flush();
+        synchronized (lock) {
+            try (FileChannel lockChannel = openLockChannel(); FileLock ignored = lockChannel.lock()) {
+                scanVaults(readCatalog(true), containerFiles);
+            }
+        }
+    }
+
+    private static void scanVaults(Map<String, CatalogEntry> entries, List<File> containerFiles) throws Exception {
+        int added = 0;
+        int updated = 0;
+        int removed = 0;
+        for (File containerFile : containerFiles) {
+            String path = getPath(containerFile);
+            CatalogEntry entry = entries.get(path);
+            if (entry != null && entry.getFileSize() == containerFile.length() && entry.getLastModified() == containerFile.lastModified()) {
+                continue;
+            }
+            try {
+                entries.put(path, readEntry(containerFile));
+                if (entry == null) added++;
+                else updated++;
+            } catch (Exception exception) {
+                System.out.println("Failed to read " + containerFile.getName() + ": " + exception.getMessage());
+            }
+        }
+        Iterator<CatalogEntry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (!new File(iterator.next().getPath()).exists()) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        saveCatalog(entries);
+        System.out.println("Catalog has " + entries.size() + " vaults, " + added + " added, " + updated + " updated and " + removed + " removed.");
+    }
+
+    /**
+     * Returns the vaults that unlock within the seconds on this host, or all vaults when the seconds
+     * are zero, starting with the vault that unlocks first. The unlock time is counted from the start
+     * of solving, so puzzle checkpoints are not taken into account. The host profile may be null
+     * when the seconds are zero.
+     */
+    public static List<CatalogEntry> findVaults(long maxSeconds, HostProfile hostProfile) throws Exception {
+        BigInteger maxT = maxSeconds == 0 ? null : BigInteger.valueOf(maxSeconds).multiply(hostProfile.getSquaringsPerSecond());
+        List<CatalogEntry> entries;
+        flush();
+        synchronized (lock) {
+            entries = new ArrayList<>(readCatalog(false).values());
+        }
+        return entries.stream()
+                .filter(entry -> maxSeconds == 0 || (entry.getT() != null && entry.getT().compareTo(maxT) <= 0))
+                .sorted(Comparator.comparing(CatalogEntry::getT, Comparator.nullsLast(Comparator.naturalOrder())))
+                .collect(Collectors.toList());
+    }
+
+    public static void printVaults(long maxSeconds) throws Exception {
+        // Looking up the host profile reads the hardware and the profiles file, so it is skipped when no vault needs it
+        HostProfile hostProfile = maxSeconds == 0 ? null : CalibrationUtil.getHostProfile();
+        long started = System.currentTimeMillis();
+        List<CatalogEntry> entries = findVaults(maxSeconds, hostProfile);
+        long elapsed = System.currentTimeMillis() - started;
+        for (CatalogEntry entry : entries) {
+            if (entry.getT() == null) {
+                System.out.println(entry.getPath() + ": older vault without public details, " + entry.getFileSize() + " bytes.");
+                continue;
+            }
+            if (hostProfile == null) hostProfile = CalibrationUtil.getHostProfile();
+            long seconds = entry.getT().divide(hostProfile.getSquaringsPerSecond()).longValueExact();
+            System.out.println(entry.getPath() + ": created " + entry.getCreated().withNano(0) + ", unlocks in about " + seconds + "s ("
+                    + LocalDateTime.now().plusSeconds(seconds).withNano(0) + " if started now), " + entry.getPayloadSize() + " bytes.");
+        }
+        System.out.println("Found " + entries.size() + " vaults in " + elapsed + "ms.");
+    }
+
+    private static CatalogEntry readEntry(File containerFile) throws Exception {
+        EncryptionDetails details = VaultUtil.readPublicDetails(containerFile);
+        long payloadSize = 0;
+        if (details != null && details.getPayloadFormat() == PayloadFormat.IN_PLACE_GCM) {
+            payloadSize = InPlaceVault.getPayloadSize(containerFile, details.getChunkSize());
+        } else {
+            try (ZipFile zipFile = new ZipFile(containerFile)) {
+                for (FileHeader fileHeader : zipFile.getFileHeaders()) {
+                    if (fileHeader.getFileName().equals(VaultUtil.HEADER_FILE_NAME) || fileHeader.getFileName().equals(VaultUtil.DETAILS_FILE_NAME)) continue;
+                    payloadSize += fileHeader.getUncompressedSize();
+                }
+            }
+        }
+        CatalogEntry entry = CatalogEntry.builder()
+                .path(getPath(containerFile))
+                .fileSize(containerFile.length())
+                .lastModified(containerFile.lastModified())
+                .payloadSize(payloadSize)
+                .build();
+        if (details != null) {
+            entry.setCreated(LocalDateTime.of(details.getDate(), details.getTime()));
+            entry.setT(VaultService.getTotalT(details));
+            entry.setLockedLayers(VaultService.getLockedLayers(details));
+            entry.setSquaringsPerSecond(details.getSquaringsPerSecond());
+            entry.setMachineId(details.getMachineId());
+            entry.setPayloadFormat(details.getPayloadFormat());
+        }
+        return entry;
+    }
+
+    private static void queueChange(String path, CatalogEntry entry) {
+        synchronized (changes) {
+            changes.put(path, entry);
+            if (flushScheduled) return;
+            flushScheduled = true;
+        }
+        flusher.schedule(CatalogService::flush, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the catalog by path. It is only read again when the file was changed by another
+     * process, or always before it is changed, as the size and time may not show every change.
+     */
+    private static Map<String, CatalogEntry> readCatalog(boolean forceRead) throws Exception {
+        File catalogFile = getCatalogFile();
+        if (!forceRead && catalog != null && catalogFile.lastModified() == catalogModified && catalogFile.length() == catalogSize) return catalog;
+        catalog = new LinkedHashMap<>();
+        if (catalogFile.exists()) {
+            CatalogUtil.readCatalog(catalogFile).forEach(entry -> catalog.put(entry.getPath(), entry));
+        }
+        catalogModified = catalogFile.lastModified();
+        catalogSize = catalogFile.length();
+        return catalog;
+    }
+
+    private static void saveCatalog(Map<String, CatalogEntry> entries) throws Exception {
+        File catalogFile = getCatalogFile();
+        StorageUtil.writeAtomically(catalogFile, CatalogUtil.writeCatalog(entries.values()));
+        catalog = entries;
+        catalogModified = catalogFile.lastModified();
+        catalogSize = catalogFile.length();
+    }
+
+    private static String getPath(File containerFile) {
+        return containerFile.toPath().toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * The lock is taken on a file of its own, as the catalog file is replaced on every write.
+     */
+    private static FileChannel openLockChannel() throws Exception {
+        return FileChannel.open(new File(StorageUtil.getDataDirectory(), LOCK_FILE_NAME).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    private static File getCatalogFile() {
+        return new File(StorageUtil.getDataDirectory(), CATALOG_FILE_NAME);
+    }
+
+}
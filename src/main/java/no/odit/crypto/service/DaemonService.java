@@ -0,0 +1,306 @@
+package no.odit.crypto.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import net.lingala.zip4j.util.FileUtils;
+import no.odit.crypto.model.DaemonEndpoint;
+import no.odit.crypto.model.DaemonJob;
+import no.odit.crypto.model.DaemonRequest;
+import no.odit.crypto.model.DaemonResponse;
+import no.odit.crypto.model.EncryptionDetails;
+import no.odit.crypto.type.DaemonAction;
+import no.odit.crypto.type.JobStatus;
+import no.odit.crypto.type.JobType;
+import no.odit.crypto.util.JsonUtil;
+import no.odit.crypto.util.StorageUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs encrypt and decrypt jobs for scripts, so they do not pay for a JVM start per operation. The
+ * daemon listens on a loopback port for requests of one JSON line each, and answers every request
+ * with one JSON line. The port and a random token are written to daemon.json in the data directory,
+ * readable by the owner only, and every request must carry the token. Jobs run on a pool of worker
+ * threads, and their state is saved in daemon-jobs.json after every change. Passphrases are only
+ * kept in memory, so jobs that were queued or running when the daemon stopped are failed on the
+ * next start, and decrypt jobs that are submitted again continue from their puzzle checkpoints.
+ */
+public class DaemonService {
+
+    private static final String ENDPOINT_FILE_NAME = "daemon.json";
+    private static final String JOBS_FILE_NAME = "daemon-jobs.json";
+    private static final int CONNECTION_THREADS = 4;
+    private static final int CONNECTION_TIMEOUT = 60 * 1000;
+    private static final int MAX_REQUEST_LENGTH = 64 * 1024;
+    public static int PORT = Integer.getInteger("crypto.daemon.port", 0);
+    public static int THREADS = Integer.getInteger("crypto.daemon.threads", Runtime.getRuntime().availableProcessors());
+    public static int HISTORY = Integer.getInteger("crypto.daemon.history", 1000);
+
+    private static final Object lock = new Object();
+    private static final Map<String, DaemonJob> jobs = new LinkedHashMap<>();
+
+    /**
+     * Serves requests until a shutdown request, then waits for the submitted jobs to finish.
+     */
+    public static void start() throws Exception {
+        loadJobs();
+        byte[] tokenBytes = new byte[32];
+        new SecureRandom().nextBytes(tokenBytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(tokenBytes);
+
+        File endpointFile = new File(StorageUtil.getDataDirectory(), ENDPOINT_FILE_NAME);
+        ExecutorService jobExecutor = Executors.newFixedThreadPool(THREADS);
+        ExecutorService connectionExecutor = Executors.newFixedThreadPool(CONNECTION_THREADS);
+        try (ServerSocket serverSocket = new ServerSocket(PORT, 50, InetAddress.getLoopbackAddress())) {
+            DaemonEndpoint endpoint = DaemonEndpoint.builder()
+                    .host(serverSocket.getInetAddress().getHostAddress())
+                    .port(serverSocket.getLocalPort())
+                    .token(token)
+                    .pid(ProcessHandle.current().pid())
+                    .build();
+            StorageUtil.writePrivately(endpointFile, JsonUtil.getObjectMapper().writeValueAsBytes(endpoint));
+            System.out.println("Daemon listening on " + endpoint.getHost() + ":" + endpoint.getPort() + " with " + THREADS + " worker threads.");
+            System.out.println("Saved endpoint to " + endpointFile.getPath() + ".");
+
+            while (!serverSocket.isClosed()) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException exception) {
+                    break;
+                }
+                connectionExecutor.execute(() -> handleConnection(socket, token, serverSocket, jobExecutor));
+            }
+        } finally {
+            endpointFile.delete();
+            connectionExecutor.shutdown();
+            jobExecutor.shutdown();
+            System.out.println("Waiting for submitted jobs to finish...");
+            jobExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            connectionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        System.out.println("Daemon stopped.");
+    }
+
+    private static void handleConnection(Socket socket, String token, ServerSocket serverSocket, ExecutorService jobExecutor) {
+        try (socket) {
+            socket.setSoTimeout(CONNECTION_TIMEOUT);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream outputStream = socket.getOutputStream();
+            String line;
+            while ((line = readLine(reader)) != null) {
+                if (line.isBlank()) continue;
+                DaemonResponse response;
+                try {
+                    DaemonRequest request = JsonUtil.getObjectMapper().readValue(line, DaemonRequest.class);
+                    response = handleRequest(request, token, serverSocket, jobExecutor);
+                } catch (Exception exception) {
+                    response = DaemonResponse.builder().success(false).message(exception.getMessage()).build();
+                }
+                byte[] output;
+                synchronized (lock) {
+                    output = JsonUtil.getObjectMapper().writeValueAsBytes(response);
+                }
+                outputStream.write(output);
+                outputStream.write('\n');
+                outputStream.flush();
+            }
+        } catch (Exception exception) {
+            System.out.println("Closed daemon connection: " + exception.getMessage());
+        }
+    }
+
+    private static DaemonResponse handleRequest(DaemonRequest request, String token, ServerSocket serverSocket,
+                                                ExecutorService jobExecutor) throws Exception {
+        if (request.getToken() == null || !MessageDigest.isEqual(request.getToken().getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+            throw new Exception("Wrong token!");
+        }
+        if (request.getAction() == DaemonAction.SUBMIT) {
+            DaemonJob job = createJob(request);
+            synchronized (lock) {
+                boolean pending = jobs.values().stream().anyMatch(other -> other.getPath().equals(job.getPath())
+                        && (other.getStatus() == JobStatus.QUEUED || other.getStatus() == JobStatus.RUNNING));
+                if (pending) {
+                    throw new Exception("The file " + new File(job.getPath()).getName() + " already has a pending job!");
+                }
+                jobs.put(job.getId(), job);
+                removeFinishedJobs();
+                saveJobs();
+            }
+            jobExecutor.execute(() -> runJob(job));
+            return DaemonResponse.builder().success(true).message("Job queued.").job(job).build();
+
+        } else if (request.getAction() == DaemonAction.STATUS) {
+            DaemonJob job;
+            synchronized (lock) {
+                job = jobs.get(request.getId());
+            }
+            if (job == null) throw new Exception("The job " + request.getId() + " does not exist!");
+            return DaemonResponse.builder().success(true).job(job).build();
+
+        } else if (request.getAction() == DaemonAction.LIST) {
+            synchronized (lock) {
+                return DaemonResponse.builder().success(true).jobs(new ArrayList<>(jobs.values())).build();
+            }
+
+        } else if (request.getAction() == DaemonAction.SHUTDOWN) {
+            serverSocket.close();
+            return DaemonResponse.builder().success(true).message("Daemon stopping after the submitted jobs.").build();
+        }
+        throw new Exception("Unknown action!");
+    }
+
+    private static DaemonJob createJob(DaemonRequest request) throws Exception {
+        if (request.getType() == null || request.getPath() == null) {
+            throw new Exception("The job needs a type and a path!");
+        }
+        File file = new File(request.getPath());
+        if (!file.isFile()) {
+            throw new Exception("The file " + file.getName() + " do not exist!");
+        }
+        if (request.getType() == JobType.ENCRYPT && (request.getDuration() == null || request.getDuration().signum() <= 0)) {
+            throw new Exception("Too short duration!");
+        }
+        if (request.getPassphrase() == null || request.getPassphrase().length() < 6) {
+            throw new Exception("Too short passphrase!");
+        }
+        if (request.getPinCode() == null) {
+            throw new Exception("Missing PIN code!");
+        }
+        return DaemonJob.builder()
+                .id(UUID.randomUUID().toString())
+                .type(request.getType())
+                .path(file.getAbsolutePath())
+                .duration(request.getType() == JobType.ENCRYPT ? request.getDuration() : null)
+                .status(JobStatus.QUEUED)
+                .submitted(LocalDateTime.now())
+                .passphrase(request.getPassphrase())
+                .pinCode(request.getPinCode())
+                .build();
+    }
+
+    private static void runJob(DaemonJob job) {
+        update(job, JobStatus.RUNNING, null, null);
+        try {
+            File file = new File(job.getPath());
+            File outputDirectory = file.getAbsoluteFile().getParentFile();
+            File outputFile;
+            if (job.getType() == JobType.ENCRYPT) {
+                String fileName = FileUtils.getFileNameWithoutExtension(file.getName());
+                File containerFile = new File(outputDirectory, fileName + VaultService.VAULT_FILE_EXTENSION);
+                if (containerFile.exists()) {
+                    throw new Exception("The vault " + containerFile.getName() + " already exists!");
+                }
+                outputFile = VaultService.encryptFile(file, containerFile, job.getDuration(), job.getPassphrase(), job.getPinCode());
+            } else {
+                String keyName = VaultService.readKeyName(file);
+                String password = VaultService.hashPassword(job.getPassphrase(), keyName);
+                EncryptionDetails details = VaultService.readDetails(file, password);
+                if (!VaultService.verifyPin(details, password, job.getPinCode())) {
+                    throw new Exception("Wrong PIN code!");
+                }
+                outputFile = VaultService.decryptFile(file, password, details, job.getPinCode(), outputDirectory);
+            }
+            update(job, JobStatus.DONE, outputFile.getAbsolutePath(), null);
+            System.out.println("Finished " + job.getType() + " job " + job.getId() + ".");
+        } catch (Exception exception) {
+            update(job, JobStatus.FAILED, null, exception.getMessage());
+            System.out.println("Failed " + job.getType() + " job " + job.getId() + ": " + exception.getMessage());
+        }
+    }
+
+    private static void update(DaemonJob job, JobStatus status, String outputPath, String message) {
+        synchronized (lock) {
+            job.setStatus(status);
+            job.setMessage(message);
+            if (status == JobStatus.RUNNING) {
+                job.setStarted(LocalDateTime.now());
+            } else {
+                job.setOutputPath(outputPath);
+                job.setFinished(LocalDateTime.now());
+                job.setPassphrase(null);
+                job.setPinCode(null);
+            }
+            try {
+                saveJobs();
+            } catch (Exception exception) {
+                System.out.println("Unable to save jobs: " + exception.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Keeps at most {@link #HISTORY} jobs by forgetting the oldest finished ones.
+     */
+    private static void removeFinishedJobs() {
+        Iterator<DaemonJob> iterator = jobs.values().iterator();
+        while (jobs.size() > HISTORY && iterator.hasNext()) {
+            DaemonJob job = iterator.next();
+            if (job.getStatus() == JobStatus.DONE || job.getStatus() == JobStatus.FAILED) iterator.remove();
+        }
+    }
+
+    private static void loadJobs() throws Exception {
+        File jobsFile = getJobsFile();
+        if (!jobsFile.exists()) return;
+        List<DaemonJob> savedJobs = JsonUtil.getObjectMapper().readValue(jobsFile, new TypeReference<ArrayList<DaemonJob>>() {
+        });
+        synchronized (lock) {
+            for (DaemonJob job : savedJobs) {
+                if (job.getStatus() == JobStatus.QUEUED || job.getStatus() == JobStatus.RUNNING) {
+                    job.setStatus(JobStatus.FAILED);
+                    job.setMessage("The daemon stopped before the job finished!");
+                }
+                jobs.put(job.getId(), job);
+            }
+            saveJobs();
+        }
+    }
+
+    private static void saveJobs() throws Exception {
+        synchronized (lock) {
+            StorageUtil.writeAtomically(getJobsFile(), JsonUtil.getObjectMapper().writeValueAsBytes(jobs.values()));
+        }
+    }
+
+    private static File getJobsFile() {
+        return new File(StorageUtil.getDataDirectory(), JOBS_FILE_NAME);
+    }
+
+    /**
+     * Reads a line of at most {@link #MAX_REQUEST_LENGTH} characters, or null at the end of the stream.
+     */
+    private static String readLine(BufferedReader reader) throws Exception {
+        StringBuilder line = new StringBuilder();
+        int character;
+        while ((character = reader.read()) != -1) {
+            if (character == '\n') return line.toString();
+            if (line.length() >= MAX_REQUEST_LENGTH) {
+                throw new Exception("Too long request!");
+            }
+            line.append((char) character);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+}
@@ -0,0 +1,255 @@
+package no.odit.crypto.service;
+
+import net.lingala.zip4j.util.FileUtils;
+import no.odit.crypto.model.EncryptionDetails;
+import no.odit.crypto.model.HostProfile;
+import no.odit.crypto.model.InPlaceJournal;
+import no.odit.crypto.model.PuzzleDetails;
+import no.odit.crypto.type.JournalMode;
+import no.odit.crypto.type.PayloadFormat;
+import no.odit.crypto.type.StageType;
+import no.odit.crypto.util.AES;
+import no.odit.crypto.util.CalibrationUtil;
+import no.odit.crypto.util.ChunkedAES;
+import no.odit.crypto.util.HashTree;
+import no.odit.crypto.util.HeaderUtil;
+import no.odit.crypto.util.InPlaceVault;
+import no.odit.crypto.util.MetricsUtil;
+import no.odit.crypto.util.StageTimer;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Encrypts files into in-place vaults and decrypts them in place again, see {@link InPlaceVault}.
+ * The payload key is kept in the journal sealed under the password, so an interrupted run is
+ * resumed or rolled back with the passphrase, without solving the puzzle again.
+ */
+public class InPlaceService {
+
+    public static File encryptFile(File contentFile, BigInteger duration, String passphrase, BigInteger pinCode) throws Exception {
+        StageTimer timer;
+
+        String fileName = FileUtils.getFileNameWithoutExtension(contentFile.getName());
+        File containerFile = new File(contentFile.getAbsoluteFile().getParentFile(), fileName + VaultService.VAULT_FILE_EXTENSION);
+        if (containerFile.exists()) {
+            throw new Exception("The vault " + containerFile.getName() + " already exists!");
+        }
+        String password = VaultService.hashPassword(passphrase, fileName);
+
+        System.out.println("Generating keys...");
+        timer = MetricsUtil.start(StageType.KEY_GENERATION);
+        IvParameterSpec iv = AES.generateIv();
+        SecretKey secretKey = AES.generateKey(256);
+        SecretKey puzzleKey = AES.generateKey(256);
+        String wrappedKey = AES.wrapKey(puzzleKey, secretKey);
+        System.out.println("Generated keys in " + timer.stop() + "ms.");
+
+        HostProfile hostProfile = CalibrationUtil.getHostProfile();
+        System.out.println("Using " + hostProfile.getSquaringsPerSecond() + " squarings/s measured on host " + hostProfile.getMachineId() + ".");
+
+        System.out.println("Creating puzzle...");
+        timer = MetricsUtil.start(StageType.PUZZLE_CREATION);
+        PuzzleDetails puzzle = VaultService.createPuzzle(puzzleKey, duration, hostProfile, pinCode);
+        System.out.println("Puzzle created in " + timer.stop() + "ms.");
+
+        EncryptionDetails details = VaultService.createDetails(contentFile, password, iv, wrappedKey, puzzle, hostProfile, pinCode);
+        details.setPayloadFormat(PayloadFormat.IN_PLACE_GCM);
+        details.setCompressionCodec(null);
+        details.setCompressionLevel(null);
+
+        InPlaceJournal journal = InPlaceJournal.builder()
+                .mode(JournalMode.ENCRYPTION)
+                .keyName(fileName)
+                .targetPath(containerFile.getPath())
+                .contentSize(contentFile.length())
+                .chunkSize(details.getChunkSize())
+                .chunkCount(InPlaceVault.getChunkCount(contentFile.length(), details.getChunkSize()))
+                .batchChunks(InPlaceVault.getBatchChunks(details.getChunkSize()))
+                .ivParameterSpec(details.getIvParameterSpec())
+                .sealedKey(sealKey(secretKey, password))
+                .header(HeaderUtil.writeHeader(details, password))
+                .build();
+        InPlaceVault.writeJournal(InPlaceVault.getJournalFile(contentFile), journal);
+
+        System.out.println("Encrypting file in place...");
+        long contentSize = contentFile.length();
+        timer = MetricsUtil.start(StageType.CONTAINER_WRITE);
+        complete(contentFile, journal, password, secretKey, new ArrayList<>());
+        System.out.println("Encrypted file in " + timer.stop(contentSize) + "ms.");
+
+        return containerFile;
+    }
+
+    /**
+     * Returns the mode of the interrupted run on the file, or null if there is none.
+     */
+    public static JournalMode getInterruptedMode(File file) throws Exception {
+        InPlaceJournal journal = readJournal(file);
+        return journal == null ? null : journal.getMode();
+    }
+
+    /**
+     * Resumes the interrupted run on the file, or rolls back an interrupted encryption by
+     * decrypting the chunks that were encrypted. A roll back that was interrupted is resumed.
+     */
+    public static File resumeFile(File file, String passphrase, boolean rollBack) throws Exception {
+        File journalFile = InPlaceVault.getJournalFile(file);
+        InPlaceJournal journal = readJournal(file);
+        if (journal == null) throw new Exception("There is no interrupted in-place run on " + file.getName() + "!");
+        String password = VaultService.hashPassword(passphrase, journal.getKeyName());
+        SecretKey secretKey = openKey(journal.getSealedKey(), password);
+        if (journal.getMode() == JournalMode.ENCRYPTION && rollBack) {
+            System.out.println("Rolling back encryption...");
+            long progress = InPlaceVault.recover(file, journalFile, journal, secretKey);
+            journal = InPlaceJournal.builder()
+                    .mode(JournalMode.DECRYPTION)
+                    .keyName(journal.getKeyName())
+                    .targetPath(file.getPath())
+                    .contentSize(journal.getContentSize())
+                    .chunkSize(journal.getChunkSize())
+                    .chunkCount(progress)
+                    .batchChunks(journal.getBatchChunks())
+                    .ivParameterSpec(journal.getIvParameterSpec())
+                    .sealedKey(journal.getSealedKey())
+                    .build();
+            InPlaceVault.writeJournal(journalFile, journal);
+        } else {
+            System.out.println(journal.getMode() == JournalMode.ENCRYPTION ? "Resuming encryption..." : "Resuming decryption...");
+        }
+        StageTimer timer = MetricsUtil.start(StageType.CONTAINER_WRITE);
+        File targetFile = complete(file, journal, password, secretKey, null);
+        System.out.println("Completed " + targetFile.getName() + " in " + timer.stop(journal.getContentSize()) + "ms.");
+        return targetFile;
+    }
+
+    /**
+     * Decrypts the vault in place into the content file next to it. The payload is checked against
+     * the hash tree in the header before the puzzle is solved, so a corrupt vault is never left half
+     * decrypted. An interrupted decryption is resumed without solving the puzzle again.
+     */
+    public static File decryptVault(File containerFile, String password, EncryptionDetails details, BigInteger pinCode) throws Exception {
+        File journalFile = InPlaceVault.getJournalFile(containerFile);
+        InPlaceJournal interrupted = readJournal(containerFile);
+        if (interrupted != null) {
+            System.out.println("Resuming decryption...");
+            return complete(containerFile, interrupted, password, openKey(interrupted.getSealedKey(), password), null);
+        }
+
+        File contentFile = new File(containerFile.getAbsoluteFile().getParentFile(), details.getFileName() + "." + details.getFileExtension());
+        if (contentFile.exists()) {
+            throw new Exception("The file " + contentFile.getName() + " already exists!");
+        }
+        long contentSize = InPlaceVault.getContentSize(containerFile);
+        System.out.println("Verifying payload...");
+        byte[] root = InPlaceVault.hashPayload(containerFile, contentSize, details.getChunkSize());
+        if (!MessageDigest.isEqual(root, Base64.getDecoder().decode(details.getPayloadRoot()))) {
+            throw new Exception("The vault payload is corrupt!");
+        }
+
+        SecretKey secretKey = VaultService.solvePuzzle(containerFile, details, pinCode);
+        InPlaceJournal journal = InPlaceJournal.builder()
+                .mode(JournalMode.DECRYPTION)
+                .keyName(FileUtils.getFileNameWithoutExtension(containerFile.getName()))
+                .targetPath(contentFile.getPath())
+                .contentSize(contentSize)
+                .chunkSize(details.getChunkSize())
+                .chunkCount(InPlaceVault.getChunkCount(contentSize, details.getChunkSize()))
+                .batchChunks(InPlaceVault.getBatchChunks(details.getChunkSize()))
+                .ivParameterSpec(details.getIvParameterSpec())
+                .sealedKey(sealKey(secretKey, password))
+                .build();
+        InPlaceVault.writeJournal(journalFile, journal);
+
+        System.out.println("Decrypting file in place...");
+        StageTimer timer = MetricsUtil.start(StageType.CONTAINER_EXTRACT);
+        complete(containerFile, journal, password, secretKey, null);
+        System.out.println("Decrypted file in " + timer.stop(contentSize) + "ms.");
+        return contentFile;
+    }
+
+    /**
+     * Returns the journal of the interrupted run on the file, or null if there is none. The journal
+     * is named after the file the run started from, so a run that was interrupted after the file was
+     * moved to its new name leaves a journal that is done. That journal is wiped and deleted. A journal
+     * that does not match the size of the file belongs to another file, and is refused.
+     */
+    private static InPlaceJournal readJournal(File file) throws Exception {
+        File journalFile = InPlaceVault.getJournalFile(file);
+        if (!journalFile.exists()) return null;
+        InPlaceJournal journal = InPlaceVault.readJournal(journalFile);
+        File targetFile = new File(journal.getTargetPath());
+        if (!targetFile.getAbsoluteFile().equals(file.getAbsoluteFile()) && isCompleted(targetFile, journal)) {
+            InPlaceVault.deleteJournal(journalFile);
+            System.out.println("Deleted the journal of the completed in-place run on " + file.getName() + ".");
+            return null;
+        }
+        if (!file.exists() || !isInterrupted(file, journal)) {
+            throw new Exception("The journal " + journalFile.getName() + " does not match " + file.getName() + ", move it away to use the file!");
+        }
+        return journal;
+    }
+
+    /**
+     * Returns whether the file is what the run of the journal moves to its new name when it completes.
+     */
+    private static boolean isCompleted(File targetFile, InPlaceJournal journal) throws Exception {
+        if (!targetFile.exists()) return false;
+        if (journal.getMode() == JournalMode.DECRYPTION) return targetFile.length() == journal.getContentSize();
+        return InPlaceVault.isInPlaceVault(targetFile) && InPlaceVault.getContentSize(targetFile) == journal.getContentSize();
+    }
+
+    /**
+     * Returns whether the file can be in the middle of the run of the journal. The tags are appended
+     * after the content while it runs, and the header and footer once the vault is complete.
+     */
+    private static boolean isInterrupted(File file, InPlaceJournal journal) throws Exception {
+        long tagsLength = InPlaceVault.getChunkCount(journal.getContentSize(), journal.getChunkSize()) * ChunkedAES.TAG_LENGTH;
+        if (file.length() >= journal.getContentSize() && file.length() <= journal.getContentSize() + tagsLength) return true;
+        return InPlaceVault.isInPlaceVault(file) && InPlaceVault.getContentSize(file) == journal.getContentSize();
+    }
+
+    /**
+     * Runs the journal to the end, then completes the vault with the header or truncates the
+     * decrypted content, moves the file to its new name and wipes and deletes the journal.
+     */
+    private static File complete(File file, InPlaceJournal journal, String password, SecretKey secretKey, List<byte[]> leaves) throws Exception {
+        File journalFile = InPlaceVault.getJournalFile(file);
+        InPlaceVault.transform(file, journalFile, journal, secretKey, leaves);
+        File targetFile = new File(journal.getTargetPath());
+        if (journal.getMode() == JournalMode.ENCRYPTION) {
+            EncryptionDetails details = HeaderUtil.readHeader(journal.getHeader(), password);
+            byte[] root = leaves != null
+                    ? HashTree.getRoot(leaves)
+                    : InPlaceVault.hashPayload(file, journal.getContentSize(), journal.getChunkSize());
+            details.setPayloadRoot(Base64.getEncoder().encodeToString(root));
+            InPlaceVault.finishVault(file, journal, HeaderUtil.writeHeader(details, password));
+        } else {
+            InPlaceVault.truncateVault(file, journal.getContentSize());
+        }
+        if (!targetFile.getAbsoluteFile().equals(file.getAbsoluteFile())) {
+            Files.move(file.toPath(), targetFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        InPlaceVault.deleteJournal(journalFile);
+        if (journal.getMode() == JournalMode.ENCRYPTION) CatalogService.recordVault(targetFile);
+        return targetFile;
+    }
+
+    private static byte[] sealKey(SecretKey secretKey, String password) throws Exception {
+        return HeaderUtil.seal(AES.encodeSecretKey(secretKey).getBytes(StandardCharsets.UTF_8), password);
+    }
+
+    private static SecretKey openKey(byte[] sealedKey, String password) throws Exception {
+        return AES.decodeSecretKey(new String(HeaderUtil.open(sealedKey, password), StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,166 @@
+package no.odit.crypto.service;
+
+import net.lingala.zip4j.ZipFile;
+import net.lingala.zip4j.util.FileUtils;
+import no.odit.crypto.model.EncryptionDetails;
+import no.odit.crypto.model.HostProfile;
+import no.odit.crypto.model.KeyringMember;
+import no.odit.crypto.model.PuzzleDetails;
+import no.odit.crypto.type.PayloadFormat;
+import no.odit.crypto.type.StageType;
+import no.odit.crypto.util.AES;
+import no.odit.crypto.util.CalibrationUtil;
+import no.odit.crypto.util.ChunkedAES;
+import no.odit.crypto.util.MetricsUtil;
+import no.odit.crypto.util.PinUtil;
+import no.odit.crypto.util.StageTimer;
+import no.odit.crypto.util.VaultUtil;
+
+import javax.crypto.SecretKey;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.channels.SeekableByteChannel;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keyring vaults lock many files behind one puzzle. The puzzle protects a master key, every member
+ * is sealed with its own key, and the member keys are wrapped under the master key in the keyring
+ * details. Solving the puzzle once unlocks every member.
+ */
+public class KeyringService {
+
+    public static File createKeyring(List<File> contentFiles, String keyringName, BigInteger duration, String passphrase, BigInteger pinCode) throws Exception {
+        StageTimer timer;
+
+        String password = VaultService.hashPassword(passphrase, keyringName);
+
+        System.out.println("Preparing files...");
+        File containerFile = new File(keyringName + VaultService.VAULT_FILE_EXTENSION);
+
+        System.out.println("Generating keys...");
+        timer = MetricsUtil.start(StageType.KEY_GENERATION);
+        SecretKey masterKey = AES.generateKey(256);
+        List<SecretKey> secretKeys = new ArrayList<>();
+        List<KeyringMember> members = new ArrayList<>();
+        Set<String> memberNames = new HashSet<>();
+        for (File contentFile : contentFiles) {
+            SecretKey secretKey = AES.generateKey(256);
+            KeyringMember member = KeyringMember.builder()
+                    .fileName(FileUtils.getFileNameWithoutExtension(contentFile.getName()))
+                    .fileExtension(FileUtils.getFileExtension(contentFile))
+                    .size(contentFile.length())
+                    .ivParameterSpec(AES.encodeIvParameterSpec(AES.generateIv()))
+                    .wrappedKey(AES.wrapKey(masterKey, secretKey))
+                    .payloadFormat(PayloadFormat.CHUNKED_GCM)
+                    .chunkSize(ChunkedAES.CHUNK_SIZE)
+                    .build();
+            if (!memberNames.add(VaultUtil.getMemberName(member))) {
+                throw new Exception("The keyring already contains " + VaultUtil.getMemberName(member) + "!");
+            }
+            secretKeys.add(secretKey);
+            members.add(member);
+        }
+        System.out.println("Generated " + (members.size() + 1) + " keys in " + timer.stop() + "ms.");
+
+        HostProfile hostProfile = CalibrationUtil.getHostProfile();
+        System.out.println("Using " + hostProfile.getSquaringsPerSecond() + " squarings/s measured on host " + hostProfile.getMachineId() + ".");
+
+        System.out.println("Creating puzzle...");
+        timer = MetricsUtil.start(StageType.PUZZLE_CREATION);
+        PuzzleDetails puzzle = VaultService.createPuzzle(masterKey, duration, hostProfile, pinCode);
+        System.out.println("Puzzle created in " + timer.stop() + "ms.");
+
+        EncryptionDetails details = EncryptionDetails.builder()
+                .fileName(keyringName)
+                .date(LocalDate.now())
+                .time(LocalTime.now())
+                .n(puzzle.getN())
+                .t(puzzle.getT())
+                .z(puzzle.getZ())
+                .squaringsPerSecond(hostProfile.getSquaringsPerSecond())
+                .machineId(hostProfile.getMachineId())
+                .pinVerifier(PinUtil.createPinVerifier(password, pinCode, puzzle.getN(), puzzle.getT(), puzzle.getZ()))
+                .chunkSize(ChunkedAES.CHUNK_SIZE)
+                .members(members)
+                .build();
+
+        System.out.println("Encrypting " + members.size() + " files...");
+        long contentSize = members.stream().mapToLong(KeyringMember::getSize).sum();
+        timer = MetricsUtil.start(StageType.CONTAINER_WRITE);
+        if (containerFile.exists()) containerFile.delete();
+        VaultUtil.createKeyring(containerFile, password, details, contentFiles, secretKeys);
+        CatalogService.recordVault(containerFile);
+        for (File contentFile : contentFiles) {
+            VaultService.forceDeleteFile(contentFile);
+        }
+        System.out.println("Encrypted files in " + timer.stop(contentSize) + "ms.");
+
+        return containerFile;
+    }
+
+    /**
+     * Decrypts every member of the keyring into a directory named after the keyring.
+     */
+    public static File decryptMembers(File containerFile, String password, EncryptionDetails details, SecretKey masterKey, File outputDirectory) throws Exception {
+        File keyringDirectory = new File(outputDirectory, details.getFileName());
+        if (!keyringDirectory.isDirectory() && !keyringDirectory.mkdirs()) {
+            throw new Exception("Unable to create " + keyringDirectory.getPath() + "!");
+        }
+        System.out.println("Decrypting " + details.getMembers().size() + " files...");
+        StageTimer timer = MetricsUtil.start(StageType.CONTAINER_EXTRACT);
+        try (ZipFile zipFile = new ZipFile(containerFile, password.toCharArray())) {
+            for (KeyringMember member : details.getMembers()) {
+                decryptMember(zipFile, member, masterKey, keyringDirectory);
+            }
+        }
+        long contentSize = details.getMembers().stream().mapToLong(KeyringMember::getSize).sum();
+        System.out.println("Decrypted files in " + timer.stop(contentSize) + "ms.");
+        return keyringDirectory;
+    }
+
+    /**
+     * Decrypts one member of the keyring into the output directory, leaving the keyring in place.
+     */
+    public static File decryptMember(File containerFile, String password, EncryptionDetails details, SecretKey masterKey,
+                                     String memberName, File outputDirectory) throws Exception {
+        try (ZipFile zipFile = new ZipFile(containerFile, password.toCharArray())) {
+            return decryptMember(zipFile, getMember(details, memberName), masterKey, outputDirectory);
+        }
+    }
+
+    /**
+     * Opens a read-only channel over one decrypted member, see {@link VaultUtil#openDecryptedChannel}.
+     */
+    public static SeekableByteChannel openMember(File containerFile, EncryptionDetails details, SecretKey masterKey, String memberName) throws Exception {
+        KeyringMember member = getMember(details, memberName);
+        return VaultUtil.openDecryptedChannel(containerFile, member, AES.unwrapKey(masterKey, member.getWrappedKey()));
+    }
+
+    private static File decryptMember(ZipFile zipFile, KeyringMember member, SecretKey masterKey, File outputDirectory) throws Exception {
+        SecretKey secretKey = AES.unwrapKey(masterKey, member.getWrappedKey());
+        File contentFile = new File(outputDirectory, VaultUtil.getMemberName(member));
+        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(contentFile), VaultUtil.BUFFER_SIZE)) {
+            VaultUtil.decryptMember(zipFile, member, secretKey, outputStream);
+        }
+        return contentFile;
+    }
+
+    private static KeyringMember getMember(EncryptionDetails details, String memberName) throws Exception {
+        if (details.getMembers() == null) {
+            throw new Exception("The vault is not a keyring!");
+        }
+        return details.getMembers().stream()
+                .filter(member -> VaultUtil.getMemberName(member).equals(memberName))
+                .findFirst()
+                .orElseThrow(() -> new Exception("The keyring does not contain " + memberName + "!"));
+    }
+
+}
@@ -0,0 +1,114 @@
+package no.odit.crypto.service;
+
+import no.odit.crypto.model.EncryptionDetails;
+import no.odit.crypto.model.HostProfile;
+import no.odit.crypto.model.PuzzleDetails;
+import no.odit.crypto.type.PayloadFormat;
+import no.odit.crypto.type.StageType;
+import no.odit.crypto.util.AES;
+import no.odit.crypto.util.CalibrationUtil;
+import no.odit.crypto.util.CheckpointUtil;
+import no.odit.crypto.util.ChunkedAES;
+import no.odit.crypto.util.CompressionUtil;
+import no.odit.crypto.util.HashUtil;
+import no.odit.crypto.util.MetricsUtil;
+import no.odit.crypto.util.PinUtil;
+import no.odit.crypto.util.StageTimer;
+import no.odit.crypto.util.StorageUtil;
+import no.odit.crypto.util.VaultUtil;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.UUID;
+
+/**
+ * Encrypts and decrypts stream vaults between two streams, for pipes where neither the content
+ * nor the vault is ever written to disk. The payload is processed a bounded number of chunks at a
+ * time, and blocking writes to the output hold back reading from the input. Without a key name,
+ * a random one is used, which is kept at the start of the stream vault.
+ */
+public class PipeService {
+
+    public static void encryptStream(InputStream inputStream, OutputStream outputStream, String keyName, BigInteger duration,
+                                     String passphrase, BigInteger pinCode) throws Exception {
+        StageTimer timer;
+
+        if (keyName == null) keyName = "pipe-" + UUID.randomUUID();
+        String password = VaultService.hashPassword(passphrase, keyName);
+
+        System.out.println("Generating keys...");
+        timer = MetricsUtil.start(StageType.KEY_GENERATION);
+        IvParameterSpec iv = AES.generateIv();
+        SecretKey secretKey = AES.generateKey(256);
+        SecretKey puzzleKey = AES.generateKey(256);
+        String wrappedKey = AES.wrapKey(puzzleKey, secretKey);
+        System.out.println("Generated keys in " + timer.stop() + "ms.");
+
+        HostProfile hostProfile = CalibrationUtil.getHostProfile();
+        System.out.println("Using " + hostProfile.getSquaringsPerSecond() + " squarings/s measured on host " + hostProfile.getMachineId() + ".");
+
+        System.out.println("Creating puzzle...");
+        timer = MetricsUtil.start(StageType.PUZZLE_CREATION);
+        PuzzleDetails puzzle = VaultService.createPuzzle(puzzleKey, duration, hostProfile, pinCode);
+        System.out.println("Puzzle created in " + timer.stop() + "ms.");
+
+        EncryptionDetails details = EncryptionDetails.builder()
+                .fileName(keyName)
+                .date(LocalDate.now())
+                .time(LocalTime.now())
+                .ivParameterSpec(AES.encodeIvParameterSpec(iv))
+                .wrappedKey(wrappedKey)
+                .payloadFormat(PayloadFormat.CHUNKED_GCM)
+                .chunkSize(ChunkedAES.CHUNK_SIZE)
+                .compressionCodec(CompressionUtil.CODEC)
+                .compressionLevel(CompressionUtil.CODEC == null ? null : CompressionUtil.LEVEL)
+                .n(puzzle.getN())
+                .t(puzzle.getT())
+                .z(puzzle.getZ())
+                .squaringsPerSecond(hostProfile.getSquaringsPerSecond())
+                .machineId(hostProfile.getMachineId())
+                .pinVerifier(PinUtil.createPinVerifier(password, pinCode, puzzle.getN(), puzzle.getT(), puzzle.getZ()))
+                .build();
+
+        System.out.println("Encrypting stream...");
+        timer = MetricsUtil.start(StageType.CONTAINER_WRITE);
+        VaultUtil.createStreamVault(outputStream, keyName, password, details, secretKey, iv, inputStream);
+        outputStream.flush();
+        System.out.println("Encrypted stream in " + timer.stop() + "ms.");
+    }
+
+    public static void decryptStream(InputStream inputStream, OutputStream outputStream, String passphrase, BigInteger pinCode) throws Exception {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        String keyName = VaultUtil.readStreamKeyName(dataInputStream);
+        String password = VaultService.hashPassword(passphrase, keyName);
+
+        System.out.println("Reading details...");
+        EncryptionDetails details = VaultUtil.readStreamDetails(dataInputStream, password);
+        if (!VaultService.verifyPin(details, password, pinCode)) {
+            throw new Exception("Wrong PIN code!");
+        }
+
+        // Puzzle checkpoints are kept in the data directory, as a stream vault has no file of its own,
+        // named by a hash of the key name, as the key name is read from the stream
+        File checkpointBase = new File(StorageUtil.getDataDirectory(), "stream-" + HashUtil.sha256(keyName));
+        SecretKey secretKey = VaultService.solvePuzzle(checkpointBase, details, pinCode);
+
+        System.out.println("Decrypting stream...");
+        StageTimer timer = MetricsUtil.start(StageType.CONTAINER_EXTRACT);
+        VaultUtil.decryptStreamPayload(dataInputStream, details, secretKey, outputStream);
+        outputStream.flush();
+        System.out.println("Decrypted stream in " + timer.stop() + "ms.");
+
+        for (int layer = 0; layer <= VaultService.getLockedLayers(details); layer++) {
+            CheckpointUtil.getCheckpointFile(checkpointBase, layer).delete();
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package no.odit.crypto.service;
+
+import no.odit.crypto.model.EncryptionDetails;
+import no.odit.crypto.model.HostProfile;
+import no.odit.crypto.model.PuzzleDetails;
+import no.odit.crypto.type.StageType;
+import no.odit.crypto.util.AES;
+import no.odit.crypto.util.CalibrationUtil;
+import no.odit.crypto.util.HeaderUtil;
+import no.odit.crypto.util.MetricsUtil;
+import no.odit.crypto.util.PinUtil;
+import no.odit.crypto.util.StageTimer;
+import no.odit.crypto.util.VaultUtil;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.math.BigInteger;
+
+/**
+ * Changes the passphrase, PIN code or lock time of a vault by rewriting only its header. The payload
+ * key never changes, so none of these need the puzzle to be solved. The PIN code is only added to the
+ * outermost puzzle, and extending the lock time seals the current puzzle under the key of a new one,
+ * so the new puzzle has to be solved before the old one can be started.
+ */
+public class RekeyService {
+
+    public static void rekeyVault(File containerFile, String password, EncryptionDetails details, BigInteger pinCode,
+                                  String newPassword, BigInteger newPinCode, BigInteger extraDuration) throws Exception {
+        StageTimer timer;
+
+        if (extraDuration.signum() > 0) {
+            HostProfile hostProfile = CalibrationUtil.getHostProfile();
+            System.out.println("Using " + hostProfile.getSquaringsPerSecond() + " squarings/s measured on host " + hostProfile.getMachineId() + ".");
+
+            System.out.println("Creating puzzle...");
+            timer = MetricsUtil.start(StageType.PUZZLE_CREATION);
+            extendLock(details, pinCode, extraDuration, hostProfile);
+            System.out.println("Puzzle created in " + timer.stop() + "ms.");
+        }
+
+        details.setZ(details.getZ().subtract(pinCode).add(newPinCode));
+        details.setPinVerifier(PinUtil.createPinVerifier(newPassword, newPinCode, details.getN(), details.getT(), details.getZ()));
+
+        System.out.println("Writing header...");
+        timer = MetricsUtil.start(StageType.HEADER_WRITE);
+        VaultUtil.rewriteDetails(containerFile, password, newPassword, details);
+        CatalogService.recordVault(containerFile);
+        System.out.println("Wrote header in " + timer.stop() + "ms.");
+
+        BigInteger estimate = VaultService.getTotalT(details).divide(CalibrationUtil.getHostProfile().getSquaringsPerSecond());
+        System.out.println("The vault unlocks in about " + estimate + "s on this host.");
+    }
+
+    /**
+     * Locks the current puzzle, without the PIN code, behind a new puzzle for the extra duration.
+     */
+    private static void extendLock(EncryptionDetails details, BigInteger pinCode, BigInteger extraDuration, HostProfile hostProfile) throws Exception {
+        PuzzleDetails lockedPuzzle = PuzzleDetails.builder()
+                .n(details.getN())
+                .t(details.getT())
+                .z(details.getZ().subtract(pinCode))
+                .lockedPuzzle(details.getLockedPuzzle())
+                .build();
+        SecretKey puzzleKey = AES.generateKey(256);
+        PuzzleDetails puzzle = VaultService.createPuzzle(puzzleKey, extraDuration, hostProfile, pinCode);
+
+        details.setLockedPuzzle(HeaderUtil.sealPuzzle(lockedPuzzle, puzzleKey));
+        details.setLockedLayers(VaultService.getLockedLayers(details) + 1);
+        details.setLockedT(VaultService.getTotalT(details));
+        details.setN(puzzle.getN());
+        details.setT(puzzle.getT());
+        details.setZ(puzzle.getZ());
+        details.setSquaringsPerSecond(hostProfile.getSquaringsPerSecond());
+        details.setMachineId(hostProfile.getMachineId());
+    }
+
+}
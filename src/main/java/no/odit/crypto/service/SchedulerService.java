@@ -0,0 +1,194 @@
+package no.odit.crypto.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import no.odit.crypto.model.EncryptionDetails;
+import no.odit.crypto.model.HostProfile;
+import no.odit.crypto.model.PuzzleCheckpoint;
+import no.odit.crypto.model.ScheduledVault;
+import no.odit.crypto.type.ScheduleStatus;
+import no.odit.crypto.util.CalibrationUtil;
+import no.odit.crypto.util.CheckpointUtil;
+import no.odit.crypto.util.JsonUtil;
+import no.odit.crypto.util.StorageUtil;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Solves many vaults at once, one puzzle per thread, starting with the vault that unlocks first.
+ * The queue is saved in the data directory after every change, and solving continues from the
+ * puzzle checkpoints, so an interrupted run picks up where it left off when started again.
+ */
+public class SchedulerService {
+
+    private static final String SCHEDULE_FILE_NAME = "schedule.json";
+    public static int THREADS = Integer.getInteger("crypto.scheduler.threads", Runtime.getRuntime().availableProcessors());
+
+    private static final Object lock = new Object();
+
+    public static void solveVaults(List<File> containerFiles, String passphrase, BigInteger pinCode) throws Exception {
+        List<ScheduledVault> schedule = readSchedule();
+        for (File containerFile : containerFiles) {
+            String path = containerFile.toPath().toAbsolutePath().normalize().toString();
+            ScheduledVault scheduledVault = schedule.stream()
+                    .filter(entry -> entry.getPath().equals(path))
+                    .findFirst()
+                    .orElse(null);
+            if (scheduledVault == null) {
+                schedule.add(ScheduledVault.builder().path(path).status(ScheduleStatus.QUEUED).build());
+            } else {
+                scheduledVault.setStatus(ScheduleStatus.QUEUED);
+                scheduledVault.setMessage(null);
+            }
+        }
+
+        List<ScheduledVault> queued = new ArrayList<>();
+        for (ScheduledVault scheduledVault : schedule) {
+            if (scheduledVault.getStatus() == ScheduleStatus.DONE || scheduledVault.getStatus() == ScheduleStatus.FAILED) continue;
+            if (!new File(scheduledVault.getPath()).exists()) {
+                scheduledVault.setStatus(ScheduleStatus.FAILED);
+                scheduledVault.setMessage("The vault does not exist!");
+                continue;
+            }
+            scheduledVault.setStatus(ScheduleStatus.QUEUED);
+            queued.add(scheduledVault);
+        }
+        saveSchedule(schedule);
+        if (queued.isEmpty()) {
+            System.out.println("No vaults to solve.");
+            return;
+        }
+
+        HostProfile hostProfile = CalibrationUtil.getHostProfile();
+        System.out.println("Scheduling " + queued.size() + " vaults on " + THREADS + " threads...");
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            // Vaults encrypted in a batch with a shared password only need it derived once
+            Map<String, String> passwords = new ConcurrentHashMap<>();
+            List<Future<Job>> preparations = new ArrayList<>();
+            for (ScheduledVault scheduledVault : queued) {
+                preparations.add(executor.submit(() -> prepare(schedule, scheduledVault, passwords, passphrase, pinCode, hostProfile)));
+            }
+            List<Job> jobs = new ArrayList<>();
+            for (Future<Job> preparation : preparations) {
+                Job job = preparation.get();
+                if (job != null) jobs.add(job);
+            }
+
+            jobs.sort(Comparator.comparing(job -> job.scheduledVault.getRemainingSeconds()));
+            List<Future<?>> solves = new ArrayList<>();
+            for (Job job : jobs) {
+                solves.add(executor.submit(() -> solve(schedule, job, pinCode)));
+            }
+            for (Future<?> solve : solves) {
+                solve.get();
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        long done = schedule.stream().filter(entry -> entry.getStatus() == ScheduleStatus.DONE).count();
+        long failed = schedule.stream().filter(entry -> entry.getStatus() == ScheduleStatus.FAILED).count();
+        System.out.println("Scheduler finished with " + done + " solved and " + failed + " failed vaults.");
+    }
+
+    private static Job prepare(List<ScheduledVault> schedule, ScheduledVault scheduledVault, Map<String, String> passwords,
+                               String passphrase, BigInteger pinCode, HostProfile hostProfile) {
+        try {
+            File containerFile = new File(scheduledVault.getPath());
+            String keyName = VaultService.readKeyName(containerFile);
+            String password = passwords.computeIfAbsent(keyName, name -> VaultService.hashPassword(passphrase, name));
+            EncryptionDetails details = VaultService.readDetails(containerFile, password);
+            if (!VaultService.verifyPin(details, password, pinCode)) {
+                throw new Exception("Wrong PIN code!");
+            }
+
+            BigInteger remaining = VaultService.getTotalT(details);
+            File checkpointFile = CheckpointUtil.getCheckpointFile(containerFile, VaultService.getLockedLayers(details));
+            PuzzleCheckpoint checkpoint = CheckpointUtil.readCheckpoint(checkpointFile, details.getN(), details.getT());
+            if (checkpoint != null) remaining = remaining.subtract(BigInteger.valueOf(checkpoint.getIteration()));
+            long remainingSeconds = remaining.divide(hostProfile.getSquaringsPerSecond()).longValueExact();
+            update(schedule, scheduledVault, ScheduleStatus.QUEUED, remainingSeconds, null);
+            System.out.println("Queued " + containerFile.getName() + ", unlocks in about " + remainingSeconds + "s.");
+            return new Job(scheduledVault, containerFile, password, details);
+        } catch (Exception exception) {
+            update(schedule, scheduledVault, ScheduleStatus.FAILED, scheduledVault.getRemainingSeconds(), exception.getMessage());
+            System.out.println("Failed to queue " + scheduledVault.getPath() + ": " + exception.getMessage());
+            return null;
+        }
+    }
+
+    private static void solve(List<ScheduledVault> schedule, Job job, BigInteger pinCode) {
+        ScheduledVault scheduledVault = job.scheduledVault;
+        try {
+            update(schedule, scheduledVault, ScheduleStatus.SOLVING, scheduledVault.getRemainingSeconds(), null);
+            System.out.println("Solving " + job.containerFile.getName() + "...");
+            File outputDirectory = job.containerFile.getAbsoluteFile().getParentFile();
+            File contentFile = VaultService.decryptFile(job.containerFile, job.password, job.details, pinCode, outputDirectory);
+            update(schedule, scheduledVault, ScheduleStatus.DONE, 0L, "Decrypted to " + contentFile.getPath());
+            System.out.println("Unlocked " + job.containerFile.getName() + " to " + contentFile.getName() + ".");
+        } catch (Exception exception) {
+            update(schedule, scheduledVault, ScheduleStatus.FAILED, scheduledVault.getRemainingSeconds(), exception.getMessage());
+            System.out.println("Failed to solve " + job.containerFile.getName() + ": " + exception.getMessage());
+        }
+    }
+
+    private static void update(List<ScheduledVault> schedule, ScheduledVault scheduledVault, ScheduleStatus status, Long remainingSeconds, String message) {
+        synchronized (lock) {
+            scheduledVault.setStatus(status);
+            scheduledVault.setRemainingSeconds(remainingSeconds);
+            scheduledVault.setExpectedUnlock(remainingSeconds == null ? null : LocalDateTime.now().plusSeconds(remainingSeconds));
+            scheduledVault.setMessage(message);
+            try {
+                saveSchedule(schedule);
+            } catch (Exception exception) {
+                System.out.println("Unable to save schedule: " + exception.getMessage());
+            }
+        }
+    }
+
+    public static List<ScheduledVault> readSchedule() throws Exception {
+        File scheduleFile = getScheduleFile();
+        if (!scheduleFile.exists()) return new ArrayList<>();
+        return JsonUtil.getObjectMapper().readValue(scheduleFile, new TypeReference<ArrayList<ScheduledVault>>() {
+        });
+    }
+
+    private static void saveSchedule(List<ScheduledVault> schedule) throws Exception {
+        synchronized (lock) {
+            StorageUtil.writeAtomically(getScheduleFile(), JsonUtil.getObjectMapper().writeValueAsBytes(schedule));
+        }
+    }
+
+    private static File getScheduleFile() {
+        return new File(StorageUtil.getDataDirectory(), SCHEDULE_FILE_NAME);
+    }
+
+    private static class Job {
+
+        private final ScheduledVault scheduledVault;
+        private final File containerFile;
+        private final String password;
+        private final EncryptionDetails details;
+
+        private Job(ScheduledVault scheduledVault, File containerFile, String password, EncryptionDetails details) {
+            this.scheduledVault = scheduledVault;
+            this.containerFile = containerFile;
+            this.password = password;
+            this.details = details;
+        }
+
+    }
+
+}
@@ -0,0 +1,335 @@
+package no.odit.crypto.service;
+
+import at.favre.lib.crypto.bcrypt.BCrypt;
+import net.lingala.zip4j.ZipFile;
+import net.lingala.zip4j.util.FileUtils;
+import no.odit.crypto.model.EncryptionDetails;
+import no.odit.crypto.model.HostProfile;
+import no.odit.crypto.model.PuzzleDetails;
+import no.odit.crypto.type.PayloadFormat;
+import no.odit.crypto.type.StageType;
+import no.odit.crypto.util.AES;
+import no.odit.crypto.util.CalibrationUtil;
+import no.odit.crypto.util.CheckpointUtil;
+import no.odit.crypto.util.ChunkStore;
+import no.odit.crypto.util.ChunkedAES;
+import no.odit.crypto.util.CompressionUtil;
+import no.odit.crypto.util.HeaderUtil;
+import no.odit.crypto.util.InPlaceVault;
+import no.odit.crypto.util.KeyCache;
+import no.odit.crypto.util.MetricsUtil;
+import no.odit.crypto.util.PinUtil;
+import no.odit.crypto.util.StageTimer;
+import no.odit.crypto.util.TimeLockPuzzle;
+import no.odit.crypto.util.VaultUtil;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static no.odit.crypto.CryptoApp.APPLICATION_ID;
+
+public class VaultService {
+
+    public static final String VAULT_FILE_EXTENSION = ".vault";
+    private static final byte[] SALT_CACHE_TAG = "salt".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PASSWORD_CACHE_TAG = "password".getBytes(StandardCharsets.UTF_8);
+
+    private static List<File> deleteQueue = Collections.synchronizedList(new ArrayList<>());
+
+    public static File encryptFile(File contentFile, BigInteger duration, String passphrase, BigInteger pinCode) throws Exception {
+        String fileName = FileUtils.getFileNameWithoutExtension(contentFile.getName());
+        return encryptFile(contentFile, new File(fileName + VAULT_FILE_EXTENSION), duration, passphrase, pinCode);
+    }
+
+    public static File encryptFile(File contentFile, File containerFile, BigInteger duration, String passphrase, BigInteger pinCode) throws Exception {
+        StageTimer timer;
+
+        String fileName = FileUtils.getFileNameWithoutExtension(containerFile.getName());
+        String password = hashPassword(passphrase, fileName);
+
+        System.out.println("Preparing files...");
+
+        System.out.println("Generating keys...");
+        timer = MetricsUtil.start(StageType.KEY_GENERATION);
+        IvParameterSpec iv = AES.generateIv();
+        SecretKey secretKey = AES.generateKey(256);
+        SecretKey puzzleKey = AES.generateKey(256);
+        String wrappedKey = AES.wrapKey(puzzleKey, secretKey);
+        System.out.println("Generated keys in " + timer.stop() + "ms.");
+
+        HostProfile hostProfile = CalibrationUtil.getHostProfile();
+        System.out.println("Using " + hostProfile.getSquaringsPerSecond() + " squarings/s measured on host " + hostProfile.getMachineId() + ".");
+
+        System.out.println("Creating puzzle...");
+        timer = MetricsUtil.start(StageType.PUZZLE_CREATION);
+        PuzzleDetails puzzle = createPuzzle(puzzleKey, duration, hostProfile, pinCode);
+        System.out.println("Puzzle created in " + timer.stop() + "ms.");
+
+        EncryptionDetails details = createDetails(contentFile, password, iv, wrappedKey, puzzle, hostProfile, pinCode);
+
+        System.out.println("Encrypting file...");
+        long contentSize = contentFile.length();
+        timer = MetricsUtil.start(StageType.CONTAINER_WRITE);
+        writeVault(contentFile, containerFile, null, password, details, secretKey, iv);
+        System.out.println("Encrypted file in " + timer.stop(contentSize) + "ms.");
+
+        return containerFile;
+    }
+
+    /**
+     * Creates a puzzle that locks the secret key for the duration on this host, with the PIN code added to z.
+     */
+    public static PuzzleDetails createPuzzle(SecretKey secretKey, BigInteger duration, HostProfile hostProfile, BigInteger pinCode) throws Exception {
+        PuzzleDetails puzzle = TimeLockPuzzle.createPuzzle(AES.encodeSecretKey(secretKey), duration, hostProfile.getSquaringsPerSecond());
+        puzzle.setZ(puzzle.getZ().add(pinCode));
+        return puzzle;
+    }
+
+    /**
+     * Creates the details of a vault whose payload key is wrapped under the key locked by the puzzle.
+     */
+    public static EncryptionDetails createDetails(File contentFile, String password, IvParameterSpec iv, String wrappedKey,
+                                                  PuzzleDetails puzzle, HostProfile hostProfile, BigInteger pinCode) throws Exception {
+        return EncryptionDetails.builder()
+                .fileName(FileUtils.getFileNameWithoutExtension(contentFile.getName()))
+                .fileExtension(FileUtils.getFileExtension(contentFile))
+                .date(LocalDate.now())
+                .time(LocalTime.now())
+                .ivParameterSpec(AES.encodeIvParameterSpec(iv))
+                .wrappedKey(wrappedKey)
+                .payloadFormat(ChunkStore.ENABLED ? PayloadFormat.CHUNK_STORE : PayloadFormat.CHUNKED_GCM)
+                .chunkSize(ChunkedAES.CHUNK_SIZE)
+                .compressionCodec(CompressionUtil.CODEC)
+                .compressionLevel(CompressionUtil.CODEC == null ? null : CompressionUtil.LEVEL)
+                .n(puzzle.getN())
+                .t(puzzle.getT())
+                .z(puzzle.getZ())
+                .squaringsPerSecond(hostProfile.getSquaringsPerSecond())
+                .machineId(hostProfile.getMachineId())
+                .pinVerifier(PinUtil.createPinVerifier(password, pinCode, puzzle.getN(), puzzle.getT(), puzzle.getZ()))
+                .build();
+    }
+
+    /**
+     * Encrypts the content into the vault, records the vault in the catalog and deletes the content.
+     * The key name is recorded in the vault when the password is not derived from the vault file
+     * name. Compressed content is encrypted as it is compressed. Deduplicated content is written to the chunk
+     * store, and the vault only holds the manifest of its chunks.
+     */
+    public static void writeVault(File contentFile, File containerFile, String keyName, String password,
+                                  EncryptionDetails details, SecretKey secretKey, IvParameterSpec iv) throws Exception {
+        if (InPlaceService.getInterruptedMode(contentFile) != null) {
+            throw new Exception("The in-place encryption of " + contentFile.getName() + " was interrupted, resume or roll it back first!");
+        }
+        if (containerFile.exists()) containerFile.delete();
+        if (details.getPayloadFormat() == PayloadFormat.CHUNK_STORE) {
+            ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+            File reference = ChunkStore.createPendingReference();
+            long storedBytes;
+            try (InputStream inputStream = new FileInputStream(contentFile)) {
+                int level = details.getCompressionLevel() == null ? 0 : details.getCompressionLevel();
+                storedBytes = ChunkStore.writeChunks(inputStream, manifest, details.getCompressionCodec(), level, reference);
+            }
+            System.out.println("Stored " + storedBytes + " of " + contentFile.length() + " bytes as new chunks.");
+            VaultUtil.createVault(containerFile, keyName, password, details, secretKey, iv, new ByteArrayInputStream(manifest.toByteArray()), manifest.size());
+            ChunkStore.commitReference(reference, details.getPayloadRoot());
+            System.out.println("The vault can only be decrypted on this host, as its chunks are kept in " + ChunkStore.getStoreDirectory() + ".");
+        } else if (details.getCompressionCodec() != null) {
+            try (InputStream inputStream = new FileInputStream(contentFile)) {
+                VaultUtil.createCompressedVault(containerFile, keyName, password, details, secretKey, iv, inputStream, contentFile.length());
+            }
+        } else {
+            try (InputStream inputStream = new FileInputStream(contentFile)) {
+                VaultUtil.createVault(containerFile, keyName, password, details, secretKey, iv, inputStream, contentFile.length());
+            }
+        }
+        CatalogService.recordVault(containerFile);
+        forceDeleteFile(contentFile);
+    }
+
+    /**
+     * Returns the name the vault password is derived from. This is the vault file name, unless
+     * the vault was encrypted in a batch that shares one password.
+     */
+    public static String readKeyName(File containerFile) throws Exception {
+        if (InPlaceVault.isInPlaceVault(containerFile)) return FileUtils.getFileNameWithoutExtension(containerFile.getName());
+        try (ZipFile zipFile = new ZipFile(containerFile)) {
+            String keyName = VaultUtil.readKeyName(zipFile);
+            return keyName != null ? keyName : FileUtils.getFileNameWithoutExtension(containerFile.getName());
+        }
+    }
+
+    public static EncryptionDetails readDetails(File containerFile, String password) throws Exception {
+        System.out.println("Reading details...");
+        return VaultUtil.readDetails(containerFile, password);
+    }
+
+    public static boolean verifyPin(EncryptionDetails details, String password, BigInteger pinCode) throws Exception {
+        return details.getPinVerifier() == null
+                || PinUtil.verifyPin(details.getPinVerifier(), password, pinCode, details.getN(), details.getT(), details.getZ());
+    }
+
+    /**
+     * Solves the puzzle of the vault, decrypts the content into the output directory and deletes the vault.
+     * The members of a keyring vault are decrypted into a directory named after the keyring.
+     */
+    public static File decryptFile(File containerFile, String password, EncryptionDetails details, BigInteger pinCode, File outputDirectory) throws Exception {
+        if (details.getPayloadFormat() == PayloadFormat.IN_PLACE_GCM) {
+            File contentFile = InPlaceService.decryptVault(containerFile, password, details, pinCode);
+            removeVault(containerFile, details);
+            return contentFile;
+        }
+        SecretKey secretKey = solvePuzzle(containerFile, details, pinCode);
+
+        File contentFile;
+        if (details.getMembers() != null) {
+            contentFile = KeyringService.decryptMembers(containerFile, password, details, secretKey, outputDirectory);
+        } else {
+            contentFile = new File(outputDirectory, details.getFileName() + "." + details.getFileExtension());
+            System.out.println("Decrypting file...");
+            StageTimer timer = MetricsUtil.start(StageType.CONTAINER_EXTRACT);
+            try (ZipFile zipFile = new ZipFile(containerFile, password.toCharArray());
+                 OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(contentFile), VaultUtil.BUFFER_SIZE)) {
+                VaultUtil.decryptPayload(zipFile, details, secretKey, outputStream);
+            }
+            System.out.println("Decrypted file in " + timer.stop(contentFile.length()) + "ms.");
+        }
+        forceDeleteFile(containerFile);
+        removeVault(containerFile, details);
+
+        return contentFile;
+    }
+
+    /**
+     * Removes the decrypted vault from the catalog and deletes its puzzle checkpoints, and the
+     * chunks of a deduplicated vault that no other vault uses.
+     */
+    private static void removeVault(File containerFile, EncryptionDetails details) throws Exception {
+        CatalogService.removeVault(containerFile);
+        if (details.getPayloadFormat() == PayloadFormat.CHUNK_STORE && details.getPayloadRoot() != null) {
+            ChunkStore.removeReference(details.getPayloadRoot());
+        }
+        for (int layer = 0; layer <= getLockedLayers(details); layer++) {
+            forceDeleteFile(CheckpointUtil.getCheckpointFile(containerFile, layer));
+        }
+    }
+
+    /**
+     * Solves the puzzle of the vault and returns the secret key, which is the master key of a keyring vault.
+     * When the lock time was extended, every puzzle yields the key of the puzzle it locks, and the
+     * payload key is unwrapped with the key of the innermost puzzle.
+     */
+    public static SecretKey solvePuzzle(File containerFile, EncryptionDetails details, BigInteger pinCode) throws Exception {
+        if (details.getSquaringsPerSecond() != null) {
+            System.out.println("Puzzle was tuned for " + details.getSquaringsPerSecond() + " squarings/s on host " + details.getMachineId() + ".");
+        }
+        HostProfile hostProfile = CalibrationUtil.getHostProfile();
+        BigInteger estimate = getTotalT(details).divide(hostProfile.getSquaringsPerSecond());
+        System.out.println("Solving puzzle... (estimated " + estimate + "s on this host)");
+        StageTimer timer = MetricsUtil.start(StageType.PUZZLE_SOLVING);
+        PuzzleDetails puzzle = PuzzleDetails.builder()
+                .n(details.getN())
+                .t(details.getT())
+                .z(details.getZ().subtract(pinCode))
+                .lockedPuzzle(details.getLockedPuzzle())
+                .build();
+        SecretKey secretKey = null;
+        for (int layer = getLockedLayers(details); layer >= 0; layer--) {
+            if (secretKey != null) {
+                System.out.println("Solving locked puzzle... (" + layer + " left after this)");
+                puzzle = HeaderUtil.openPuzzle(puzzle.getLockedPuzzle(), secretKey);
+            }
+            File checkpointFile = CheckpointUtil.getCheckpointFile(containerFile, layer);
+            BigInteger w = TimeLockPuzzle.solveW(puzzle.getN(), puzzle.getT(), checkpointFile);
+            if (layer > 0) {
+                // A solved outer puzzle is kept as a finished checkpoint, so it is not solved again on resume
+                CheckpointUtil.writeCheckpoint(checkpointFile, puzzle.getN(), puzzle.getT(), puzzle.getT().longValueExact(), w);
+            }
+            secretKey = AES.decodeSecretKey(TimeLockPuzzle.getSecret(w, puzzle.getZ()));
+        }
+        System.out.println("Solved puzzle in " + (timer.stop() / 1000) + "s.");
+
+        if (details.getWrappedKey() == null) return secretKey;
+        System.out.println("Unwrapping secret key...");
+        return AES.unwrapKey(secretKey, details.getWrappedKey());
+    }
+
+    /**
+     * Returns the squarings needed to solve the vault, including the puzzles locked by its puzzle.
+     */
+    public static BigInteger getTotalT(EncryptionDetails details) {
+        return details.getLockedT() == null ? details.getT() : details.getT().add(details.getLockedT());
+    }
+
+    public static int getLockedLayers(EncryptionDetails details) {
+        return details.getLockedLayers() == null ? 0 : details.getLockedLayers();
+    }
+
+    public static String hashPassword(String passphrase, String fileName) {
+        System.out.println("Hashing password...");
+        StageTimer timer = MetricsUtil.start(StageType.PASSWORD_HASHING);
+        String password = derivePassword(passphrase, fileName);
+        System.out.println("Hashed password in " + timer.stop() + "ms.");
+        return password;
+    }
+
+    /**
+     * Derives the vault password from the passphrase, with a salt derived from the file name. Both
+     * bcrypt results are kept in the {@link KeyCache}, so repeated derivations in one process are free.
+     */
+    public static String derivePassword(String passphrase, String fileName) {
+        byte[] fileNameBytes = fileName.getBytes(StandardCharsets.UTF_8);
+        byte[] saltBytes = KeyCache.get(SALT_CACHE_TAG, fileNameBytes);
+        if (saltBytes == null) {
+            byte[] applicationIdBytes = APPLICATION_ID.getBytes(StandardCharsets.UTF_8);
+            byte[] salt = BCrypt.withDefaults().hash(16, applicationIdBytes, fileNameBytes);
+            saltBytes = Arrays.copyOfRange(salt, 16, 32);
+            KeyCache.put(saltBytes, SALT_CACHE_TAG, fileNameBytes);
+        }
+        byte[] passphraseBytes = passphrase.getBytes(StandardCharsets.UTF_8);
+        byte[] passwordBytes = KeyCache.get(PASSWORD_CACHE_TAG, saltBytes, passphraseBytes);
+        if (passwordBytes == null) {
+            passwordBytes = BCrypt.withDefaults().hash(16, saltBytes, passphraseBytes);
+            KeyCache.put(passwordBytes, PASSWORD_CACHE_TAG, saltBytes, passphraseBytes);
+        }
+        String password = new String(passwordBytes, StandardCharsets.UTF_8);
+        Arrays.fill(passphraseBytes, (byte) 0);
+        Arrays.fill(passwordBytes, (byte) 0);
+        return password;
+    }
+
+    public static void forceDeleteFile(File file) throws Exception {
+        try {
+            // Only files that could not be deleted now are retried on exit
+            if (!file.delete() && file.exists()) deleteQueue.add(file);
+        } catch (Exception exception) {
+            Files.setAttribute(file.toPath(), "dos:hidden", true);
+            throw exception;
+        }
+    }
+
+    public static void deleteQueuedFiles() {
+        synchronized (deleteQueue) {
+            deleteQueue.forEach(file -> file.delete());
+            deleteQueue.clear();
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package no.odit.crypto.service;
+
+import no.odit.crypto.model.EncryptionDetails;
+import no.odit.crypto.type.PayloadFormat;
+import no.odit.crypto.util.ChunkStore;
+import no.odit.crypto.util.VaultUtil;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Checks vaults for corruption by hashing their stored payload and comparing the root of the hash
+ * tree with the root in the header. Neither the passphrase nor the puzzle is needed, so vaults can
+ * be checked long before they unlock. The sealed part of the header is only checked when the vault
+ * is opened, and vaults of older versions have no hash tree to check. The hash tree of a deduplicated
+ * vault only covers its manifest, and its chunks are sealed under keys in the manifest, so only their
+ * presence in the chunk store is checked and such vaults are not counted as verified.
+ */
+public class VerifyService {
+
+    /**
+     * Verifies every vault and returns the number of vaults that failed.
+     */
+    public static int verifyVaults(List<File> containerFiles) {
+        int verified = 0;
+        int failed = 0;
+        int skipped = 0;
+        int manifestOnly = 0;
+        for (File containerFile : containerFiles) {
+            try {
+                if (InPlaceService.getInterruptedMode(containerFile) != null) {
+                    System.out.println(containerFile.getName() + ": the in-place decryption was interrupted, decrypt it again to finish.");
+                    failed++;
+                    continue;
+                }
+                EncryptionDetails details = VaultUtil.readPublicDetails(containerFile);
+                if (details == null || details.getPayloadRoot() == null) {
+                    System.out.println(containerFile.getName() + ": no hash tree, the vault was created by an older version.");
+                    skipped++;
+                    continue;
+                }
+                long started = System.currentTimeMillis();
+                byte[] root = VaultUtil.hashPayload(containerFile, details.getChunkSize());
+                long elapsed = System.currentTimeMillis() - started;
+                if (!MessageDigest.isEqual(root, Base64.getDecoder().decode(details.getPayloadRoot()))) {
+                    System.out.println(containerFile.getName() + ": the payload is corrupt!");
+                    failed++;
+                } else if (details.getPayloadFormat() == PayloadFormat.CHUNK_STORE) {
+                    if (checkChunks(containerFile, details)) manifestOnly++;
+                    else failed++;
+                } else {
+                    System.out.println(containerFile.getName() + ": verified " + containerFile.length() + " bytes in " + elapsed + "ms.");
+                    verified++;
+                }
+            } catch (Exception exception) {
+                System.out.println(containerFile.getName() + ": failed to verify, " + exception.getMessage());
+                failed++;
+            }
+        }
+        System.out.println("Verified " + verified + " vaults, " + failed + " failed, " + skipped + " without a hash tree and "
+                + manifestOnly + " deduplicated with only the manifest checked.");
+        return failed;
+    }
+
+    /**
+     * Checks that every chunk named by the reference of a deduplicated vault is in the chunk store.
+     */
+    private static boolean checkChunks(File containerFile, EncryptionDetails details) throws Exception {
+        List<File> chunkFiles = ChunkStore.getChunkFiles(details.getPayloadRoot());
+        if (chunkFiles == null) {
+            System.out.println(containerFile.getName() + ": manifest only, the vault has no chunk reference on this host, its chunks are checked when it is decrypted.");
+            return true;
+        }
+        long missing = chunkFiles.stream().filter(chunkFile -> !chunkFile.isFile()).count();
+        if (missing > 0) {
+            System.out.println(containerFile.getName() + ": " + missing + " of " + chunkFiles.size() + " chunks are missing from the chunk store!");
+            return false;
+        }
+        System.out.println(containerFile.getName() + ": manifest only, all " + chunkFiles.size() + " chunks are in the chunk store, their content is checked when the vault is decrypted.");
+        return true;
+    }
+
+}
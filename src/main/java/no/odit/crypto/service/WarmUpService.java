@@ -0,0 +1,81 @@
+package no.odit.crypto.service;
+
+import at.favre.lib.crypto.bcrypt.BCrypt;
+import no.odit.crypto.model.EncryptionDetails;
+import no.odit.crypto.model.HostProfile;
+import no.odit.crypto.model.PuzzleDetails;
+import no.odit.crypto.util.AES;
+import no.odit.crypto.util.CalibrationUtil;
+import no.odit.crypto.util.JsonUtil;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Encrypts and decrypts a small file in a temporary data directory, as the training run for the
+ * class data sharing archive, so the classes used by short operations are in the archive. The
+ * passphrase is hashed with a low cost and the host is calibrated for a second, as only the code
+ * paths matter and not the results.
+ */
+public class WarmUpService {
+
+    private static final String PASSPHRASE = "warm-up";
+    private static final BigInteger PIN_CODE = BigInteger.valueOf(1234);
+
+    public static void warmUp() throws Exception {
+        Path directory = Files.createTempDirectory("crypto-warm-up");
+        String dataDirectory = System.getProperty("crypto.home");
+        long calibrationSeconds = CalibrationUtil.CALIBRATION_SECONDS;
+        System.setProperty("crypto.home", directory.toString());
+        CalibrationUtil.CALIBRATION_SECONDS = 1;
+        try {
+            File contentFile = directory.resolve("warm-up.bin").toFile();
+            File containerFile = directory.resolve("warm-up" + VaultService.VAULT_FILE_EXTENSION).toFile();
+            byte[] content = new byte[1024 * 1024];
+            new SecureRandom().nextBytes(content);
+            Files.write(contentFile.toPath(), content);
+
+            byte[] salt = new byte[16];
+            String password = new String(BCrypt.withDefaults().hash(4, salt, PASSPHRASE.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+            HostProfile hostProfile = CalibrationUtil.getHostProfile();
+
+            IvParameterSpec iv = AES.generateIv();
+            SecretKey secretKey = AES.generateKey(256);
+            SecretKey puzzleKey = AES.generateKey(256);
+            PuzzleDetails puzzle = VaultService.createPuzzle(puzzleKey, BigInteger.ONE, hostProfile, PIN_CODE);
+            EncryptionDetails details = VaultService.createDetails(contentFile, password, iv, AES.wrapKey(puzzleKey, secretKey), puzzle, hostProfile, PIN_CODE);
+            VaultService.writeVault(contentFile, containerFile, null, password, details, secretKey, iv);
+
+            CatalogService.printVaults(0);
+            if (VerifyService.verifyVaults(List.of(containerFile)) != 0) throw new Exception("The vault is corrupt!");
+            VaultService.readKeyName(containerFile);
+            details = VaultService.readDetails(containerFile, password);
+            if (!VaultService.verifyPin(details, password, PIN_CODE)) throw new Exception("Wrong PIN code!");
+            File decryptedFile = VaultService.decryptFile(containerFile, password, details, PIN_CODE, directory.toFile());
+            if (!Arrays.equals(Files.readAllBytes(decryptedFile.toPath()), content)) {
+                throw new Exception("The decrypted file does not match!");
+            }
+            JsonUtil.getObjectMapper().writeValueAsBytes(details);
+            // Written while the scratch directory is the data directory, so the real catalog is not touched
+            CatalogService.flush();
+        } finally {
+            CalibrationUtil.CALIBRATION_SECONDS = calibrationSeconds;
+            if (dataDirectory == null) System.clearProperty("crypto.home");
+            else System.setProperty("crypto.home", dataDirectory);
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+}
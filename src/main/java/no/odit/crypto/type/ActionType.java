@@ -6,4 +6,22 @@ public enum ActionType {
 
     DECRYPT_FILE,
 
-}
\ No newline at end of file
+    CALIBRATE_HOST,
+
+    SCHEDULE_VAULTS,
+
+    ENCRYPT_FILES,
+
+    CREATE_KEYRING,
+
+    REKEY_VAULT,
+
+    START_DAEMON,
+
+    CATALOG_VAULTS,
+
+    VERIFY_VAULTS,
+
+    ENCRYPT_IN_PLACE,
+
+}
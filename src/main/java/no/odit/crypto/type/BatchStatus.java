@@ -0,0 +1,11 @@
+package no.odit.crypto.type;
+
+public enum BatchStatus {
+
+    QUEUED,
+
+    DONE,
+
+    FAILED,
+
+}
@@ -0,0 +1,7 @@
+package no.odit.crypto.type;
+
+public enum CompressionCodec {
+
+    DEFLATE,
+
+}
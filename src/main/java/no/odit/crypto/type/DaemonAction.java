@@ -0,0 +1,13 @@
+package no.odit.crypto.type;
+
+public enum DaemonAction {
+
+    SUBMIT,
+
+    STATUS,
+
+    LIST,
+
+    SHUTDOWN,
+
+}
@@ -0,0 +1,13 @@
+package no.odit.crypto.type;
+
+public enum JobStatus {
+
+    QUEUED,
+
+    RUNNING,
+
+    DONE,
+
+    FAILED,
+
+}
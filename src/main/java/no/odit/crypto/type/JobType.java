@@ -0,0 +1,9 @@
+package no.odit.crypto.type;
+
+public enum JobType {
+
+    ENCRYPT,
+
+    DECRYPT,
+
+}
@@ -0,0 +1,9 @@
+package no.odit.crypto.type;
+
+public enum JournalMode {
+
+    ENCRYPTION,
+
+    DECRYPTION,
+
+}
@@ -0,0 +1,13 @@
+package no.odit.crypto.type;
+
+public enum PayloadFormat {
+
+    CBC,
+
+    CHUNKED_GCM,
+
+    CHUNK_STORE,
+
+    IN_PLACE_GCM,
+
+}
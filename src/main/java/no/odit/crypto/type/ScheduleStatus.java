@@ -0,0 +1,13 @@
+package no.odit.crypto.type;
+
+public enum ScheduleStatus {
+
+    QUEUED,
+
+    SOLVING,
+
+    DONE,
+
+    FAILED,
+
+}
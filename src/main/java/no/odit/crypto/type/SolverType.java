@@ -0,0 +1,9 @@
+package no.odit.crypto.type;
+
+public enum SolverType {
+
+    BIG_INTEGER,
+
+    MONTGOMERY,
+
+}
@@ -0,0 +1,31 @@
+package no.odit.crypto.type;
+
+public enum StageType {
+
+    PASSWORD_HASHING,
+
+    KEY_GENERATION,
+
+    PUZZLE_CREATION,
+
+    PUZZLE_SOLVING,
+
+    COMPRESSION,
+
+    DECOMPRESSION,
+
+    ENCRYPTION,
+
+    DECRYPTION,
+
+    CONTAINER_WRITE,
+
+    CONTAINER_EXTRACT,
+
+    HEADER_WRITE,
+
+    DEDUPLICATION,
+
+    VERIFICATION,
+
+}
@@ -5,15 +5,24 @@ import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.SecureRandom;
 import java.security.spec.KeySpec;
 import java.util.Base64;
 
 public class AES {
 
+    public static int BUFFER_SIZE = Integer.getInteger("crypto.buffer.size", 1024 * 1024);
+    public static boolean DIRECT_BUFFERS = Boolean.getBoolean("crypto.buffer.direct");
+    public static long MAPPED_THRESHOLD = Long.getLong("crypto.mapped.threshold", 256L * 1024 * 1024);
+    private static final long MAPPED_REGION_SIZE = 256L * 1024 * 1024;
+
     @Deprecated
     public static String encrypt(String algorithm, String input, SecretKey key, IvParameterSpec iv) throws Exception {
         Cipher cipher = Cipher.getInstance(algorithm);
@@ -54,30 +63,29 @@ public class AES {
     public static void encryptFile(String algorithm, SecretKey key, IvParameterSpec iv, File inputFile, File outputFile) throws Exception {
         Cipher cipher = Cipher.getInstance(algorithm);
         cipher.init(Cipher.ENCRYPT_MODE, key, iv);
-        FileInputStream inputStream = new FileInputStream(inputFile);
-        FileOutputStream outputStream = new FileOutputStream(outputFile);
-        byte[] buffer = new byte[64];
-        int bytesRead;
-        while ((bytesRead = inputStream.read(buffer)) != -1) {
-            byte[] output = cipher.update(buffer, 0, bytesRead);
-            if (output != null) {
-                outputStream.write(output);
-            }
-        }
-        byte[] outputBytes = cipher.doFinal();
-        if (outputBytes != null) {
-            outputStream.write(outputBytes);
-        }
-        inputStream.close();
-        outputStream.close();
+        processFile(cipher, inputFile, outputFile);
     }
 
-
     public static SecretKey decodeSecretKey(String encodedKey) {
         byte[] decodedKey = Base64.getDecoder().decode(encodedKey);
         return new SecretKeySpec(decodedKey, 0, decodedKey.length, "AES");
     }
 
+    /**
+     * Wraps the key under the wrapping key with the AES key wrap algorithm (RFC 3394).
+     */
+    public static String wrapKey(SecretKey wrappingKey, SecretKey secretKey) throws Exception {
+        Cipher cipher = Cipher.getInstance("AESWrap");
+        cipher.init(Cipher.WRAP_MODE, wrappingKey);
+        return Base64.getEncoder().encodeToString(cipher.wrap(secretKey));
+    }
+
+    public static SecretKey unwrapKey(SecretKey wrappingKey, String wrappedKey) throws Exception {
+        Cipher cipher = Cipher.getInstance("AESWrap");
+        cipher.init(Cipher.UNWRAP_MODE, wrappingKey);
+        return (SecretKey) cipher.unwrap(Base64.getDecoder().decode(wrappedKey), "AES", Cipher.SECRET_KEY);
+    }
+
     public static String encodeSecretKey(SecretKey secretKey) {
         return Base64.getEncoder().encodeToString(secretKey.getEncoded());
     }
@@ -94,22 +102,82 @@ public class AES {
     public static void decryptFile(String algorithm, SecretKey key, IvParameterSpec iv, File encryptedFile, File decryptedFile) throws Exception {
         Cipher cipher = Cipher.getInstance(algorithm);
         cipher.init(Cipher.DECRYPT_MODE, key, iv);
-        FileInputStream inputStream = new FileInputStream(encryptedFile);
-        FileOutputStream outputStream = new FileOutputStream(decryptedFile);
-        byte[] buffer = new byte[64];
-        int bytesRead;
-        while ((bytesRead = inputStream.read(buffer)) != -1) {
-            byte[] output = cipher.update(buffer, 0, bytesRead);
-            if (output != null) {
-                outputStream.write(output);
+        processFile(cipher, encryptedFile, decryptedFile);
+    }
+
+    /**
+     * Runs the file through the cipher with reusable buffers of {@link #BUFFER_SIZE} bytes.
+     * Inputs of at least {@link #MAPPED_THRESHOLD} bytes are read through memory-mapped regions.
+     */
+    private static void processFile(Cipher cipher, File inputFile, File outputFile) throws Exception {
+        try (FileChannel inputChannel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+             FileChannel outputChannel = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer output = allocateBuffer(BUFFER_SIZE + 2 * cipher.getBlockSize());
+            long size = inputChannel.size();
+            if (size >= MAPPED_THRESHOLD) {
+                for (long position = 0; position < size; position += MAPPED_REGION_SIZE) {
+                    MappedByteBuffer region = inputChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_REGION_SIZE, size - position));
+                    while (region.hasRemaining()) {
+                        ByteBuffer input = region.slice();
+                        input.limit(Math.min(input.remaining(), BUFFER_SIZE));
+                        region.position(region.position() + input.limit());
+                        update(cipher, input, output, outputChannel);
+                    }
+                }
+            } else {
+                ByteBuffer input = allocateBuffer(BUFFER_SIZE);
+                while (inputChannel.read(input) != -1) {
+                    input.flip();
+                    update(cipher, input, output, outputChannel);
+                    input.clear();
+                }
             }
+            output.clear();
+            cipher.doFinal(ByteBuffer.allocate(0), output);
+            writeFully(output, outputChannel);
+        }
+    }
+
+    private static void update(Cipher cipher, ByteBuffer input, ByteBuffer output, FileChannel outputChannel) throws Exception {
+        output.clear();
+        cipher.update(input, output);
+        writeFully(output, outputChannel);
+    }
+
+    private static void writeFully(ByteBuffer output, FileChannel outputChannel) throws Exception {
+        output.flip();
+        while (output.hasRemaining()) {
+            outputChannel.write(output);
         }
-        byte[] output = cipher.doFinal();
-        if (output != null) {
-            outputStream.write(output);
+    }
+
+    private static ByteBuffer allocateBuffer(int capacity) {
+        return DIRECT_BUFFERS ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    public static void encryptStream(String algorithm, SecretKey key, IvParameterSpec iv, InputStream inputStream, OutputStream outputStream) throws Exception {
+        Cipher cipher = Cipher.getInstance(algorithm);
+        cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+        processStream(cipher, inputStream, outputStream);
+    }
+
+    public static void decryptStream(String algorithm, SecretKey key, IvParameterSpec iv, InputStream inputStream, OutputStream outputStream) throws Exception {
+        Cipher cipher = Cipher.getInstance(algorithm);
+        cipher.init(Cipher.DECRYPT_MODE, key, iv);
+        processStream(cipher, inputStream, outputStream);
+    }
+
+    private static void processStream(Cipher cipher, InputStream inputStream, OutputStream outputStream) throws Exception {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] output = new byte[buffer.length + 2 * cipher.getBlockSize()];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            int outputLength = cipher.update(buffer, 0, bytesRead, output);
+            outputStream.write(output, 0, outputLength);
         }
-        inputStream.close();
-        outputStream.close();
+        int outputLength = cipher.doFinal(output, 0);
+        outputStream.write(output, 0, outputLength);
     }
 
     @Deprecated
@@ -0,0 +1,38 @@
+package no.odit.crypto.util;
+
+import java.math.BigInteger;
+
+/**
+ * Squares with {@link BigInteger#modPow(BigInteger, BigInteger)}, works for any modulus.
+ */
+public class BigIntegerSquarer implements Squarer {
+
+    private static final BigInteger TWO = new BigInteger("2");
+
+    private final BigInteger n;
+    private BigInteger w;
+
+    public BigIntegerSquarer(BigInteger n) {
+        this.n = n;
+    }
+
+    @Override
+    public void load(BigInteger value) {
+        this.w = value;
+    }
+
+    @Override
+    public void square(long times) {
+        BigInteger w = this.w;
+        for (long i = 0; i < times; i++) {
+            w = w.modPow(TWO, n);
+        }
+        this.w = w;
+    }
+
+    @Override
+    public BigInteger get() {
+        return w;
+    }
+
+}
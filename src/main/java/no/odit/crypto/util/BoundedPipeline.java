@@ -0,0 +1,85 @@
+package no.odit.crypto.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on the worker threads shared by the whole process and hands their results to the
+ * consumer in the order the tasks were submitted. At most twice as many tasks as there are workers
+ * are pending, so the memory held by a pipeline is bounded however long its input is.
+ * Tasks must not wait for other pipelines, as they all run on the same workers.
+ */
+public class BoundedPipeline<T> implements AutoCloseable {
+
+    private static final AtomicInteger WORKER_COUNT = new AtomicInteger();
+    private static ExecutorService workers;
+
+    private final ResultConsumer<T> consumer;
+    private final Deque<Future<T>> pending = new ArrayDeque<>();
+    private final int maxPending = ChunkedAES.THREADS * 2;
+
+    public BoundedPipeline(ResultConsumer<T> consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * Submits the task, and hands over the oldest results while the pipeline is full.
+     */
+    public void submit(Callable<T> task) throws Exception {
+        pending.add(getWorkers().submit(task));
+        while (pending.size() >= maxPending) {
+            consumer.accept(getResult(pending.poll()));
+        }
+    }
+
+    /**
+     * Waits for the pending tasks and hands over their results.
+     */
+    public void finish() throws Exception {
+        while (!pending.isEmpty()) {
+            consumer.accept(getResult(pending.poll()));
+        }
+    }
+
+    /**
+     * Cancels the tasks that are still pending, which is only the case when the pipeline failed.
+     */
+    @Override
+    public void close() {
+        while (!pending.isEmpty()) {
+            pending.poll().cancel(true);
+        }
+    }
+
+    private static synchronized ExecutorService getWorkers() {
+        if (workers != null) return workers;
+        workers = Executors.newFixedThreadPool(ChunkedAES.THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "pipeline-worker-" + WORKER_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        return workers;
+    }
+
+    private static <T> T getResult(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof Exception) throw (Exception) exception.getCause();
+            throw exception;
+        }
+    }
+
+    public interface ResultConsumer<T> {
+
+        void accept(T result) throws Exception;
+
+    }
+
+}
@@ -0,0 +1,91 @@
+package no.odit.crypto.util;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import no.odit.crypto.model.HostProfile;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CalibrationUtil {
+
+    private static final String PROFILES_FILE_NAME = "hosts.json";
+    private static final int RSA_PRIME_LENGTH = 1024;
+    private static final long SQUARING_BATCH = 1024;
+    public static long CALIBRATION_SECONDS = Long.getLong("crypto.calibration.seconds", 5);
+
+    /**
+     * Returns the profile of this host, calibrating it first if there is none for the current solver.
+     */
+    public static HostProfile getHostProfile() throws Exception {
+        String machineId = MachineUtil.getMachineIdentifier();
+        HostProfile profile = readProfiles().get(machineId);
+        if (profile == null || profile.getSolverType() != TimeLockPuzzle.SOLVER_TYPE) {
+            profile = calibrateHost(machineId);
+        }
+        return profile;
+    }
+
+    public static HostProfile calibrateHost() throws Exception {
+        return calibrateHost(MachineUtil.getMachineIdentifier());
+    }
+
+    private static HostProfile calibrateHost(String machineId) throws Exception {
+        System.out.println("Calibrating host for " + CALIBRATION_SECONDS + "s...");
+        BigInteger squaringsPerSecond = measureSquaringsPerSecond(CALIBRATION_SECONDS * 1000);
+        HostProfile profile = HostProfile.builder()
+                .machineId(machineId)
+                .solverType(TimeLockPuzzle.SOLVER_TYPE)
+                .squaringsPerSecond(squaringsPerSecond)
+                .date(LocalDate.now())
+                .time(LocalTime.now())
+                .build();
+        Map<String, HostProfile> profiles = readProfiles();
+        profiles.put(machineId, profile);
+        StorageUtil.writeAtomically(getProfilesFile(), JsonUtil.getObjectMapper().writeValueAsBytes(profiles));
+        System.out.println("Calibrated host at " + squaringsPerSecond + " squarings/s.");
+        return profile;
+    }
+
+    /**
+     * Runs the solver's squaring loop on a puzzle-sized modulus, the first quarter of the time is warm-up.
+     */
+    public static BigInteger measureSquaringsPerSecond(long millis) {
+        SecureRandom random = new SecureRandom();
+        BigInteger n = BigInteger.probablePrime(RSA_PRIME_LENGTH, random).multiply(BigInteger.probablePrime(RSA_PRIME_LENGTH, random));
+        Squarer squarer = TimeLockPuzzle.createSquarer(n, TimeLockPuzzle.SOLVER_TYPE);
+        squarer.load(BigInteger.TWO);
+
+        long warmupEnd = System.nanoTime() + millis * 250_000;
+        while (System.nanoTime() < warmupEnd) {
+            squarer.square(SQUARING_BATCH);
+        }
+
+        long squarings = 0;
+        long startTime = System.nanoTime();
+        long endTime = startTime + millis * 750_000;
+        long now;
+        do {
+            squarer.square(SQUARING_BATCH);
+            squarings += SQUARING_BATCH;
+            now = System.nanoTime();
+        } while (now < endTime);
+        return BigInteger.valueOf(squarings * 1_000_000_000L / (now - startTime));
+    }
+
+    private static File getProfilesFile() {
+        return new File(StorageUtil.getDataDirectory(), PROFILES_FILE_NAME);
+    }
+
+    private static Map<String, HostProfile> readProfiles() throws Exception {
+        File profilesFile = getProfilesFile();
+        if (!profilesFile.exists()) return new HashMap<>();
+        return JsonUtil.getObjectMapper().readValue(profilesFile, new TypeReference<HashMap<String, HostProfile>>() {
+        });
+    }
+
+}
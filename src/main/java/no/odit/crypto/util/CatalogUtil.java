@@ -0,0 +1,103 @@
+package no.odit.crypto.util;
+
+import no.odit.crypto.model.CatalogEntry;
+import no.odit.crypto.type.PayloadFormat;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Binary format of the vault catalog, which is read without any parsing beyond fixed fields,
+ * so a catalog of thousands of vaults loads in a few milliseconds. Missing numbers are written
+ * as -1.
+ * <pre>
+ * magic "CFSC", version (2), count (4), then per vault: path, file size (8), last modified (8),
+ * created seconds (8), created nanos (4), t (8), locked layers (2), squarings/s (8), machine id,
+ * payload format, payload size (8)
+ * </pre>
+ */
+public class CatalogUtil {
+
+    public static final int VERSION = 1;
+    private static final byte[] MAGIC = "CFSC".getBytes(StandardCharsets.US_ASCII);
+
+    public static byte[] writeCatalog(Collection<CatalogEntry> entries) throws Exception {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(byteStream);
+        output.write(MAGIC);
+        output.writeShort(VERSION);
+        output.writeInt(entries.size());
+        for (CatalogEntry entry : entries) {
+            output.writeUTF(entry.getPath());
+            output.writeLong(entry.getFileSize());
+            output.writeLong(entry.getLastModified());
+            output.writeLong(entry.getCreated() == null ? -1 : entry.getCreated().toEpochSecond(ZoneOffset.UTC));
+            output.writeInt(entry.getCreated() == null ? -1 : entry.getCreated().getNano());
+            output.writeLong(entry.getT() == null ? -1 : entry.getT().longValueExact());
+            output.writeShort(entry.getLockedLayers() == null ? -1 : entry.getLockedLayers());
+            output.writeLong(entry.getSquaringsPerSecond() == null ? -1 : entry.getSquaringsPerSecond().longValueExact());
+            writeText(output, entry.getMachineId());
+            writeText(output, entry.getPayloadFormat() == null ? null : entry.getPayloadFormat().name());
+            output.writeLong(entry.getPayloadSize() == null ? -1 : entry.getPayloadSize());
+        }
+        output.flush();
+        return byteStream.toByteArray();
+    }
+
+    public static List<CatalogEntry> readCatalog(File catalogFile) throws Exception {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(catalogFile)))) {
+            byte[] magic = new byte[MAGIC.length];
+            input.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new Exception("The vault catalog is corrupt!");
+            int version = input.readShort();
+            if (version != VERSION) throw new Exception("Unsupported vault catalog version " + version + "!");
+            int count = input.readInt();
+            List<CatalogEntry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                CatalogEntry entry = CatalogEntry.builder()
+                        .path(input.readUTF())
+                        .fileSize(input.readLong())
+                        .lastModified(input.readLong())
+                        .build();
+                long createdSeconds = input.readLong();
+                int createdNanos = input.readInt();
+                if (createdSeconds != -1) entry.setCreated(LocalDateTime.ofEpochSecond(createdSeconds, createdNanos, ZoneOffset.UTC));
+                long t = input.readLong();
+                if (t != -1) entry.setT(BigInteger.valueOf(t));
+                int lockedLayers = input.readShort();
+                if (lockedLayers != -1) entry.setLockedLayers(lockedLayers);
+                long squaringsPerSecond = input.readLong();
+                if (squaringsPerSecond != -1) entry.setSquaringsPerSecond(BigInteger.valueOf(squaringsPerSecond));
+                entry.setMachineId(readText(input));
+                String payloadFormat = readText(input);
+                entry.setPayloadFormat(payloadFormat == null ? null : PayloadFormat.valueOf(payloadFormat));
+                long payloadSize = input.readLong();
+                if (payloadSize != -1) entry.setPayloadSize(payloadSize);
+                entries.add(entry);
+            }
+            return entries;
+        }
+    }
+
+    private static void writeText(DataOutputStream output, String text) throws Exception {
+        output.writeBoolean(text != null);
+        if (text != null) output.writeUTF(text);
+    }
+
+    private static String readText(DataInputStream input) throws Exception {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+}
@@ -0,0 +1,62 @@
+package no.odit.crypto.util;
+
+import no.odit.crypto.model.PuzzleCheckpoint;
+
+import java.io.File;
+import java.math.BigInteger;
+
+public class CheckpointUtil {
+
+    public static File getCheckpointFile(File containerFile) {
+        return new File(containerFile.getPath() + ".checkpoint");
+    }
+
+    /**
+     * Returns the checkpoint file of a puzzle layer, counted from the innermost puzzle of the vault,
+     * so the checkpoints of a vault stay valid when its lock time is extended.
+     */
+    public static File getCheckpointFile(File containerFile, int layer) {
+        return layer == 0 ? getCheckpointFile(containerFile) : new File(containerFile.getPath() + ".checkpoint." + layer);
+    }
+
+    public static void writeCheckpoint(File checkpointFile, BigInteger n, BigInteger t, long iteration, BigInteger w) throws Exception {
+        PuzzleCheckpoint checkpoint = PuzzleCheckpoint.builder()
+                .n(n)
+                .t(t)
+                .iteration(iteration)
+                .w(w)
+                .checksum(getChecksum(n, t, iteration, w))
+                .build();
+        StorageUtil.writeAtomically(checkpointFile, JsonUtil.getObjectMapper().writeValueAsBytes(checkpoint));
+    }
+
+    /**
+     * Returns the checkpoint for the given puzzle, or null if there is no valid one.
+     */
+    public static PuzzleCheckpoint readCheckpoint(File checkpointFile, BigInteger n, BigInteger t) {
+        if (checkpointFile == null || !checkpointFile.exists()) return null;
+        try {
+            PuzzleCheckpoint checkpoint = JsonUtil.getObjectMapper().readValue(checkpointFile, PuzzleCheckpoint.class);
+            if (!n.equals(checkpoint.getN()) || !t.equals(checkpoint.getT())) {
+                System.out.println("Ignoring checkpoint of another puzzle.");
+                return null;
+            }
+            BigInteger w = checkpoint.getW();
+            long iteration = checkpoint.getIteration();
+            if (w == null || w.signum() < 0 || w.compareTo(n) >= 0 || iteration <= 0 || iteration > t.longValueExact()
+                    || !getChecksum(n, t, iteration, w).equals(checkpoint.getChecksum())) {
+                System.out.println("Ignoring corrupt checkpoint.");
+                return null;
+            }
+            return checkpoint;
+        } catch (Exception exception) {
+            System.out.println("Ignoring unreadable checkpoint: " + exception.getMessage());
+            return null;
+        }
+    }
+
+    private static String getChecksum(BigInteger n, BigInteger t, long iteration, BigInteger w) {
+        return HashUtil.sha256(n + ":" + t + ":" + iteration + ":" + w);
+    }
+
+}
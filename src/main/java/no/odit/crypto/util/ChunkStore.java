@@ -0,0 +1,479 @@
+package no.odit.crypto.util;
+
+import no.odit.crypto.type.CompressionCodec;
+import no.odit.crypto.type.StageType;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Local store of deduplicated content chunks, shared by all vaults on this host. Content is split
+ * into chunks where a rolling hash of the last bytes matches, so an insert or a change only moves
+ * the boundaries around it, and unchanged parts of a new version map to chunks that are already
+ * stored. Every chunk is sealed with AES-GCM under a key derived from its content and the secret
+ * key of the store, and is named by a hash of that key. A vault holds a manifest with the key and
+ * length of each of its chunks, sealed with the payload key, so the chunks of a vault can only be
+ * found and opened after its puzzle is solved.
+ * Every vault also has a reference file with the names of its chunks, named by the root of its
+ * payload, and chunks that no reference file names are deleted when a vault is decrypted. Writers
+ * share the store lock, and only the pruning of chunks takes it exclusively, also across processes.
+ */
+public class ChunkStore {
+
+    public static boolean ENABLED = Boolean.getBoolean("crypto.dedup");
+    public static int AVERAGE_SIZE = Integer.highestOneBit(Integer.getInteger("crypto.dedup.chunk.size", 1024 * 1024));
+    public static int MIN_SIZE = AVERAGE_SIZE / 4;
+    public static int MAX_SIZE = AVERAGE_SIZE * 4;
+
+    private static final String STORE_KEY_FILE_NAME = "store.key";
+    private static final String LOCK_FILE_NAME = "store.lock";
+    private static final String CHUNK_FILE_EXTENSION = ".chunk";
+    private static final String REFERENCE_DIRECTORY_NAME = "refs";
+    private static final String REFERENCE_FILE_EXTENSION = ".refs";
+    private static final String PENDING_REFERENCE_PREFIX = "pending-";
+    private static final String LEGACY_REFERENCE_NAME = "legacy";
+    private static final long PENDING_REFERENCE_AGE = 24 * 60 * 60 * 1000;
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+    private static final String KEY_ALGORITHM = "HmacSHA256";
+    private static final int KEY_LENGTH = 32;
+    private static final byte NOT_COMPRESSED = 0;
+    private static final long[] GEAR = createGear();
+    private static final SecureRandom random = new SecureRandom();
+    private static final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock();
+    private static final Object fileLockGuard = new Object();
+    private static byte[] storeKey;
+    private static FileChannel lockChannel;
+    private static FileLock fileLock;
+    private static int sharedHolders;
+
+    public static File getStoreDirectory() {
+        File directory = new File(System.getProperty("crypto.dedup.store", StorageUtil.getDataDirectory() + File.separator + "chunks"));
+        if (!directory.exists()) directory.mkdirs();
+        return directory;
+    }
+
+    /**
+     * Returns a new pending reference file, which keeps the chunks written with it until the vault
+     * is complete and the reference is committed under the root of its payload.
+     */
+    public static File createPendingReference() {
+        return new File(getReferenceDirectory(), PENDING_REFERENCE_PREFIX + UUID.randomUUID() + REFERENCE_FILE_EXTENSION);
+    }
+
+    public static void commitReference(File pendingReference, String payloadRoot) throws Exception {
+        lockShared();
+        try {
+            Files.move(pendingReference.toPath(), getReferenceFile(payloadRoot).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            unlockShared();
+        }
+    }
+
+    /**
+     * Removes the reference of a decrypted vault and deletes the chunks that no other vault uses.
+     */
+    public static void removeReference(String payloadRoot) throws Exception {
+        lockExclusive();
+        try {
+            Files.deleteIfExists(getReferenceFile(payloadRoot).toPath());
+            pruneChunks();
+        } finally {
+            unlockExclusive();
+        }
+    }
+
+    /**
+     * Returns the chunk files named by the reference of the vault, or null when it has none.
+     */
+    public static List<File> getChunkFiles(String payloadRoot) throws Exception {
+        File referenceFile = getReferenceFile(payloadRoot);
+        if (!referenceFile.exists()) return null;
+        File directory = getStoreDirectory();
+        List<File> chunkFiles = new ArrayList<>();
+        for (String name : readReference(referenceFile)) {
+            chunkFiles.add(getChunkFile(directory, name));
+        }
+        return chunkFiles;
+    }
+
+    /**
+     * Splits the content into chunks, stores the chunks that are not in the store yet and writes
+     * the manifest of the content to the output stream. Chunks are compressed with the codec, if
+     * any, before they are sealed. The names of the chunks are written to the reference file.
+     * Returns the number of content bytes in newly stored chunks.
+     */
+    public static long writeChunks(InputStream inputStream, OutputStream manifestStream, CompressionCodec codec, int level, File referenceFile) throws Exception {
+        byte[] key = getStoreKey();
+        File directory = getStoreDirectory();
+        DataOutputStream manifest = new DataOutputStream(manifestStream);
+        Set<String> names = new LinkedHashSet<>();
+        StageTimer timer = MetricsUtil.start(StageType.DEDUPLICATION);
+        long bytes = 0;
+        long[] storedBytes = new long[1];
+        lockShared();
+        try (BoundedPipeline<Chunk> pipeline = new BoundedPipeline<>(chunk -> storedBytes[0] += writeEntry(manifest, chunk, names))) {
+            byte[] buffer = new byte[MAX_SIZE];
+            int length = 0;
+            while (true) {
+                length += inputStream.readNBytes(buffer, length, buffer.length - length);
+                if (length == 0) break;
+                int cut = findBoundary(buffer, length);
+                byte[] content = Arrays.copyOf(buffer, cut);
+                System.arraycopy(buffer, cut, buffer, 0, length - cut);
+                length -= cut;
+                bytes += content.length;
+                pipeline.submit(() -> storeChunk(key, directory, codec, level, content));
+            }
+            pipeline.finish();
+            manifest.flush();
+            StorageUtil.writeAtomically(referenceFile, String.join("\n", names).getBytes(StandardCharsets.US_ASCII));
+            timer.stop(bytes);
+            return storedBytes[0];
+        } finally {
+            unlockShared();
+        }
+    }
+
+    /**
+     * Reads the chunks listed in the manifest from the store and writes their content in order.
+     */
+    public static void readChunks(InputStream manifestStream, OutputStream outputStream) throws Exception {
+        File directory = getStoreDirectory();
+        DataInputStream manifest = new DataInputStream(manifestStream);
+        try (BoundedPipeline<byte[]> pipeline = new BoundedPipeline<>(outputStream::write)) {
+            while (true) {
+                byte[] chunkKey = new byte[KEY_LENGTH];
+                int length;
+                try {
+                    manifest.readFully(chunkKey);
+                    length = manifest.readInt();
+                } catch (EOFException exception) {
+                    break;
+                }
+                if (length <= 0) throw new Exception("The chunk manifest is corrupt!");
+                pipeline.submit(() -> loadChunk(directory, chunkKey, length));
+            }
+            pipeline.finish();
+        }
+    }
+
+    /**
+     * Returns the end of the first chunk in the buffer. Boundaries are harder to match before the
+     * average size and easier after it, which keeps most chunks close to the average size.
+     */
+    private static int findBoundary(byte[] buffer, int length) {
+        if (length <= MIN_SIZE) return length;
+        int bits = Integer.numberOfTrailingZeros(AVERAGE_SIZE);
+        long strictMask = -1L << (64 - bits - 2);
+        long looseMask = -1L << (64 - bits + 2);
+        int normal = Math.min(length, AVERAGE_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+            if ((hash & strictMask) == 0) return i + 1;
+        }
+        for (; i < length; i++) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+            if ((hash & looseMask) == 0) return i + 1;
+        }
+        return length;
+    }
+
+    private static Chunk storeChunk(byte[] key, File directory, CompressionCodec codec, int level, byte[] content) throws Exception {
+        byte[] chunkKey = deriveChunkKey(key, content);
+        File chunkFile = getChunkFile(directory, chunkKey);
+        if (chunkFile.exists()) return new Chunk(chunkKey, content.length, false);
+
+        byte[] plain;
+        if (codec != null) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length + 16);
+            compressed.write(codec.ordinal() + 1);
+            compressed.write(CompressionUtil.compressBlock(codec, level, content));
+            plain = compressed.toByteArray();
+        } else {
+            plain = new byte[content.length + 1];
+            plain[0] = NOT_COMPRESSED;
+            System.arraycopy(content, 0, plain, 1, content.length);
+        }
+        byte[] nonce = new byte[ChunkedAES.NONCE_LENGTH];
+        random.nextBytes(nonce);
+        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        cipher.init(Cipher.ENCRYPT_MODE, getSecretKey(chunkKey), new GCMParameterSpec(ChunkedAES.TAG_LENGTH * 8, nonce));
+        byte[] sealed = new byte[nonce.length + cipher.getOutputSize(plain.length)];
+        System.arraycopy(nonce, 0, sealed, 0, nonce.length);
+        cipher.doFinal(plain, 0, plain.length, sealed, nonce.length);
+
+        chunkFile.getParentFile().mkdirs();
+        StorageUtil.writeAtomically(chunkFile, sealed);
+        return new Chunk(chunkKey, content.length, true);
+    }
+
+    private static byte[] loadChunk(File directory, byte[] chunkKey, int length) throws Exception {
+        File chunkFile = getChunkFile(directory, chunkKey);
+        if (!chunkFile.exists()) throw new Exception("Chunk " + chunkFile.getName() + " is missing from the chunk store!");
+        byte[] sealed = Files.readAllBytes(chunkFile.toPath());
+        if (sealed.length < ChunkedAES.NONCE_LENGTH + ChunkedAES.TAG_LENGTH + 1) {
+            throw new Exception("Chunk " + chunkFile.getName() + " is corrupt!");
+        }
+        byte[] plain;
+        try {
+            Cipher cipher = Cipher.getInstance(ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, getSecretKey(chunkKey), new GCMParameterSpec(ChunkedAES.TAG_LENGTH * 8, sealed, 0, ChunkedAES.NONCE_LENGTH));
+            plain = cipher.doFinal(sealed, ChunkedAES.NONCE_LENGTH, sealed.length - ChunkedAES.NONCE_LENGTH);
+        } catch (AEADBadTagException exception) {
+            throw new Exception("Chunk " + chunkFile.getName() + " is corrupt or has been tampered with!");
+        }
+        byte[] content;
+        if (plain[0] == NOT_COMPRESSED) {
+            content = Arrays.copyOfRange(plain, 1, plain.length);
+        } else {
+            CompressionCodec codec = CompressionCodec.values()[plain[0] - 1];
+            content = CompressionUtil.decompressBlock(codec, Arrays.copyOfRange(plain, 1, plain.length));
+        }
+        if (content.length != length) throw new Exception("Chunk " + chunkFile.getName() + " does not match the manifest!");
+        return content;
+    }
+
+    /**
+     * Writes the chunk to the manifest and returns its length when it was newly stored. Equal
+     * chunks close together can both be stored by the workers, but are only counted once.
+     */
+    private static long writeEntry(DataOutputStream manifest, Chunk chunk, Set<String> names) throws Exception {
+        manifest.write(chunk.key);
+        manifest.writeInt(chunk.length);
+        boolean added = names.add(getChunkName(chunk.key));
+        return chunk.stored && added ? chunk.length : 0;
+    }
+
+    /**
+     * Deletes the chunks that are not named by any reference file. Pending references of writes
+     * that never completed are deleted first, once they are old enough.
+     */
+    private static void pruneChunks() throws Exception {
+        File[] referenceFiles = getReferenceDirectory().listFiles((directory, name) -> name.endsWith(REFERENCE_FILE_EXTENSION));
+        if (referenceFiles == null) return;
+        Set<String> names = new HashSet<>();
+        for (File referenceFile : referenceFiles) {
+            if (referenceFile.getName().startsWith(PENDING_REFERENCE_PREFIX)
+                    && System.currentTimeMillis() - referenceFile.lastModified() > PENDING_REFERENCE_AGE) {
+                referenceFile.delete();
+                continue;
+            }
+            names.addAll(readReference(referenceFile));
+        }
+        long deleted = 0;
+        long deletedBytes = 0;
+        File[] directories = getStoreDirectory().listFiles(file -> file.isDirectory() && !file.getName().equals(REFERENCE_DIRECTORY_NAME));
+        for (File directory : directories == null ? new File[0] : directories) {
+            File[] chunkFiles = directory.listFiles((parent, name) -> name.endsWith(CHUNK_FILE_EXTENSION));
+            for (File chunkFile : chunkFiles == null ? new File[0] : chunkFiles) {
+                String name = chunkFile.getName().substring(0, chunkFile.getName().length() - CHUNK_FILE_EXTENSION.length());
+                if (names.contains(name)) continue;
+                long length = chunkFile.length();
+                if (chunkFile.delete()) {
+                    deleted++;
+                    deletedBytes += length;
+                }
+            }
+        }
+        if (deleted > 0) System.out.println("Deleted " + deleted + " unused chunks (" + deletedBytes + " bytes) from the chunk store.");
+    }
+
+    private static List<String> readReference(File referenceFile) throws Exception {
+        List<String> names = new ArrayList<>();
+        for (String line : Files.readAllLines(referenceFile.toPath(), StandardCharsets.US_ASCII)) {
+            if (!line.isEmpty()) names.add(line);
+        }
+        return names;
+    }
+
+    private static File getReferenceFile(String payloadRoot) {
+        return new File(getReferenceDirectory(), HashUtil.sha256(payloadRoot) + REFERENCE_FILE_EXTENSION);
+    }
+
+    /**
+     * Returns the directory of the reference files. When it is created in a store that already has
+     * chunks, they were written before references were kept and are kept for good.
+     */
+    private static synchronized File getReferenceDirectory() {
+        File directory = new File(getStoreDirectory(), REFERENCE_DIRECTORY_NAME);
+        if (directory.exists()) return directory;
+        List<String> names = new ArrayList<>();
+        File[] directories = getStoreDirectory().listFiles(File::isDirectory);
+        for (File chunkDirectory : directories == null ? new File[0] : directories) {
+            File[] chunkFiles = chunkDirectory.listFiles((parent, name) -> name.endsWith(CHUNK_FILE_EXTENSION));
+            for (File chunkFile : chunkFiles == null ? new File[0] : chunkFiles) {
+                names.add(chunkFile.getName().substring(0, chunkFile.getName().length() - CHUNK_FILE_EXTENSION.length()));
+            }
+        }
+        directory.mkdirs();
+        if (!names.isEmpty()) {
+            try {
+                StorageUtil.writeAtomically(new File(directory, LEGACY_REFERENCE_NAME + REFERENCE_FILE_EXTENSION),
+                        String.join("\n", names).getBytes(StandardCharsets.US_ASCII));
+            } catch (Exception exception) {
+                directory.delete();
+                throw new IllegalStateException(exception);
+            }
+        }
+        return directory;
+    }
+
+    private static void lockShared() throws Exception {
+        storeLock.readLock().lock();
+        try {
+            synchronized (fileLockGuard) {
+                if (sharedHolders == 0) fileLock = getLockChannel().lock(0, Long.MAX_VALUE, true);
+                sharedHolders++;
+            }
+        } catch (Exception exception) {
+            storeLock.readLock().unlock();
+            throw exception;
+        }
+    }
+
+    private static void unlockShared() throws Exception {
+        try {
+            synchronized (fileLockGuard) {
+                if (--sharedHolders == 0) {
+                    fileLock.release();
+                    fileLock = null;
+                }
+            }
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    private static void lockExclusive() throws Exception {
+        storeLock.writeLock().lock();
+        try {
+            synchronized (fileLockGuard) {
+                fileLock = getLockChannel().lock();
+            }
+        } catch (Exception exception) {
+            storeLock.writeLock().unlock();
+            throw exception;
+        }
+    }
+
+    private static void unlockExclusive() throws Exception {
+        try {
+            synchronized (fileLockGuard) {
+                fileLock.release();
+                fileLock = null;
+            }
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    private static FileChannel getLockChannel() throws Exception {
+        if (lockChannel == null) {
+            lockChannel = FileChannel.open(new File(getStoreDirectory(), LOCK_FILE_NAME).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return lockChannel;
+    }
+
+    /**
+     * The chunk key is an HMAC of the content, so equal content always gets the same key and name,
+     * while the name tells nothing about the content without the secret key of the store.
+     */
+    private static byte[] deriveChunkKey(byte[] key, byte[] content) throws Exception {
+        Mac mac = Mac.getInstance(KEY_ALGORITHM);
+        mac.init(new SecretKeySpec(key, KEY_ALGORITHM));
+        return mac.doFinal(content);
+    }
+
+    private static File getChunkFile(File directory, byte[] chunkKey) {
+        return getChunkFile(directory, getChunkName(chunkKey));
+    }
+
+    private static File getChunkFile(File directory, String name) {
+        return new File(new File(directory, name.substring(0, 2)), name + CHUNK_FILE_EXTENSION);
+    }
+
+    private static String getChunkName(byte[] chunkKey) {
+        return HashUtil.sha256(chunkKey);
+    }
+
+    private static SecretKey getSecretKey(byte[] chunkKey) {
+        return new SecretKeySpec(chunkKey, "AES");
+    }
+
+    private static synchronized byte[] getStoreKey() throws Exception {
+        if (storeKey != null) return storeKey;
+        File keyFile = new File(getStoreDirectory(), STORE_KEY_FILE_NAME);
+        if (keyFile.exists()) {
+            storeKey = Files.readAllBytes(keyFile.toPath());
+            if (storeKey.length != KEY_LENGTH) throw new Exception("The chunk store key is corrupt!");
+        } else {
+            storeKey = new byte[KEY_LENGTH];
+            random.nextBytes(storeKey);
+            StorageUtil.writePrivately(keyFile, storeKey);
+        }
+        return storeKey;
+    }
+
+    /**
+     * The rolling hash table is derived from SHA-256, so chunk boundaries stay the same across
+     * versions and hosts.
+     */
+    private static long[] createGear() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            long[] gear = new long[256];
+            for (int i = 0; i < gear.length; i++) {
+                gear[i] = ByteBuffer.wrap(digest.digest(("gear-" + i).getBytes(StandardCharsets.US_ASCII))).getLong();
+            }
+            return gear;
+        } catch (Exception exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private static class Chunk {
+
+        private final byte[] key;
+        private final int length;
+        private final boolean stored;
+
+        private Chunk(byte[] key, int length, boolean stored) {
+            this.key = key;
+            this.length = length;
+            this.stored = stored;
+        }
+
+    }
+
+}
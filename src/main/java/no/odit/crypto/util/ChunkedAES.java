@@ -0,0 +1,138 @@
+package no.odit.crypto.util;
+
+import no.odit.crypto.type.StageType;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Payload format that splits the content into fixed-size chunks, each sealed with AES-GCM.
+ * The nonce of a chunk is the IV with the chunk index mixed in, and the chunk index and a
+ * final-chunk flag are authenticated, so reordered, dropped or truncated chunks are detected.
+ * Chunks are sealed and opened concurrently, and written out in order.
+ */
+public class ChunkedAES {
+
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+    public static final int TAG_LENGTH = 16;
+    public static final int NONCE_LENGTH = 12;
+    public static int CHUNK_SIZE = Integer.getInteger("crypto.chunk.size", 1024 * 1024);
+    public static int THREADS = Integer.getInteger("crypto.threads", Runtime.getRuntime().availableProcessors());
+
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(ALGORITHM);
+        } catch (Exception exception) {
+            throw new IllegalStateException(exception);
+        }
+    });
+
+    public static void encryptFile(SecretKey key, IvParameterSpec iv, int chunkSize, File inputFile, File outputFile) throws Exception {
+        try (FileInputStream inputStream = new FileInputStream(inputFile);
+             FileOutputStream outputStream = new FileOutputStream(outputFile)) {
+            encrypt(key, iv, chunkSize, inputStream, outputStream);
+        }
+    }
+
+    public static void decryptFile(SecretKey key, IvParameterSpec iv, int chunkSize, File encryptedFile, File decryptedFile) throws Exception {
+        try (FileInputStream inputStream = new FileInputStream(encryptedFile);
+             FileOutputStream outputStream = new FileOutputStream(decryptedFile)) {
+            decrypt(key, iv, chunkSize, inputStream, outputStream);
+        }
+    }
+
+    public static void encrypt(SecretKey key, IvParameterSpec iv, int chunkSize, InputStream inputStream, OutputStream outputStream) throws Exception {
+        process(Cipher.ENCRYPT_MODE, key, iv, chunkSize, inputStream, outputStream, null);
+    }
+
+    /**
+     * Encrypts the content and adds the {@link HashTree} leaf of every sealed chunk, in order.
+     * The leaves are hashed by the threads that seal the chunks.
+     */
+    public static void encrypt(SecretKey key, IvParameterSpec iv, int chunkSize, InputStream inputStream, OutputStream outputStream, List<byte[]> leaves) throws Exception {
+        process(Cipher.ENCRYPT_MODE, key, iv, chunkSize, inputStream, outputStream, leaves);
+    }
+
+    public static void decrypt(SecretKey key, IvParameterSpec iv, int chunkSize, InputStream inputStream, OutputStream outputStream) throws Exception {
+        process(Cipher.DECRYPT_MODE, key, iv, chunkSize, inputStream, outputStream, null);
+    }
+
+    /**
+     * Returns the size of the sealed payload for content of the given size.
+     */
+    public static long getEncryptedSize(long size, int chunkSize) {
+        long chunks = Math.max(1, (size + chunkSize - 1) / chunkSize);
+        return size + chunks * TAG_LENGTH;
+    }
+
+    public static byte[] sealChunk(SecretKey key, IvParameterSpec iv, long index, boolean last, byte[] chunk) throws Exception {
+        return processChunk(Cipher.ENCRYPT_MODE, key, iv, index, last, chunk);
+    }
+
+    public static byte[] openChunk(SecretKey key, IvParameterSpec iv, long index, boolean last, byte[] chunk) throws Exception {
+        try {
+            return processChunk(Cipher.DECRYPT_MODE, key, iv, index, last, chunk);
+        } catch (AEADBadTagException exception) {
+            throw new Exception("Chunk " + index + " of the payload is corrupt or has been tampered with!");
+        }
+    }
+
+    private static void process(int mode, SecretKey key, IvParameterSpec iv, int chunkSize, InputStream inputStream, OutputStream outputStream,
+                                List<byte[]> leaves) throws Exception {
+        int readSize = mode == Cipher.ENCRYPT_MODE ? chunkSize : chunkSize + TAG_LENGTH;
+        StageTimer timer = MetricsUtil.start(mode == Cipher.ENCRYPT_MODE ? StageType.ENCRYPTION : StageType.DECRYPTION);
+        long bytes = 0;
+        // Every result is the processed chunk and the leaf of the sealed chunk, if it is hashed
+        try (BoundedPipeline<byte[][]> pipeline = new BoundedPipeline<>(result -> {
+            outputStream.write(result[0]);
+            if (leaves != null) leaves.add(result[1]);
+        })) {
+            byte[] chunk = inputStream.readNBytes(readSize);
+            long index = 0;
+            while (true) {
+                // Read ahead one chunk, the last chunk is sealed with its own flag
+                byte[] next = chunk.length == readSize ? inputStream.readNBytes(readSize) : new byte[0];
+                boolean last = next.length == 0;
+                byte[] input = chunk;
+                long chunkIndex = index++;
+                bytes += mode == Cipher.ENCRYPT_MODE ? chunk.length : chunk.length - TAG_LENGTH;
+                pipeline.submit(() -> {
+                    if (mode == Cipher.DECRYPT_MODE) return new byte[][]{openChunk(key, iv, chunkIndex, last, input), null};
+                    byte[] sealed = sealChunk(key, iv, chunkIndex, last, input);
+                    return new byte[][]{sealed, leaves == null ? null : HashTree.hashLeaf(sealed, 0, sealed.length)};
+                });
+                if (last) break;
+                chunk = next;
+            }
+            pipeline.finish();
+            timer.stop(bytes);
+        }
+    }
+
+    private static byte[] processChunk(int mode, SecretKey key, IvParameterSpec iv, long index, boolean last, byte[] chunk) throws Exception {
+        Cipher cipher = CIPHERS.get();
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, getNonce(iv, index)));
+        cipher.updateAAD(ByteBuffer.allocate(9).putLong(index).put((byte) (last ? 1 : 0)).array());
+        return cipher.doFinal(chunk);
+    }
+
+    private static byte[] getNonce(IvParameterSpec iv, long index) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(iv.getIV(), 0, nonce, 0, NONCE_LENGTH);
+        for (int i = 0; i < 8; i++) {
+            nonce[NONCE_LENGTH - 1 - i] ^= (byte) (index >>> (8 * i));
+        }
+        return nonce;
+    }
+
+}
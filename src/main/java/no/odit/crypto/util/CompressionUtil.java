@@ -0,0 +1,208 @@
+package no.odit.crypto.util;
+
+import no.odit.crypto.type.CompressionCodec;
+import no.odit.crypto.type.StageType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses content before it is encrypted. The content is split into independent blocks that
+ * are compressed concurrently and written out in order, each behind a header with its original
+ * and stored length. Blocks that do not get smaller are stored as they are.
+ */
+public class CompressionUtil {
+
+    private static final int HEADER_LENGTH = 8;
+    public static CompressionCodec CODEC = System.getProperty("crypto.compression") == null ? null : CompressionCodec.valueOf(System.getProperty("crypto.compression"));
+    public static int LEVEL = Integer.getInteger("crypto.compression.level", Deflater.DEFAULT_COMPRESSION);
+    public static int BLOCK_SIZE = Integer.getInteger("crypto.compression.block.size", 1024 * 1024);
+
+    public static void compress(CompressionCodec codec, int level, InputStream inputStream, OutputStream outputStream) throws Exception {
+        if (codec != CompressionCodec.DEFLATE) throw new Exception("Unsupported compression codec " + codec + "!");
+        StageTimer timer = MetricsUtil.start(StageType.COMPRESSION);
+        long bytes = 0;
+        try (BoundedPipeline<byte[]> pipeline = new BoundedPipeline<>(outputStream::write)) {
+            while (true) {
+                byte[] block = inputStream.readNBytes(BLOCK_SIZE);
+                if (block.length == 0) break;
+                bytes += block.length;
+                pipeline.submit(() -> deflateBlock(level, block));
+            }
+            pipeline.finish();
+            timer.stop(bytes);
+        }
+    }
+
+    /**
+     * Returns the largest size the content can have once compressed, as blocks that do not get
+     * smaller are stored as they are behind their header.
+     */
+    public static long getMaxCompressedSize(long size) {
+        return size + HEADER_LENGTH * ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    public static void decompress(CompressionCodec codec, InputStream inputStream, OutputStream outputStream) throws Exception {
+        try (OutputStream decompressor = decompressingStream(codec, outputStream)) {
+            inputStream.transferTo(decompressor);
+        }
+    }
+
+    /**
+     * Returns a stream that decompresses the blocks written to it into the output stream.
+     * Closing the stream writes the remaining blocks, but does not close the output stream.
+     */
+    public static OutputStream decompressingStream(CompressionCodec codec, OutputStream outputStream) throws Exception {
+        if (codec != CompressionCodec.DEFLATE) throw new Exception("Unsupported compression codec " + codec + "!");
+        return new BlockDecompressor(outputStream);
+    }
+
+    /**
+     * Compresses a single block, with the same header as the blocks of a compressed payload.
+     */
+    public static byte[] compressBlock(CompressionCodec codec, int level, byte[] block) throws Exception {
+        if (codec != CompressionCodec.DEFLATE) throw new Exception("Unsupported compression codec " + codec + "!");
+        return deflateBlock(level, block);
+    }
+
+    public static byte[] decompressBlock(CompressionCodec codec, byte[] frame) throws Exception {
+        if (codec != CompressionCodec.DEFLATE) throw new Exception("Unsupported compression codec " + codec + "!");
+        if (frame.length < HEADER_LENGTH) throw new Exception("The compressed payload is corrupt!");
+        ByteBuffer header = ByteBuffer.wrap(frame);
+        int originalLength = header.getInt();
+        int storedLength = header.getInt();
+        if (originalLength <= 0 || storedLength <= 0 || storedLength > originalLength || storedLength != frame.length - HEADER_LENGTH) {
+            throw new Exception("The compressed payload is corrupt!");
+        }
+        return inflateBlock(originalLength, Arrays.copyOfRange(frame, HEADER_LENGTH, frame.length));
+    }
+
+    private static byte[] deflateBlock(int level, byte[] block) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(block);
+            deflater.finish();
+            byte[] buffer = new byte[HEADER_LENGTH + block.length];
+            int length = HEADER_LENGTH;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (!deflater.finished() || length == buffer.length) {
+                // Incompressible, the block is stored as it is. A stored length equal to the original
+                // length marks a raw block, so deflated output of that length is not kept either
+                System.arraycopy(block, 0, buffer, HEADER_LENGTH, block.length);
+                length = buffer.length;
+            }
+            ByteBuffer.wrap(buffer).putInt(block.length).putInt(length - HEADER_LENGTH);
+            return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflateBlock(int originalLength, byte[] stored) throws Exception {
+        if (stored.length == originalLength) return stored;
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            byte[] block = new byte[originalLength];
+            int length = 0;
+            while (length < originalLength) {
+                int inflated = inflater.inflate(block, length, originalLength - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new Exception("The compressed payload is corrupt!");
+                }
+                length += inflated;
+            }
+            return block;
+        } catch (DataFormatException exception) {
+            throw new Exception("The compressed payload is corrupt!");
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static class BlockDecompressor extends OutputStream {
+
+        private final BoundedPipeline<byte[]> pipeline;
+        private final StageTimer timer = MetricsUtil.start(StageType.DECOMPRESSION);
+        private long bytes;
+        private byte[] buffer = new byte[HEADER_LENGTH + BLOCK_SIZE];
+        private int length;
+
+        private BlockDecompressor(OutputStream outputStream) {
+            this.pipeline = new BoundedPipeline<>(outputStream::write);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) throws IOException {
+            while (count > 0) {
+                int required = getFrameLength();
+                if (buffer.length < required) buffer = Arrays.copyOf(buffer, required);
+                int copied = Math.min(count, required - length);
+                System.arraycopy(bytes, offset, buffer, length, copied);
+                length += copied;
+                offset += copied;
+                count -= copied;
+                if (length == HEADER_LENGTH) verifyHeader();
+                if (length == getFrameLength()) submitFrame();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (length > 0) throw new IOException("The compressed payload is truncated!");
+                pipeline.finish();
+                timer.stop(bytes);
+            } catch (Exception exception) {
+                throw toIOException(exception);
+            } finally {
+                pipeline.close();
+            }
+        }
+
+        private int getFrameLength() {
+            if (length < HEADER_LENGTH) return HEADER_LENGTH;
+            return HEADER_LENGTH + ByteBuffer.wrap(buffer).getInt(4);
+        }
+
+        private void verifyHeader() throws IOException {
+            int originalLength = ByteBuffer.wrap(buffer).getInt(0);
+            int storedLength = ByteBuffer.wrap(buffer).getInt(4);
+            if (originalLength <= 0 || storedLength <= 0 || storedLength > originalLength) {
+                throw new IOException("The compressed payload is corrupt!");
+            }
+        }
+
+        private static IOException toIOException(Exception exception) {
+            if (exception instanceof IOException) return (IOException) exception;
+            return new IOException(exception.getMessage(), exception);
+        }
+
+        private void submitFrame() throws IOException {
+            int originalLength = ByteBuffer.wrap(buffer).getInt(0);
+            byte[] stored = Arrays.copyOfRange(buffer, HEADER_LENGTH, length);
+            bytes += originalLength;
+            length = 0;
+            try {
+                pipeline.submit(() -> inflateBlock(originalLength, stored));
+            } catch (Exception exception) {
+                throw toIOException(exception);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,129 @@
+package no.odit.crypto.util;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only view of a chunked AES-GCM payload, see {@link VaultUtil#openDecryptedChannel}.
+ */
+public class DecryptedChannel implements SeekableByteChannel {
+
+    private final FileChannel fileChannel;
+    private final long payloadOffset;
+    private final long payloadSize;
+    private final SecretKey secretKey;
+    private final IvParameterSpec iv;
+    private final int chunkSize;
+    private final long chunks;
+    private final long size;
+    private final Map<Long, byte[]> cache;
+    private long position;
+
+    public DecryptedChannel(FileChannel fileChannel, long payloadOffset, long payloadSize, SecretKey secretKey,
+                            IvParameterSpec iv, int chunkSize, int cachedChunks) {
+        this.fileChannel = fileChannel;
+        this.payloadOffset = payloadOffset;
+        this.payloadSize = payloadSize;
+        this.secretKey = secretKey;
+        this.iv = iv;
+        this.chunkSize = chunkSize;
+        this.chunks = Math.max(1, (payloadSize + chunkSize + ChunkedAES.TAG_LENGTH - 1) / (chunkSize + ChunkedAES.TAG_LENGTH));
+        this.size = payloadSize - chunks * ChunkedAES.TAG_LENGTH;
+        this.cache = new LinkedHashMap<>(cachedChunks, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > cachedChunks;
+            }
+        };
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) return -1;
+        int bytesRead = 0;
+        while (dst.hasRemaining() && position < size) {
+            byte[] chunk = getChunk(position / chunkSize);
+            int offset = (int) (position % chunkSize);
+            int length = Math.min(dst.remaining(), chunk.length - offset);
+            dst.put(chunk, offset, length);
+            position += length;
+            bytesRead += length;
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) throw new IllegalArgumentException("Negative position!");
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return fileChannel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        cache.clear();
+        fileChannel.close();
+    }
+
+    private byte[] getChunk(long index) throws IOException {
+        byte[] chunk = cache.get(index);
+        if (chunk != null) return chunk;
+
+        long offset = index * (chunkSize + ChunkedAES.TAG_LENGTH);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(chunkSize + ChunkedAES.TAG_LENGTH, payloadSize - offset));
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, payloadOffset + offset + buffer.position()) == -1) {
+                throw new IOException("The vault is truncated!");
+            }
+        }
+        try {
+            chunk = ChunkedAES.openChunk(secretKey, iv, index, index == chunks - 1, buffer.array());
+        } catch (Exception exception) {
+            throw new IOException(exception.getMessage(), exception);
+        }
+        cache.put(index, chunk);
+        return chunk;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!fileChannel.isOpen()) throw new ClosedChannelException();
+    }
+
+}
@@ -0,0 +1,95 @@
+package no.odit.crypto.util;
+
+import no.odit.crypto.type.StageType;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merkle tree over the sealed chunks of a payload, so a vault can be checked for corruption
+ * without the passphrase or the puzzle solution. Every sealed chunk is a leaf, hashed with
+ * SHA-256 and a leaf prefix, and every pair of nodes is hashed with a node prefix up to the root.
+ * A node without a pair is moved up a level as it is. Payloads are hashed on one thread per core,
+ * with large positional reads of several chunks at a time.
+ */
+public class HashTree {
+
+    public static final int HASH_LENGTH = 32;
+    public static int READ_SIZE = Integer.getInteger("crypto.verify.read.size", 16 * 1024 * 1024);
+
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (Exception exception) {
+            throw new IllegalStateException(exception);
+        }
+    });
+
+    public static byte[] hashLeaf(byte[] chunk, int offset, int length) {
+        MessageDigest digest = DIGESTS.get();
+        digest.update(LEAF_PREFIX);
+        digest.update(chunk, offset, length);
+        return digest.digest();
+    }
+
+    public static byte[] getRoot(List<byte[]> leaves) {
+        List<byte[]> level = new ArrayList<>(leaves);
+        if (level.isEmpty()) return DIGESTS.get().digest(new byte[]{NODE_PREFIX});
+        MessageDigest digest = DIGESTS.get();
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 == level.size()) {
+                    parents.add(level.get(i));
+                    continue;
+                }
+                digest.update(NODE_PREFIX);
+                digest.update(level.get(i));
+                digest.update(level.get(i + 1));
+                parents.add(digest.digest());
+            }
+            level = parents;
+        }
+        return level.get(0);
+    }
+
+    /**
+     * Hashes the sealed chunks of a payload stored at the given offset of the file, and adds the
+     * leaves in order. The last chunk of the payload may be shorter than the others.
+     */
+    public static void hashPayload(FileChannel fileChannel, long offset, long length, int chunkSize, List<byte[]> leaves) throws Exception {
+        int leafSize = chunkSize + ChunkedAES.TAG_LENGTH;
+        long readSize = (long) leafSize * Math.max(1, READ_SIZE / leafSize);
+        StageTimer timer = MetricsUtil.start(StageType.VERIFICATION);
+        try (BoundedPipeline<List<byte[]>> pipeline = new BoundedPipeline<>(leaves::addAll)) {
+            for (long position = 0; position < length; position += readSize) {
+                long start = offset + position;
+                int size = (int) Math.min(readSize, length - position);
+                pipeline.submit(() -> hashLeaves(fileChannel, start, size, leafSize));
+            }
+            pipeline.finish();
+            timer.stop(length);
+        }
+    }
+
+    private static List<byte[]> hashLeaves(FileChannel fileChannel, long position, int size, int leafSize) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position()) == -1) {
+                throw new Exception("The vault is truncated!");
+            }
+        }
+        List<byte[]> leaves = new ArrayList<>(size / leafSize + 1);
+        for (int offset = 0; offset < size; offset += leafSize) {
+            leaves.add(hashLeaf(buffer.array(), offset, Math.min(leafSize, size - offset)));
+        }
+        return leaves;
+    }
+
+}
@@ -0,0 +1,363 @@
+package no.odit.crypto.util;
+
+import no.odit.crypto.model.EncryptionDetails;
+import no.odit.crypto.model.KeyringMember;
+import no.odit.crypto.model.PuzzleDetails;
+import no.odit.crypto.type.CompressionCodec;
+import no.odit.crypto.type.PayloadFormat;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Binary vault header, replacing the JSON details of older vaults. The public section holds what
+ * can be shown without the passphrase, like the puzzle length and creation time. The sealed section
+ * holds the puzzle, the IV and the file names, encrypted with AES-GCM under a key derived from the
+ * password, with the public section as associated data. The puzzle numbers are fixed-length fields
+ * at the start of the sealed section. Version 2 adds the wrapped payload key and the locked puzzles
+ * of vaults whose lock time was extended. Version 3 adds the root of the {@link HashTree} over
+ * the payload, so the payload can be verified without the passphrase.
+ * <pre>
+ * magic "CFSV", version (2), field length (2), t (8), locked t (8), locked layers (2),
+ * squarings/s (8), chunk size (4), compression level (1), creation date (8), creation time (8),
+ * payload format, compression codec, machine id, payload root, nonce (12), sealed length (4),
+ * sealed section
+ * </pre>
+ */
+public class HeaderUtil {
+
+    public static final int VERSION = 3;
+    public static final int MAX_LENGTH = 16 * 1024 * 1024;
+    private static final byte[] MAGIC = "CFSV".getBytes(StandardCharsets.US_ASCII);
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+    private static final String KEY_ALGORITHM = "HmacSHA256";
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    private static final int NULL_LENGTH = 0xFFFF;
+    private static final SecureRandom random = new SecureRandom();
+
+    public static boolean isHeader(byte[] bytes) {
+        return bytes.length >= MAGIC.length && Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC);
+    }
+
+    public static byte[] writeHeader(EncryptionDetails details, String password) throws Exception {
+        int fieldLength = Math.max(getLength(details.getN()), getLength(details.getZ()));
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        byte[] sealed = writeSealedSection(details, fieldLength);
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(byteStream);
+        output.write(MAGIC);
+        output.writeShort(VERSION);
+        output.writeShort(fieldLength);
+        output.writeLong(details.getT().longValueExact());
+        output.writeLong(details.getLockedT() == null ? 0 : details.getLockedT().longValueExact());
+        output.writeShort(details.getLockedLayers() == null ? 0 : details.getLockedLayers());
+        output.writeLong(details.getSquaringsPerSecond() == null ? 0 : details.getSquaringsPerSecond().longValueExact());
+        output.writeInt(details.getChunkSize() == null ? 0 : details.getChunkSize());
+        output.writeByte(details.getCompressionLevel() == null ? 0 : details.getCompressionLevel());
+        output.writeLong(details.getDate().toEpochDay());
+        output.writeLong(details.getTime().toNanoOfDay());
+        writeText(output, details.getPayloadFormat() == null ? null : details.getPayloadFormat().name());
+        writeText(output, details.getCompressionCodec() == null ? null : details.getCompressionCodec().name());
+        writeText(output, details.getMachineId());
+        writeBytes(output, details.getPayloadRoot() == null ? null : Base64.getDecoder().decode(details.getPayloadRoot()));
+        output.write(nonce);
+        output.writeInt(sealed.length + TAG_LENGTH);
+        output.flush();
+        byte[] publicSection = byteStream.toByteArray();
+
+        Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, password, nonce);
+        cipher.updateAAD(publicSection);
+        byteStream.write(cipher.doFinal(sealed));
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * Seals the bytes under the key derived from the password, like the sealed section of the header.
+     */
+    public static byte[] seal(byte[] bytes, String password) throws Exception {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        byte[] sealed = getCipher(Cipher.ENCRYPT_MODE, password, nonce).doFinal(bytes);
+        byte[] result = Arrays.copyOf(nonce, NONCE_LENGTH + sealed.length);
+        System.arraycopy(sealed, 0, result, NONCE_LENGTH, sealed.length);
+        return result;
+    }
+
+    public static byte[] open(byte[] sealed, String password) throws Exception {
+        try {
+            Cipher cipher = getCipher(Cipher.DECRYPT_MODE, password, Arrays.copyOf(sealed, NONCE_LENGTH));
+            return cipher.doFinal(sealed, NONCE_LENGTH, sealed.length - NONCE_LENGTH);
+        } catch (AEADBadTagException exception) {
+            throw new Exception("Wrong passphrase!");
+        }
+    }
+
+    /**
+     * Returns the length of the header, or -1 if more bytes are needed to tell.
+     */
+    public static int getHeaderLength(byte[] bytes) throws Exception {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            readPublicSection(input, EncryptionDetails.builder().build(), readVersion(input));
+            input.readFully(new byte[NONCE_LENGTH]);
+            int sealedLength = input.readInt();
+            return bytes.length - input.available() + sealedLength;
+        } catch (EOFException exception) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the public section of the header, without the passphrase.
+     */
+    public static EncryptionDetails readPublicHeader(byte[] bytes) throws Exception {
+        EncryptionDetails details = EncryptionDetails.builder().build();
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        readPublicSection(input, details, readVersion(input));
+        return details;
+    }
+
+    public static EncryptionDetails readHeader(byte[] bytes, String password) throws Exception {
+        EncryptionDetails details = EncryptionDetails.builder().build();
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        int version = readVersion(input);
+        int fieldLength = readPublicSection(input, details, version);
+        byte[] nonce = new byte[NONCE_LENGTH];
+        input.readFully(nonce);
+        int sealedLength = input.readInt();
+        int publicLength = bytes.length - input.available();
+
+        byte[] sealed;
+        try {
+            Cipher cipher = getCipher(Cipher.DECRYPT_MODE, password, nonce);
+            cipher.updateAAD(bytes, 0, publicLength);
+            sealed = cipher.doFinal(bytes, publicLength, sealedLength);
+        } catch (AEADBadTagException exception) {
+            throw new Exception("Wrong passphrase!");
+        }
+        readSealedSection(new DataInputStream(new ByteArrayInputStream(sealed)), details, fieldLength, version);
+        return details;
+    }
+
+    /**
+     * Seals a puzzle, and the puzzles it locks in turn, under the secret key of the puzzle that locks it.
+     */
+    public static String sealPuzzle(PuzzleDetails puzzle, SecretKey secretKey) throws Exception {
+        int fieldLength = Math.max(getLength(puzzle.getN()), getLength(puzzle.getZ()));
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(byteStream);
+        output.writeShort(fieldLength);
+        output.writeLong(puzzle.getT().longValueExact());
+        output.write(toFixedLength(puzzle.getN(), fieldLength));
+        output.write(toFixedLength(puzzle.getZ(), fieldLength));
+        writeBytes(output, puzzle.getLockedPuzzle() == null ? null : Base64.getDecoder().decode(puzzle.getLockedPuzzle()));
+        output.flush();
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+        sealed.write(nonce);
+        sealed.write(cipher.doFinal(byteStream.toByteArray()));
+        return encode(sealed.toByteArray());
+    }
+
+    public static PuzzleDetails openPuzzle(String lockedPuzzle, SecretKey secretKey) throws Exception {
+        byte[] bytes = Base64.getDecoder().decode(lockedPuzzle);
+        byte[] opened;
+        try {
+            Cipher cipher = Cipher.getInstance(ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(TAG_LENGTH * 8, bytes, 0, NONCE_LENGTH));
+            opened = cipher.doFinal(bytes, NONCE_LENGTH, bytes.length - NONCE_LENGTH);
+        } catch (AEADBadTagException exception) {
+            throw new Exception("The locked puzzle is corrupt!");
+        }
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(opened));
+        int fieldLength = input.readUnsignedShort();
+        BigInteger t = BigInteger.valueOf(input.readLong());
+        byte[] field = new byte[fieldLength];
+        input.readFully(field);
+        BigInteger n = new BigInteger(1, field);
+        input.readFully(field);
+        BigInteger z = new BigInteger(1, field);
+        return PuzzleDetails.builder().n(n).t(t).z(z).lockedPuzzle(encode(readBytes(input))).build();
+    }
+
+    private static int readVersion(DataInputStream input) throws Exception {
+        byte[] magic = new byte[MAGIC.length];
+        input.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new Exception("The vault header is corrupt!");
+        }
+        int version = input.readUnsignedShort();
+        if (version < 1 || version > VERSION) {
+            throw new Exception("The vault header version " + version + " is not supported!");
+        }
+        return version;
+    }
+
+    private static int readPublicSection(DataInputStream input, EncryptionDetails details, int version) throws Exception {
+        int fieldLength = input.readUnsignedShort();
+        details.setT(BigInteger.valueOf(input.readLong()));
+        if (version >= 2) {
+            long lockedT = input.readLong();
+            details.setLockedT(lockedT == 0 ? null : BigInteger.valueOf(lockedT));
+            int lockedLayers = input.readUnsignedShort();
+            details.setLockedLayers(lockedLayers == 0 ? null : lockedLayers);
+        }
+        long squaringsPerSecond = input.readLong();
+        details.setSquaringsPerSecond(squaringsPerSecond == 0 ? null : BigInteger.valueOf(squaringsPerSecond));
+        int chunkSize = input.readInt();
+        details.setChunkSize(chunkSize == 0 ? null : chunkSize);
+        int compressionLevel = input.readByte();
+        details.setDate(LocalDate.ofEpochDay(input.readLong()));
+        details.setTime(LocalTime.ofNanoOfDay(input.readLong()));
+        String payloadFormat = readText(input);
+        details.setPayloadFormat(payloadFormat == null ? null : PayloadFormat.valueOf(payloadFormat));
+        String compressionCodec = readText(input);
+        details.setCompressionCodec(compressionCodec == null ? null : CompressionCodec.valueOf(compressionCodec));
+        details.setCompressionLevel(compressionCodec == null ? null : compressionLevel);
+        details.setMachineId(readText(input));
+        if (version >= 3) {
+            details.setPayloadRoot(encode(readBytes(input)));
+        }
+        return fieldLength;
+    }
+
+    private static byte[] writeSealedSection(EncryptionDetails details, int fieldLength) throws Exception {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(byteStream);
+        output.write(toFixedLength(details.getN(), fieldLength));
+        output.write(toFixedLength(details.getZ(), fieldLength));
+        writeBytes(output, details.getIvParameterSpec() == null ? null : Base64.getDecoder().decode(details.getIvParameterSpec()));
+        writeBytes(output, details.getPinVerifier() == null ? null : Base64.getDecoder().decode(details.getPinVerifier()));
+        writeBytes(output, details.getWrappedKey() == null ? null : Base64.getDecoder().decode(details.getWrappedKey()));
+        writeBytes(output, details.getLockedPuzzle() == null ? null : Base64.getDecoder().decode(details.getLockedPuzzle()));
+        writeText(output, details.getFileName());
+        writeText(output, details.getFileExtension());
+        output.writeInt(details.getMembers() == null ? -1 : details.getMembers().size());
+        if (details.getMembers() != null) {
+            for (KeyringMember member : details.getMembers()) {
+                writeText(output, member.getFileName());
+                writeText(output, member.getFileExtension());
+                output.writeLong(member.getSize());
+                writeBytes(output, Base64.getDecoder().decode(member.getIvParameterSpec()));
+                writeBytes(output, Base64.getDecoder().decode(member.getWrappedKey()));
+                writeText(output, member.getPayloadFormat().name());
+                output.writeInt(member.getChunkSize());
+            }
+        }
+        output.flush();
+        return byteStream.toByteArray();
+    }
+
+    private static void readSealedSection(DataInputStream input, EncryptionDetails details, int fieldLength, int version) throws Exception {
+        byte[] field = new byte[fieldLength];
+        input.readFully(field);
+        details.setN(new BigInteger(1, field));
+        input.readFully(field);
+        details.setZ(new BigInteger(1, field));
+        details.setIvParameterSpec(encode(readBytes(input)));
+        details.setPinVerifier(encode(readBytes(input)));
+        if (version >= 2) {
+            details.setWrappedKey(encode(readBytes(input)));
+            details.setLockedPuzzle(encode(readBytes(input)));
+        }
+        details.setFileName(readText(input));
+        details.setFileExtension(readText(input));
+        int memberCount = input.readInt();
+        if (memberCount >= 0) {
+            List<KeyringMember> members = new ArrayList<>(memberCount);
+            for (int i = 0; i < memberCount; i++) {
+                members.add(KeyringMember.builder()
+                        .fileName(readText(input))
+                        .fileExtension(readText(input))
+                        .size(input.readLong())
+                        .ivParameterSpec(encode(readBytes(input)))
+                        .wrappedKey(encode(readBytes(input)))
+                        .payloadFormat(PayloadFormat.valueOf(readText(input)))
+                        .chunkSize(input.readInt())
+                        .build());
+            }
+            details.setMembers(members);
+        }
+    }
+
+    private static Cipher getCipher(int mode, String password, byte[] nonce) throws Exception {
+        Mac mac = Mac.getInstance(KEY_ALGORITHM);
+        mac.init(new SecretKeySpec(password.getBytes(StandardCharsets.UTF_8), KEY_ALGORITHM));
+        byte[] key = mac.doFinal("header".getBytes(StandardCharsets.UTF_8));
+        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        cipher.init(mode, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        return cipher;
+    }
+
+    private static int getLength(BigInteger value) {
+        return (value.bitLength() + 7) / 8;
+    }
+
+    private static byte[] toFixedLength(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        int offset = bytes.length > length ? bytes.length - length : 0;
+        byte[] field = new byte[length];
+        System.arraycopy(bytes, offset, field, length - (bytes.length - offset), bytes.length - offset);
+        return field;
+    }
+
+    private static void writeText(DataOutputStream output, String text) throws Exception {
+        output.writeBoolean(text != null);
+        if (text != null) output.writeUTF(text);
+    }
+
+    private static String readText(DataInputStream input) throws Exception {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    /**
+     * Writes the length as an unsigned short before the bytes, where 0xFFFF marks null. Every lock
+     * extension nests the previous locked puzzle, so a field that no longer fits fails the write
+     * instead of leaving a header that can not be read back.
+     */
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws Exception {
+        if (bytes != null && bytes.length >= NULL_LENGTH) {
+            throw new Exception("A field of " + bytes.length + " bytes is too long for the vault header!");
+        }
+        output.writeShort(bytes == null ? NULL_LENGTH : bytes.length);
+        if (bytes != null) output.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream input) throws Exception {
+        int length = input.readUnsignedShort();
+        if (length == NULL_LENGTH) return null;
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    private static String encode(byte[] bytes) {
+        return bytes == null ? null : Base64.getEncoder().encodeToString(bytes);
+    }
+
+}
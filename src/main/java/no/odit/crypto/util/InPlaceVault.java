@@ -0,0 +1,480 @@
+package no.odit.crypto.util;
+
+import no.odit.crypto.model.InPlaceJournal;
+import no.odit.crypto.type.JournalMode;
+import no.odit.crypto.type.StageType;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * Vaults that are encrypted into the content file itself, so a file can be encrypted with only a
+ * few megabytes of free disk space and in a single pass. The chunks are sealed like the chunks of
+ * {@link ChunkedAES}, but the ciphertext is written over the plaintext at the same offset, and the
+ * tags, the header and a footer are appended as a trailer. A new header is appended with a new
+ * footer, and the last footer is the one that counts.
+ * <pre>
+ * ciphertext (content size), tags (16 per chunk), header, content size (8), header offset (8),
+ * header length (4), magic "CFSI"
+ * </pre>
+ * Progress is kept in a journal next to the file. Before a batch of chunks is written, the journal
+ * records a CRC32C of every 512-byte block of the plaintext of the batch. After a crash, every block
+ * of the interrupted batch is either plaintext or ciphertext, which is told apart by the checksums,
+ * so the batch is restored to plaintext and the run can be resumed or rolled back.
+ */
+public class InPlaceVault {
+
+    public static int BATCH_SIZE = Integer.getInteger("crypto.in.place.batch.size", 64 * 1024 * 1024);
+
+    private static final byte[] MAGIC = "CFSI".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] JOURNAL_MAGIC = "CFSJ".getBytes(StandardCharsets.US_ASCII);
+    private static final int JOURNAL_VERSION = 1;
+    private static final String JOURNAL_FILE_EXTENSION = ".journal";
+    private static final int FOOTER_LENGTH = 24;
+    private static final int BLOCK_SIZE = 512;
+    private static final int SLOTS = 2;
+
+    public static File getJournalFile(File file) {
+        return new File(file.getPath() + JOURNAL_FILE_EXTENSION);
+    }
+
+    public static long getChunkCount(long contentSize, int chunkSize) {
+        return Math.max(1, (contentSize + chunkSize - 1) / chunkSize);
+    }
+
+    public static int getBatchChunks(int chunkSize) {
+        return Math.max(1, BATCH_SIZE / chunkSize);
+    }
+
+    public static boolean isInPlaceVault(File file) throws Exception {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return readFooter(fileChannel) != null;
+        }
+    }
+
+    /**
+     * Returns the header in the trailer, or null if the file is not an in-place vault.
+     */
+    public static byte[] readHeader(File file) throws Exception {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] footer = readFooter(fileChannel);
+            if (footer == null) return null;
+            ByteBuffer header = ByteBuffer.allocate((int) footer[2]);
+            readFully(fileChannel, header, footer[1]);
+            return header.array();
+        }
+    }
+
+    public static long getContentSize(File file) throws Exception {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] footer = readFooter(fileChannel);
+            if (footer == null) throw new Exception("The file " + file.getName() + " is not an in-place vault!");
+            return footer[0];
+        }
+    }
+
+    /**
+     * Returns the size of the ciphertext and the tags.
+     */
+    public static long getPayloadSize(File file, int chunkSize) throws Exception {
+        long contentSize = getContentSize(file);
+        return contentSize + getChunkCount(contentSize, chunkSize) * ChunkedAES.TAG_LENGTH;
+    }
+
+    /**
+     * Appends the header with a footer that points to it, which replaces the header of the vault.
+     */
+    public static void writeHeader(File file, byte[] header) throws Exception {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long[] footer = readFooter(fileChannel);
+            if (footer == null) throw new Exception("The file " + file.getName() + " is not an in-place vault!");
+            appendHeader(fileChannel, footer[0], fileChannel.size(), header);
+        }
+    }
+
+    /**
+     * Writes the header and the footer after the tags, which completes the vault.
+     */
+    public static void finishVault(File file, InPlaceJournal journal, byte[] header) throws Exception {
+        long offset = journal.getContentSize() + getChunkCount(journal.getContentSize(), journal.getChunkSize()) * ChunkedAES.TAG_LENGTH;
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            fileChannel.truncate(offset);
+            appendHeader(fileChannel, journal.getContentSize(), offset, header);
+        }
+    }
+
+    /**
+     * Removes the tags and the trailer, which leaves the decrypted content.
+     */
+    public static void truncateVault(File file, long contentSize) throws Exception {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            fileChannel.truncate(contentSize);
+            fileChannel.force(true);
+        }
+    }
+
+    /**
+     * Hashes the sealed chunks, which are the ciphertext of every chunk followed by its tag, and
+     * returns the root of their {@link HashTree}.
+     */
+    public static byte[] hashPayload(File file, long contentSize, int chunkSize) throws Exception {
+        long chunkCount = getChunkCount(contentSize, chunkSize);
+        int batchChunks = Math.max(1, HashTree.READ_SIZE / chunkSize);
+        List<byte[]> leaves = new ArrayList<>();
+        StageTimer timer = MetricsUtil.start(StageType.VERIFICATION);
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             BoundedPipeline<List<byte[]>> pipeline = new BoundedPipeline<>(leaves::addAll)) {
+            for (long start = 0; start < chunkCount; start += batchChunks) {
+                long first = start;
+                int count = (int) Math.min(batchChunks, chunkCount - start);
+                pipeline.submit(() -> hashChunks(fileChannel, contentSize, chunkSize, first, count));
+            }
+            pipeline.finish();
+            timer.stop(contentSize);
+        }
+        return HashTree.getRoot(leaves);
+    }
+
+    /**
+     * Writes a new journal, with empty batch records.
+     */
+    public static void writeJournal(File journalFile, InPlaceJournal journal) throws Exception {
+        byte[] fixedPart = writeFixedPart(journal);
+        byte[] bytes = Arrays.copyOf(fixedPart, fixedPart.length + SLOTS * getSlotLength(journal));
+        StorageUtil.writeAtomically(journalFile, bytes);
+    }
+
+    /**
+     * Overwrites the journal with zeros before it is deleted, so the sealed payload key does not
+     * stay behind on the disk.
+     */
+    public static void deleteJournal(File journalFile) throws Exception {
+        try (FileChannel journalChannel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+            writeFully(journalChannel, ByteBuffer.allocate((int) journalChannel.size()), 0);
+            journalChannel.force(true);
+        }
+        if (!journalFile.delete()) {
+            throw new Exception("Unable to delete the journal " + journalFile.getName() + ", delete it before using the file again!");
+        }
+    }
+
+    public static InPlaceJournal readJournal(File journalFile) throws Exception {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(journalFile.toPath())));
+        byte[] magic = new byte[JOURNAL_MAGIC.length];
+        input.readFully(magic);
+        if (!Arrays.equals(magic, JOURNAL_MAGIC)) throw new Exception("The journal " + journalFile.getName() + " is corrupt!");
+        int version = input.readUnsignedShort();
+        if (version != JOURNAL_VERSION) throw new Exception("The journal version " + version + " is not supported!");
+        InPlaceJournal journal = InPlaceJournal.builder()
+                .mode(JournalMode.valueOf(input.readUTF()))
+                .keyName(input.readUTF())
+                .targetPath(input.readUTF())
+                .contentSize(input.readLong())
+                .chunkSize(input.readInt())
+                .chunkCount(input.readLong())
+                .batchChunks(input.readInt())
+                .ivParameterSpec(input.readUTF())
+                .build();
+        byte[] sealedKey = new byte[input.readInt()];
+        input.readFully(sealedKey);
+        journal.setSealedKey(sealedKey);
+        int headerLength = input.readInt();
+        if (headerLength >= 0) {
+            byte[] header = new byte[headerLength];
+            input.readFully(header);
+            journal.setHeader(header);
+        }
+        return journal;
+    }
+
+    /**
+     * Restores the batch that was interrupted to plaintext and returns the number of chunks that
+     * are done. When encrypting, the chunks of the restored batch are not done.
+     */
+    public static long recover(File file, File journalFile, InPlaceJournal journal, SecretKey secretKey) throws Exception {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel journalChannel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+            return recover(fileChannel, journalChannel, journal, secretKey)[1];
+        }
+    }
+
+    /**
+     * Encrypts or decrypts the chunks of the journal in place, after restoring the batch that was
+     * interrupted. Every batch is read with one read, sealed or opened on the shared workers,
+     * recorded in the journal and written back with one write. When encrypting, the leaves of the
+     * sealed chunks are added to the list, if there is one.
+     */
+    public static void transform(File file, File journalFile, InPlaceJournal journal, SecretKey secretKey, List<byte[]> leaves) throws Exception {
+        boolean encrypt = journal.getMode() == JournalMode.ENCRYPTION;
+        IvParameterSpec iv = AES.decodeIvParameterSpec(journal.getIvParameterSpec());
+        long contentSize = journal.getContentSize();
+        int chunkSize = journal.getChunkSize();
+        long lastChunk = getChunkCount(contentSize, chunkSize) - 1;
+        int blocksPerChunk = getBlocksPerChunk(journal);
+        long slotsOffset = writeFixedPart(journal).length;
+        int slotLength = getSlotLength(journal);
+        StageTimer timer = MetricsUtil.start(encrypt ? StageType.ENCRYPTION : StageType.DECRYPTION);
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel journalChannel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+             BoundedPipeline<Object> pipeline = new BoundedPipeline<>(result -> { })) {
+            long[] state = recover(fileChannel, journalChannel, journal, secretKey);
+            long sequence = state[0];
+            long bytes = 0;
+            long reported = System.currentTimeMillis();
+            for (long start = state[1]; start < journal.getChunkCount(); start += journal.getBatchChunks()) {
+                long first = start;
+                int count = (int) Math.min(journal.getBatchChunks(), journal.getChunkCount() - start);
+                long offset = start * chunkSize;
+                int length = (int) (Math.min(contentSize, (start + count) * chunkSize) - offset);
+                byte[] region = new byte[length];
+                byte[] tags = new byte[count * ChunkedAES.TAG_LENGTH];
+                readFully(fileChannel, ByteBuffer.wrap(region), offset);
+                if (!encrypt) readFully(fileChannel, ByteBuffer.wrap(tags), contentSize + start * ChunkedAES.TAG_LENGTH);
+
+                int[] checksums = new int[count * blocksPerChunk];
+                byte[][] batchLeaves = new byte[count][];
+                for (int i = 0; i < count; i++) {
+                    int chunk = i;
+                    pipeline.submit(() -> {
+                        long index = first + chunk;
+                        int chunkOffset = chunk * chunkSize;
+                        byte[] input = Arrays.copyOfRange(region, chunkOffset, Math.min(length, chunkOffset + chunkSize));
+                        if (encrypt) {
+                            addChecksums(input, checksums, chunk * blocksPerChunk);
+                            byte[] sealed = ChunkedAES.sealChunk(secretKey, iv, index, index == lastChunk, input);
+                            System.arraycopy(sealed, 0, region, chunkOffset, input.length);
+                            System.arraycopy(sealed, input.length, tags, chunk * ChunkedAES.TAG_LENGTH, ChunkedAES.TAG_LENGTH);
+                            if (leaves != null) batchLeaves[chunk] = HashTree.hashLeaf(sealed, 0, sealed.length);
+                        } else {
+                            byte[] sealed = Arrays.copyOf(input, input.length + ChunkedAES.TAG_LENGTH);
+                            System.arraycopy(tags, chunk * ChunkedAES.TAG_LENGTH, sealed, input.length, ChunkedAES.TAG_LENGTH);
+                            byte[] plaintext = ChunkedAES.openChunk(secretKey, iv, index, index == lastChunk, sealed);
+                            addChecksums(plaintext, checksums, chunk * blocksPerChunk);
+                            System.arraycopy(plaintext, 0, region, chunkOffset, plaintext.length);
+                        }
+                        return null;
+                    });
+                }
+                pipeline.finish();
+
+                // The batch is recorded before it is written, so an interrupted write can be restored
+                writeRecord(journalChannel, slotsOffset + (sequence % SLOTS) * slotLength, slotLength, sequence++, start, count, checksums);
+                writeFully(fileChannel, ByteBuffer.wrap(region), offset);
+                if (encrypt) writeFully(fileChannel, ByteBuffer.wrap(tags), contentSize + start * ChunkedAES.TAG_LENGTH);
+                fileChannel.force(true);
+                if (leaves != null) leaves.addAll(Arrays.asList(batchLeaves));
+
+                bytes += length;
+                if (System.currentTimeMillis() - reported >= TimeLockPuzzle.PROGRESS_INTERVAL * 1000) {
+                    reported = System.currentTimeMillis();
+                    System.out.println((encrypt ? "Encrypted " : "Decrypted ") + (start + count) + " of " + journal.getChunkCount() + " chunks...");
+                }
+            }
+            timer.stop(bytes);
+        }
+    }
+
+    /**
+     * Reads the latest batch record of the journal and restores the chunks of the batch to
+     * plaintext. Returns the next sequence number and the number of chunks that are done.
+     */
+    private static long[] recover(FileChannel fileChannel, FileChannel journalChannel, InPlaceJournal journal, SecretKey secretKey) throws Exception {
+        long slotsOffset = writeFixedPart(journal).length;
+        int slotLength = getSlotLength(journal);
+        ByteBuffer latest = null;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            ByteBuffer record = ByteBuffer.allocate(slotLength);
+            readFully(journalChannel, record, slotsOffset + (long) slot * slotLength);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, slotLength - 4);
+            if ((int) crc.getValue() != record.getInt(slotLength - 4)) continue;
+            if (latest == null || record.getLong(0) > latest.getLong(0)) latest = record;
+        }
+        if (latest == null) return new long[]{0, 0};
+
+        long sequence = latest.getLong(0);
+        long start = latest.getLong(8);
+        int count = latest.getInt(16);
+        IvParameterSpec iv = AES.decodeIvParameterSpec(journal.getIvParameterSpec());
+        int blocksPerChunk = getBlocksPerChunk(journal);
+        boolean restored = false;
+        for (int i = 0; i < count; i++) {
+            int[] checksums = new int[blocksPerChunk];
+            for (int block = 0; block < blocksPerChunk; block++) {
+                checksums[block] = latest.getInt(20 + 4 * (i * blocksPerChunk + block));
+            }
+            restored |= restoreChunk(fileChannel, journal, secretKey, iv, start + i, checksums);
+        }
+        if (restored) {
+            fileChannel.force(true);
+            System.out.println("Restored " + count + " chunks of the interrupted batch.");
+        }
+        boolean encrypt = journal.getMode() == JournalMode.ENCRYPTION;
+        return new long[]{sequence + 1, encrypt ? start : start + count};
+    }
+
+    /**
+     * Restores every block of the chunk that is ciphertext to plaintext. The ciphertext of a block
+     * is the plaintext XOR the key stream, which is the chunk of zeros sealed with the same nonce.
+     */
+    private static boolean restoreChunk(FileChannel fileChannel, InPlaceJournal journal, SecretKey secretKey, IvParameterSpec iv,
+                                        long index, int[] checksums) throws Exception {
+        long contentSize = journal.getContentSize();
+        long offset = index * journal.getChunkSize();
+        byte[] chunk = new byte[(int) Math.min(journal.getChunkSize(), contentSize - offset)];
+        readFully(fileChannel, ByteBuffer.wrap(chunk), offset);
+        boolean last = index == getChunkCount(contentSize, journal.getChunkSize()) - 1;
+        byte[] keyStream = null;
+        CRC32C crc = new CRC32C();
+        for (int block = 0; block * BLOCK_SIZE < chunk.length; block++) {
+            int blockOffset = block * BLOCK_SIZE;
+            int blockLength = Math.min(BLOCK_SIZE, chunk.length - blockOffset);
+            crc.reset();
+            crc.update(chunk, blockOffset, blockLength);
+            if ((int) crc.getValue() == checksums[block]) continue;
+            if (keyStream == null) keyStream = ChunkedAES.sealChunk(secretKey, iv, index, last, new byte[chunk.length]);
+            for (int i = blockOffset; i < blockOffset + blockLength; i++) {
+                chunk[i] ^= keyStream[i];
+            }
+            crc.reset();
+            crc.update(chunk, blockOffset, blockLength);
+            if ((int) crc.getValue() != checksums[block]) {
+                throw new Exception("Unable to restore chunk " + index + ", the file was changed after it was interrupted!");
+            }
+        }
+        if (keyStream == null) return false;
+        writeFully(fileChannel, ByteBuffer.wrap(chunk), offset);
+        return true;
+    }
+
+    private static void writeRecord(FileChannel journalChannel, long position, int slotLength, long sequence, long start, int count, int[] checksums) throws Exception {
+        ByteBuffer record = ByteBuffer.allocate(slotLength);
+        record.putLong(sequence).putLong(start).putInt(count);
+        for (int checksum : checksums) {
+            record.putInt(checksum);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, slotLength - 4);
+        record.putInt(slotLength - 4, (int) crc.getValue());
+        record.clear();
+        writeFully(journalChannel, record, position);
+        journalChannel.force(false);
+    }
+
+    private static void addChecksums(byte[] data, int[] checksums, int index) {
+        CRC32C crc = new CRC32C();
+        for (int offset = 0; offset < data.length; offset += BLOCK_SIZE) {
+            crc.reset();
+            crc.update(data, offset, Math.min(BLOCK_SIZE, data.length - offset));
+            checksums[index++] = (int) crc.getValue();
+        }
+    }
+
+    private static List<byte[]> hashChunks(FileChannel fileChannel, long contentSize, int chunkSize, long first, int count) throws Exception {
+        long offset = first * chunkSize;
+        int length = (int) (Math.min(contentSize, (first + count) * chunkSize) - offset);
+        byte[] region = new byte[length];
+        byte[] tags = new byte[count * ChunkedAES.TAG_LENGTH];
+        readFully(fileChannel, ByteBuffer.wrap(region), offset);
+        readFully(fileChannel, ByteBuffer.wrap(tags), contentSize + first * ChunkedAES.TAG_LENGTH);
+        List<byte[]> leaves = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int chunkOffset = i * chunkSize;
+            int chunkLength = Math.min(chunkSize, length - chunkOffset);
+            byte[] sealed = Arrays.copyOfRange(region, chunkOffset, chunkOffset + chunkLength + ChunkedAES.TAG_LENGTH);
+            System.arraycopy(tags, i * ChunkedAES.TAG_LENGTH, sealed, chunkLength, ChunkedAES.TAG_LENGTH);
+            leaves.add(HashTree.hashLeaf(sealed, 0, sealed.length));
+        }
+        return leaves;
+    }
+
+    /**
+     * Returns the content size, header offset and header length of the last footer, or null if
+     * the file does not end with a footer.
+     */
+    private static long[] readFooter(FileChannel fileChannel) throws Exception {
+        long size = fileChannel.size();
+        if (size < FOOTER_LENGTH) return null;
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH);
+        readFully(fileChannel, footer, size - FOOTER_LENGTH);
+        if (!Arrays.equals(Arrays.copyOfRange(footer.array(), FOOTER_LENGTH - MAGIC.length, FOOTER_LENGTH), MAGIC)) return null;
+        long contentSize = footer.getLong(0);
+        long headerOffset = footer.getLong(8);
+        int headerLength = footer.getInt(16);
+        if (contentSize < 0 || headerOffset < contentSize || headerLength <= 0 || headerLength > HeaderUtil.MAX_LENGTH
+                || headerOffset + headerLength > size - FOOTER_LENGTH) {
+            throw new Exception("The vault trailer is corrupt!");
+        }
+        return new long[]{contentSize, headerOffset, headerLength};
+    }
+
+    private static void appendHeader(FileChannel fileChannel, long contentSize, long offset, byte[] header) throws Exception {
+        ByteBuffer trailer = ByteBuffer.allocate(header.length + FOOTER_LENGTH);
+        trailer.put(header).putLong(contentSize).putLong(offset).putInt(header.length).put(MAGIC).flip();
+        writeFully(fileChannel, trailer, offset);
+        fileChannel.force(true);
+    }
+
+    private static byte[] writeFixedPart(InPlaceJournal journal) throws Exception {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(byteStream);
+        output.write(JOURNAL_MAGIC);
+        output.writeShort(JOURNAL_VERSION);
+        output.writeUTF(journal.getMode().name());
+        output.writeUTF(journal.getKeyName());
+        output.writeUTF(journal.getTargetPath());
+        output.writeLong(journal.getContentSize());
+        output.writeInt(journal.getChunkSize());
+        output.writeLong(journal.getChunkCount());
+        output.writeInt(journal.getBatchChunks());
+        output.writeUTF(journal.getIvParameterSpec());
+        output.writeInt(journal.getSealedKey().length);
+        output.write(journal.getSealedKey());
+        output.writeInt(journal.getHeader() == null ? -1 : journal.getHeader().length);
+        if (journal.getHeader() != null) output.write(journal.getHeader());
+        output.flush();
+        return byteStream.toByteArray();
+    }
+
+    private static int getBlocksPerChunk(InPlaceJournal journal) {
+        return (journal.getChunkSize() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * A batch record holds the sequence number (8), first chunk (8), chunk count (4), a checksum
+     * for every block of the batch (4 each) and a CRC32 of the record (4).
+     */
+    private static int getSlotLength(InPlaceJournal journal) {
+        return 20 + 4 * journal.getBatchChunks() * getBlocksPerChunk(journal) + 4;
+    }
+
+    private static void readFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws Exception {
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position()) == -1) {
+                throw new Exception("The file is truncated!");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws Exception {
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer, position + buffer.position());
+        }
+    }
+
+}
@@ -2,6 +2,12 @@ package no.odit.crypto.util;
 
 import java.io.File;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static no.odit.crypto.CryptoApp.scanner;
 
@@ -25,6 +31,51 @@ public class InputUtil {
         }
     }
 
+    public static List<File> inputFiles(String what, String extension) throws Exception {
+        return inputFiles(what, extension, false);
+    }
+
+    /**
+     * Reads a comma-separated list of files and directories, directories are expanded to their
+     * files with the given extension, or all files when the extension is null. Recursive expansion
+     * includes the files of all subdirectories. An empty list is allowed.
+     */
+    public static List<File> inputFiles(String what, String extension, boolean recursive) throws Exception {
+        try {
+            System.out.print("Enter " + what + ": ");
+            List<File> files = new ArrayList<>();
+            for (String fileName : scanner.nextLine().split(",")) {
+                if (fileName.isBlank()) continue;
+                File file = new File(fileName.trim());
+                files.addAll(findFiles(file, extension, recursive));
+            }
+            return files;
+
+        } catch (Exception exception) {
+            System.out.println(exception.getMessage());
+            if (inputRetry()) {
+                return inputFiles(what, extension, recursive);
+            } else throw exception;
+        }
+    }
+
+    /**
+     * Returns the file, or the files of the directory with the given extension.
+     */
+    public static List<File> findFiles(File file, String extension, boolean recursive) throws Exception {
+        if (!file.exists()) {
+            throw new Exception("The file " + file.getName() + " do not exist!");
+        }
+        if (!file.isDirectory()) return List.of(file);
+        try (Stream<Path> paths = Files.walk(file.toPath(), recursive ? Integer.MAX_VALUE : 1)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(path -> extension == null || path.getFileName().toString().endsWith(extension))
+                    .sorted()
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        }
+    }
+
     private static String inputHiddenText() {
         return System.console() == null ? scanner.nextLine() : new String(System.console().readPassword());
     }
@@ -65,6 +116,20 @@ public class InputUtil {
         }
     }
 
+    public static String inputText(String what, int minimumLength) throws Exception {
+        try {
+            System.out.print("Enter " + what + ": ");
+            String text = scanner.nextLine().trim();
+            if (text.length() < minimumLength) throw new Exception("Too short " + what + "!");
+            return text;
+        } catch (Exception exception) {
+            System.out.println(exception.getMessage());
+            if (inputRetry()) {
+                return inputText(what, minimumLength);
+            } else throw exception;
+        }
+    }
+
     public static BigInteger inputNumber(String what, long minimumLength) throws Exception {
         try {
             System.out.print("Enter " + what + ": ");
@@ -80,7 +145,11 @@ public class InputUtil {
     }
 
     public static boolean inputRetry() {
-        System.out.print("Do you want to try again? (Y/n): ");
+        return inputConfirm("Do you want to try again?");
+    }
+
+    public static boolean inputConfirm(String question) {
+        System.out.print(question + " (Y/n): ");
         return scanner.nextLine().equalsIgnoreCase("y");
     }
 
@@ -0,0 +1,110 @@
+package no.odit.crypto.util;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-memory cache for the results of the key derivation, so vaults that share a key name
+ * or a passphrase only pay for bcrypt once per process. Entries are looked up by an HMAC of their
+ * inputs under a random key of this process, so the passphrase itself is never kept. The values
+ * are kept in byte arrays, which are zeroed when they expire, are evicted or the process exits.
+ */
+public class KeyCache {
+
+    public static int SIZE = Integer.getInteger("crypto.key.cache.size", 64);
+    public static long TTL = Long.getLong("crypto.key.cache.ttl", 600);
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final byte[] lookupKey = new byte[32];
+    private static final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() <= SIZE) return false;
+            Arrays.fill(eldest.getValue().value, (byte) 0);
+            return true;
+        }
+    };
+
+    static {
+        new SecureRandom().nextBytes(lookupKey);
+        Runtime.getRuntime().addShutdownHook(new Thread(KeyCache::clear));
+    }
+
+    /**
+     * Returns a copy of the value cached for the inputs, or null if there is none.
+     */
+    public static byte[] get(byte[]... inputs) {
+        if (SIZE <= 0) return null;
+        String lookup = getLookup(inputs);
+        synchronized (entries) {
+            removeExpired();
+            Entry entry = entries.get(lookup);
+            return entry == null ? null : entry.value.clone();
+        }
+    }
+
+    /**
+     * Caches a copy of the value for the inputs, the caller keeps ownership of the given array.
+     */
+    public static void put(byte[] value, byte[]... inputs) {
+        if (SIZE <= 0) return;
+        String lookup = getLookup(inputs);
+        synchronized (entries) {
+            Entry previous = entries.put(lookup, new Entry(value.clone(), System.currentTimeMillis() + TTL * 1000));
+            if (previous != null) Arrays.fill(previous.value, (byte) 0);
+        }
+    }
+
+    public static void clear() {
+        synchronized (entries) {
+            entries.values().forEach(entry -> Arrays.fill(entry.value, (byte) 0));
+            entries.clear();
+        }
+    }
+
+    private static void removeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.expires <= now) {
+                Arrays.fill(entry.value, (byte) 0);
+                iterator.remove();
+            }
+        }
+    }
+
+    private static String getLookup(byte[]... inputs) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(lookupKey, ALGORITHM));
+            for (byte[] input : inputs) {
+                mac.update(ByteBuffer.allocate(4).putInt(input.length).array());
+                mac.update(input);
+            }
+            return Base64.getEncoder().encodeToString(mac.doFinal());
+        } catch (Exception exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private static class Entry {
+
+        private final byte[] value;
+        private final long expires;
+
+        private Entry(byte[] value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+
+    }
+
+}
@@ -1,17 +1,21 @@
 package no.odit.crypto.util;
 
-import com.google.common.hash.Hashing;
 import oshi.SystemInfo;
 import oshi.hardware.CentralProcessor;
 import oshi.hardware.ComputerSystem;
 import oshi.hardware.HardwareAbstractionLayer;
 import oshi.software.os.OperatingSystem;
 
-import java.nio.charset.StandardCharsets;
-
 public class MachineUtil {
 
-    public static String getMachineIdentifier() {
+    private static String machineIdentifier;
+
+    /**
+     * Returns the identifier of this host. Reading the hardware details is slow, so it is only
+     * done the first time in a process.
+     */
+    public static synchronized String getMachineIdentifier() {
+        if (machineIdentifier != null) return machineIdentifier;
         SystemInfo systemInfo = new SystemInfo();
         OperatingSystem operatingSystem = systemInfo.getOperatingSystem();
         HardwareAbstractionLayer hardwareAbstractionLayer = systemInfo.getHardware();
@@ -25,10 +29,8 @@ public class MachineUtil {
 
         String machineId = (vendor + processorSerialNumber + processorIdentifier + processors).replaceAll(" ", "");
 
-        return Hashing.sha256()
-                .hashString(machineId, StandardCharsets.UTF_8)
-                .toString();
+        machineIdentifier = HashUtil.sha256(machineId);
+        return machineIdentifier;
     }
 
-
 }
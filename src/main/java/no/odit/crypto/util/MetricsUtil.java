@@ -0,0 +1,97 @@
+package no.odit.crypto.util;
+
+import no.odit.crypto.event.PuzzleProgressEvent;
+import no.odit.crypto.model.MetricsSummary;
+import no.odit.crypto.model.StageMetric;
+import no.odit.crypto.type.StageType;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the time used and bytes processed by every stage of the run, and the progress of
+ * puzzles being solved. Stages and progress are also emitted as Flight Recorder events, and the
+ * summary of the run can be saved as JSON with {@code -Dcrypto.metrics=<file>}.
+ */
+public class MetricsUtil {
+
+    public static String METRICS_FILE = System.getProperty("crypto.metrics");
+
+    private static final LocalDateTime started = LocalDateTime.now();
+    private static final Map<StageType, StageMetric> stages = new EnumMap<>(StageType.class);
+    private static Long squaringsPerSecond;
+    private static Long puzzleIteration;
+    private static Long puzzleTotal;
+
+    public static StageTimer start(StageType stageType) {
+        return new StageTimer(stageType);
+    }
+
+    static synchronized void record(StageType stageType, long millis, long bytes) {
+        StageMetric metric = stages.computeIfAbsent(stageType, type -> StageMetric.builder().stage(type).build());
+        metric.setCount(metric.getCount() + 1);
+        metric.setTotalMillis(metric.getTotalMillis() + millis);
+        metric.setMaxMillis(Math.max(metric.getMaxMillis(), millis));
+        metric.setBytes(metric.getBytes() + bytes);
+    }
+
+    /**
+     * Records the progress of a puzzle being solved and returns the estimated seconds left.
+     */
+    public static long recordProgress(long iteration, long total, long rate) {
+        long secondsLeft = rate > 0 ? (total - iteration) / rate : -1;
+        PuzzleProgressEvent event = new PuzzleProgressEvent();
+        if (event.shouldCommit()) {
+            event.iteration = iteration;
+            event.total = total;
+            event.squaringsPerSecond = rate;
+            event.secondsLeft = secondsLeft;
+            event.commit();
+        }
+        synchronized (MetricsUtil.class) {
+            squaringsPerSecond = rate;
+            puzzleIteration = iteration;
+            puzzleTotal = total;
+        }
+        return secondsLeft;
+    }
+
+    public static synchronized MetricsSummary getSummary() {
+        List<StageMetric> metrics = new ArrayList<>();
+        for (StageMetric metric : stages.values()) {
+            metrics.add(metric.toBuilder()
+                    .bytesPerSecond(metric.getBytes() > 0 && metric.getTotalMillis() > 0 ? metric.getBytes() * 1000 / metric.getTotalMillis() : null)
+                    .build());
+        }
+        return MetricsSummary.builder()
+                .started(started)
+                .finished(LocalDateTime.now())
+                .stages(metrics)
+                .squaringsPerSecond(squaringsPerSecond)
+                .puzzleIteration(puzzleIteration)
+                .puzzleTotal(puzzleTotal)
+                .build();
+    }
+
+    public static void writeSummary(File file) throws Exception {
+        StorageUtil.writeAtomically(file, JsonUtil.getObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsBytes(getSummary()));
+    }
+
+    /**
+     * Saves the summary of the run to the file set with {@code -Dcrypto.metrics}, if any.
+     */
+    public static void exportSummary() {
+        if (METRICS_FILE == null) return;
+        try {
+            writeSummary(new File(METRICS_FILE));
+            System.out.println("Saved metrics to " + METRICS_FILE + ".");
+        } catch (Exception exception) {
+            System.out.println("Unable to save metrics: " + exception.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package no.odit.crypto.util;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Squares in Montgomery form on fixed 32-bit limbs, sized for the 2048-bit modulus made by
+ * {@link TimeLockPuzzle#createPuzzle}. All buffers are allocated up front, so the squaring
+ * loop itself does not allocate. Use {@link #supports(BigInteger)} before creating one.
+ */
+public class MontgomerySquarer implements Squarer {
+
+    public static final int MIN_MODULUS_LENGTH = 1025;
+    public static final int MAX_MODULUS_LENGTH = 2048;
+    private static final int LIMBS = MAX_MODULUS_LENGTH / 32;
+    private static final long MASK = 0xFFFFFFFFL;
+
+    private final BigInteger n;
+    private final BigInteger r;
+    private final BigInteger rInverse;
+    private final int[] modulus = new int[LIMBS];
+    private final int inverse;
+    private final int[] value = new int[LIMBS];
+    private final int[] product = new int[2 * LIMBS + 1];
+
+    public MontgomerySquarer(BigInteger n) {
+        if (!supports(n)) {
+            throw new IllegalArgumentException("Unsupported modulus of " + n.bitLength() + " bits!");
+        }
+        this.n = n;
+        this.r = BigInteger.ONE.shiftLeft(32 * LIMBS);
+        this.rInverse = r.modInverse(n);
+        toLimbs(n, modulus);
+        this.inverse = -inverse(modulus[0]);
+    }
+
+    public static boolean supports(BigInteger n) {
+        return n.testBit(0) && n.bitLength() >= MIN_MODULUS_LENGTH && n.bitLength() <= MAX_MODULUS_LENGTH;
+    }
+
+    @Override
+    public void load(BigInteger value) {
+        toLimbs(value.multiply(r).mod(n), this.value);
+    }
+
+    @Override
+    public void square(long times) {
+        for (long i = 0; i < times; i++) {
+            squareOnce();
+        }
+    }
+
+    @Override
+    public BigInteger get() {
+        return fromLimbs(value).multiply(rInverse).mod(n);
+    }
+
+    private void squareOnce() {
+        int[] a = value;
+        int[] t = product;
+        Arrays.fill(t, 0);
+
+        // Cross products a[i] * a[j] for i < j
+        for (int i = 0; i < LIMBS; i++) {
+            long ai = a[i] & MASK;
+            long carry = 0;
+            for (int j = i + 1; j < LIMBS; j++) {
+                long x = ai * (a[j] & MASK) + (t[i + j] & MASK) + carry;
+                t[i + j] = (int) x;
+                carry = x >>> 32;
+            }
+            t[i + LIMBS] = (int) carry;
+        }
+
+        // Double the cross products
+        int carryBit = 0;
+        for (int i = 0; i < 2 * LIMBS; i++) {
+            int x = t[i];
+            t[i] = (x << 1) | carryBit;
+            carryBit = x >>> 31;
+        }
+
+        // Add the squares a[i] * a[i]
+        long carry = 0;
+        for (int i = 0; i < LIMBS; i++) {
+            long ai = a[i] & MASK;
+            long square = ai * ai;
+            long x = (t[2 * i] & MASK) + (square & MASK) + carry;
+            t[2 * i] = (int) x;
+            x = (t[2 * i + 1] & MASK) + (square >>> 32) + (x >>> 32);
+            t[2 * i + 1] = (int) x;
+            carry = x >>> 32;
+        }
+
+        // Montgomery reduction, leaves t / R in t[LIMBS..2 * LIMBS]
+        for (int i = 0; i < LIMBS; i++) {
+            long m = (t[i] * inverse) & MASK;
+            carry = 0;
+            for (int j = 0; j < LIMBS; j++) {
+                long x = m * (modulus[j] & MASK) + (t[i + j] & MASK) + carry;
+                t[i + j] = (int) x;
+                carry = x >>> 32;
+            }
+            for (int j = i + LIMBS; carry != 0 && j <= 2 * LIMBS; j++) {
+                long x = (t[j] & MASK) + carry;
+                t[j] = (int) x;
+                carry = x >>> 32;
+            }
+        }
+
+        // Result is below 2n, subtract n once if needed
+        if (t[2 * LIMBS] != 0 || compareToModulus(t, LIMBS) >= 0) {
+            long borrow = 0;
+            for (int j = 0; j < LIMBS; j++) {
+                long x = (t[LIMBS + j] & MASK) - (modulus[j] & MASK) - borrow;
+                a[j] = (int) x;
+                borrow = x >>> 63;
+            }
+        } else {
+            System.arraycopy(t, LIMBS, a, 0, LIMBS);
+        }
+    }
+
+    private int compareToModulus(int[] t, int offset) {
+        for (int j = LIMBS - 1; j >= 0; j--) {
+            int x = t[offset + j] + Integer.MIN_VALUE;
+            int y = modulus[j] + Integer.MIN_VALUE;
+            if (x != y) return x < y ? -1 : 1;
+        }
+        return 0;
+    }
+
+    private static int inverse(int x) {
+        // Newton iteration, doubles the number of correct low bits each round
+        int y = x;
+        for (int i = 0; i < 5; i++) {
+            y *= 2 - x * y;
+        }
+        return y;
+    }
+
+    private static void toLimbs(BigInteger number, int[] limbs) {
+        Arrays.fill(limbs, 0);
+        byte[] bytes = number.toByteArray();
+        for (int i = 0; i < bytes.length && i / 4 < limbs.length; i++) {
+            limbs[i / 4] |= (bytes[bytes.length - 1 - i] & 0xFF) << (8 * (i % 4));
+        }
+    }
+
+    private static BigInteger fromLimbs(int[] limbs) {
+        byte[] bytes = new byte[limbs.length * 4 + 1];
+        for (int i = 0; i < limbs.length * 4; i++) {
+            bytes[bytes.length - 1 - i] = (byte) (limbs[i / 4] >>> (8 * (i % 4)));
+        }
+        return new BigInteger(bytes);
+    }
+
+}
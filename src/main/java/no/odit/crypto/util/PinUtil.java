@@ -0,0 +1,32 @@
+package no.odit.crypto.util;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Verifier for the PIN code, keyed with the passphrase-derived password and bound to the puzzle.
+ * It is stored inside the encrypted details, so it can only be checked by someone who already
+ * knows the passphrase, and lets a wrong PIN be rejected before solving the puzzle.
+ */
+public class PinUtil {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    public static String createPinVerifier(String password, BigInteger pinCode, BigInteger n, BigInteger t, BigInteger z) throws Exception {
+        Mac mac = Mac.getInstance(ALGORITHM);
+        mac.init(new SecretKeySpec(password.getBytes(StandardCharsets.UTF_8), ALGORITHM));
+        String message = "pin:" + pinCode + ":" + n + ":" + t + ":" + z;
+        return Base64.getEncoder().encodeToString(mac.doFinal(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static boolean verifyPin(String pinVerifier, String password, BigInteger pinCode, BigInteger n, BigInteger t, BigInteger z) throws Exception {
+        byte[] expected = Base64.getDecoder().decode(pinVerifier);
+        byte[] actual = Base64.getDecoder().decode(createPinVerifier(password, pinCode, n, t, z));
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+}
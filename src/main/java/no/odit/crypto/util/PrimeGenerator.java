@@ -0,0 +1,105 @@
+package no.odit.crypto.util;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Generates the RSA primes of the time-lock puzzles. Candidates start at a random point from
+ * {@link SecureRandom} and are sieved with small primes before the Miller-Rabin test, and both
+ * primes of a pair are searched for concurrently. An optional pool, filled by a background thread,
+ * keeps fresh primes ready so creating many puzzles does not wait for the search. Every pooled
+ * prime is handed out once.
+ */
+public class PrimeGenerator {
+
+    public static final int PRIME_LENGTH = 1024;
+    public static int POOL_SIZE = Integer.getInteger("crypto.prime.pool", 0);
+    private static final int CERTAINTY = 40;
+    private static final int SIEVE_LENGTH = 4096;
+    private static final int[] SMALL_PRIMES = getSmallPrimes(16384);
+    private static final SecureRandom random = new SecureRandom();
+
+    private static BlockingQueue<BigInteger> pool;
+
+    /**
+     * Returns two distinct primes of the given length, so their product has twice the length.
+     */
+    public static BigInteger[] generatePrimePair(int bitLength) {
+        if (POOL_SIZE > 0 && bitLength == PRIME_LENGTH) startPool(POOL_SIZE);
+        CompletableFuture<BigInteger> p = CompletableFuture.supplyAsync(() -> nextPrime(bitLength));
+        BigInteger q = nextPrime(bitLength);
+        BigInteger[] primes = {p.join(), q};
+        while (primes[0].equals(primes[1])) {
+            primes[1] = nextPrime(bitLength);
+        }
+        return primes;
+    }
+
+    public static synchronized void startPool(int size) {
+        if (pool != null) return;
+        pool = new LinkedBlockingQueue<>(size);
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    pool.put(generatePrime(PRIME_LENGTH));
+                }
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }, "prime-pool");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private static BigInteger nextPrime(int bitLength) {
+        BigInteger prime = pool != null && bitLength == PRIME_LENGTH ? pool.poll() : null;
+        return prime != null ? prime : generatePrime(bitLength);
+    }
+
+    /**
+     * Returns a random probable prime with the two highest bits set.
+     */
+    public static BigInteger generatePrime(int bitLength) {
+        while (true) {
+            BigInteger base = new BigInteger(bitLength, random).setBit(bitLength - 1).setBit(bitLength - 2).setBit(0);
+            if (base.add(BigInteger.valueOf(2L * SIEVE_LENGTH)).bitLength() != bitLength) continue;
+
+            // composite[i] marks base + 2i as divisible by a small prime
+            boolean[] composite = new boolean[SIEVE_LENGTH];
+            for (int i = 1; i < SMALL_PRIMES.length; i++) {
+                int prime = SMALL_PRIMES[i];
+                int remainder = base.mod(BigInteger.valueOf(prime)).intValue();
+                long start = (long) ((prime - remainder) % prime) * ((prime + 1) / 2) % prime;
+                for (long j = start; j < SIEVE_LENGTH; j += prime) {
+                    composite[(int) j] = true;
+                }
+            }
+
+            for (int i = 0; i < SIEVE_LENGTH; i++) {
+                if (composite[i]) continue;
+                BigInteger candidate = base.add(BigInteger.valueOf(2L * i));
+                if (candidate.isProbablePrime(CERTAINTY)) return candidate;
+            }
+        }
+    }
+
+    private static int[] getSmallPrimes(int limit) {
+        boolean[] composite = new boolean[limit];
+        int count = 0;
+        for (int i = 2; i < limit; i++) {
+            if (composite[i]) continue;
+            count++;
+            for (long j = (long) i * i; j < limit; j += i) composite[(int) j] = true;
+        }
+        int[] primes = new int[count];
+        for (int i = 2, k = 0; i < limit; i++) {
+            if (!composite[i]) primes[k++] = i;
+        }
+        return primes;
+    }
+
+}
@@ -0,0 +1,25 @@
+package no.odit.crypto.util;
+
+import java.math.BigInteger;
+
+/**
+ * Repeated modular squaring used to solve a time-lock puzzle.
+ */
+public interface Squarer {
+
+    /**
+     * Sets the current value, which must be smaller than the modulus.
+     */
+    void load(BigInteger value);
+
+    /**
+     * Squares the current value the given number of times.
+     */
+    void square(long times);
+
+    /**
+     * Returns the current value.
+     */
+    BigInteger get();
+
+}
@@ -0,0 +1,39 @@
+package no.odit.crypto.util;
+
+import no.odit.crypto.event.StageEvent;
+import no.odit.crypto.type.StageType;
+
+/**
+ * Times one run of a stage, see {@link MetricsUtil#start}.
+ */
+public class StageTimer {
+
+    private final StageType stageType;
+    private final StageEvent event = new StageEvent();
+    private final long startTime = System.nanoTime();
+
+    StageTimer(StageType stageType) {
+        this.stageType = stageType;
+        event.begin();
+    }
+
+    public long stop() {
+        return stop(0);
+    }
+
+    /**
+     * Records the stage with the number of bytes it processed and returns the time used in milliseconds.
+     */
+    public long stop(long bytes) {
+        long timeUsed = (System.nanoTime() - startTime) / 1_000_000;
+        event.end();
+        if (event.shouldCommit()) {
+            event.stage = stageType.name();
+            event.bytes = bytes;
+            event.commit();
+        }
+        MetricsUtil.record(stageType, timeUsed, bytes);
+        return timeUsed;
+    }
+
+}
@@ -0,0 +1,52 @@
+package no.odit.crypto.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+
+public class StorageUtil {
+
+    public static File getDataDirectory() {
+        File directory = new File(System.getProperty("crypto.home", System.getProperty("user.home") + File.separator + ".crypto-file-safe"));
+        if (!directory.exists()) directory.mkdirs();
+        return directory;
+    }
+
+    /**
+     * Writes the data to a temporary file next to the target and moves it into place,
+     * so readers see either the old or the new content and never a partial write.
+     */
+    public static void writeAtomically(File target, byte[] data) throws Exception {
+        File directory = target.getAbsoluteFile().getParentFile();
+        File tempFile = File.createTempFile(target.getName(), ".tmp", directory);
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+                outputStream.write(data);
+                outputStream.getFD().sync();
+            }
+            Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Writes the file with permissions for the owner only, where the file system supports it.
+     */
+    public static void writePrivately(File file, byte[] data) throws Exception {
+        Path path = file.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+        } catch (UnsupportedOperationException exception) {
+            Files.createFile(path);
+        }
+        Files.write(path, data);
+    }
+
+}
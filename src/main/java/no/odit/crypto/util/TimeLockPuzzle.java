@@ -1,32 +1,33 @@
 package no.odit.crypto.util;
 
+import no.odit.crypto.model.PuzzleCheckpoint;
 import no.odit.crypto.model.PuzzleDetails;
+import no.odit.crypto.type.SolverType;
 
+import java.io.File;
 import java.math.BigInteger;
-import java.util.concurrent.ThreadLocalRandom;
 
 public class TimeLockPuzzle {
 
-    private static final int P_RANDOM_SEED_LENGTH = getRandomInteger(12, 16);
-    private static final int Q_RANDOM_SEED_LENGTH = getRandomInteger(12, 16);
-    private static final int RSA_PRIME_LENGTH = 1024;
+    private static final int RSA_PRIME_LENGTH = PrimeGenerator.PRIME_LENGTH;
     private static final BigInteger ONE = new BigInteger("1");
     private static final BigInteger TWO = new BigInteger("2");
-    private static final BigInteger DIFFICULTY = new BigInteger("125000");
+    public static final BigInteger DIFFICULTY = new BigInteger("125000");
+    private static final long SQUARING_BATCH = 1024;
+    public static long CHECKPOINT_INTERVAL = Long.getLong("crypto.checkpoint.interval", 60);
+    public static long PROGRESS_INTERVAL = Long.getLong("crypto.progress.interval", 10);
+    public static SolverType SOLVER_TYPE = SolverType.valueOf(System.getProperty("crypto.solver", SolverType.MONTGOMERY.name()));
 
     public static PuzzleDetails createPuzzle(String secretMessage, BigInteger seconds) {
-        BigInteger t = DIFFICULTY.multiply(seconds);
-
-        BigInteger twoPower = (new BigInteger("1")).shiftLeft(RSA_PRIME_LENGTH);
-
-        BigInteger prand = new BigInteger(getRandomBigInteger(P_RANDOM_SEED_LENGTH));
-        BigInteger qrand = new BigInteger(getRandomBigInteger(Q_RANDOM_SEED_LENGTH));
+        return createPuzzle(secretMessage, seconds, DIFFICULTY);
+    }
 
-        BigInteger p = new BigInteger("5");
-        p = getNextPrime(p.modPow(prand, twoPower));
+    public static PuzzleDetails createPuzzle(String secretMessage, BigInteger seconds, BigInteger squaringsPerSecond) {
+        BigInteger t = squaringsPerSecond.multiply(seconds);
 
-        BigInteger q = new BigInteger("5");
-        q = getNextPrime(q.modPow(qrand, twoPower));
+        BigInteger[] primes = PrimeGenerator.generatePrimePair(RSA_PRIME_LENGTH);
+        BigInteger p = primes[0];
+        BigInteger q = primes[1];
 
         BigInteger n = p.multiply(q);
 
@@ -48,14 +49,79 @@ public class TimeLockPuzzle {
     }
 
     public static String solvePuzzle(BigInteger n, BigInteger t, BigInteger z) {
-        BigInteger w = TWO;
-        for (int i = 0; i < t.intValue(); i++) {
-            w = w.modPow(TWO, n);
+        return solvePuzzle(n, t, z, SOLVER_TYPE);
+    }
+
+    public static String solvePuzzle(BigInteger n, BigInteger t, BigInteger z, SolverType solverType) {
+        Squarer squarer = createSquarer(n, solverType);
+        squarer.load(TWO);
+        squarer.square(t.longValueExact());
+        return getSecret(squarer.get(), z);
+    }
+
+    /**
+     * Solves the puzzle and saves the progress to the checkpoint file every
+     * {@link #CHECKPOINT_INTERVAL} seconds. Continues from the checkpoint if it belongs to this puzzle.
+     */
+    public static String solvePuzzle(BigInteger n, BigInteger t, BigInteger z, File checkpointFile) throws Exception {
+        return getSecret(solveW(n, t, checkpointFile), z);
+    }
+
+    /**
+     * Squares to the final w of the puzzle like {@link #solvePuzzle(BigInteger, BigInteger, BigInteger, File)},
+     * so the caller can keep it as a finished checkpoint.
+     */
+    public static BigInteger solveW(BigInteger n, BigInteger t, File checkpointFile) throws Exception {
+        long total = t.longValueExact();
+        long iteration = 0;
+        Squarer squarer = createSquarer(n, SOLVER_TYPE);
+        squarer.load(TWO);
+
+        PuzzleCheckpoint checkpoint = CheckpointUtil.readCheckpoint(checkpointFile, n, t);
+        if (checkpoint != null) {
+            iteration = checkpoint.getIteration();
+            squarer.load(checkpoint.getW());
+            System.out.println("Resuming puzzle at " + (iteration * 100 / total) + "% (" + iteration + " of " + total + ").");
         }
+
+        long intervalMillis = CHECKPOINT_INTERVAL * 1000;
+        long nextCheckpoint = System.currentTimeMillis() + intervalMillis;
+        long progressMillis = PROGRESS_INTERVAL * 1000;
+        long lastProgress = System.currentTimeMillis();
+        long lastIteration = iteration;
+        while (iteration < total) {
+            long batch = Math.min(SQUARING_BATCH, total - iteration);
+            squarer.square(batch);
+            iteration += batch;
+            long now = System.currentTimeMillis();
+            if (iteration < total && now >= nextCheckpoint) {
+                CheckpointUtil.writeCheckpoint(checkpointFile, n, t, iteration, squarer.get());
+                nextCheckpoint = System.currentTimeMillis() + intervalMillis;
+            }
+            if (progressMillis > 0 && iteration < total && now - lastProgress >= progressMillis) {
+                long rate = (iteration - lastIteration) * 1000 / (now - lastProgress);
+                long secondsLeft = MetricsUtil.recordProgress(iteration, total, rate);
+                System.out.println("Solved " + (iteration * 100 / total) + "% at " + rate + " squarings/s, about " + secondsLeft + "s left.");
+                lastProgress = now;
+                lastIteration = iteration;
+            }
+        }
+
+        return squarer.get();
+    }
+
+    public static String getSecret(BigInteger w, BigInteger z) {
         BigInteger x = w.xor(z);
         return new String(x.toByteArray());
     }
 
+    public static Squarer createSquarer(BigInteger n, SolverType solverType) {
+        if (solverType == SolverType.MONTGOMERY && MontgomerySquarer.supports(n)) {
+            return new MontgomerySquarer(n);
+        }
+        return new BigIntegerSquarer(n);
+    }
+
     private static BigInteger getBigIntegerFromStringBuffer(StringBuffer s) {
         BigInteger bigInt = new BigInteger("0");
         for (int i = 0; i < s.length(); i++) {
@@ -65,25 +131,4 @@ public class TimeLockPuzzle {
         return bigInt;
     }
 
-    private static int getRandomInteger(int min, int max) {
-        return ThreadLocalRandom.current().nextInt(min, max);
-    }
-
-    private static String getRandomBigInteger(int length) {
-        StringBuilder sb = new StringBuilder();
-        String digits = "0123456789";
-        for (int i = 0; i < length; i++) {
-            int randomDigitIndex = getRandomInteger(0, digits.length());
-            sb.append(digits.charAt(randomDigitIndex));
-        }
-        return sb.toString();
-    }
-
-    private static BigInteger getNextPrime(BigInteger startvalue) {
-        BigInteger p = startvalue;
-        if (!p.and(ONE).equals(ONE)) p = p.add(ONE);
-        while (!p.isProbablePrime(40)) p = p.add(TWO);
-        return (p);
-    }
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,643 @@
+package no.odit.crypto.util;
+
+import net.lingala.zip4j.ZipFile;
+import net.lingala.zip4j.exception.ZipException;
+import net.lingala.zip4j.io.outputstream.ZipOutputStream;
+import net.lingala.zip4j.model.FileHeader;
+import net.lingala.zip4j.model.ZipParameters;
+import net.lingala.zip4j.model.enums.CompressionMethod;
+import no.odit.crypto.model.EncryptionDetails;
+import no.odit.crypto.model.KeyringMember;
+import no.odit.crypto.type.PayloadFormat;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes vault containers. A vault is a zip file with the binary header entry, see
+ * {@link HeaderUtil}, and the payload entry. Older vaults have encrypted JSON details instead.
+ * Chunked payloads are already sealed with AES-GCM, so they are stored without zip compression
+ * or encryption, which keeps every chunk at a known offset in the vault.
+ * A keyring vault has one payload entry per member instead, each sealed with its own key.
+ * The header entry is padded, so a new header can usually be written in place of the old one.
+ * Stream vaults are written and read in one pass without a zip container, for pipes, and hold
+ * the key name, the header and the chunked payload one after the other.
+ * The payload of a deduplicated vault is the manifest of its chunks in the {@link ChunkStore}.
+ * The header holds the root of a {@link HashTree} over the sealed chunks of the payload entries.
+ * In-place vaults are not zip files, see {@link InPlaceVault}, but their header is read the same way.
+ */
+public class VaultUtil {
+
+    public static final String HEADER_FILE_NAME = "header.bin";
+    public static final String DETAILS_FILE_NAME = "capsule.json";
+    public static final String PAYLOAD_FILE_EXTENSION = ".enc";
+    public static final String LEGACY_ALGORITHM = "AES/CBC/PKCS5Padding";
+    public static int BUFFER_SIZE = 1024 * 1024;
+    public static int CACHED_CHUNKS = Integer.getInteger("crypto.cache.chunks", 8);
+    public static int HEADER_PADDING = Integer.getInteger("crypto.header.padding", 2048);
+
+    private static final String KEY_NAME_PREFIX = "key-name:";
+    private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_FILE_HEADER_LENGTH = 30;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_FILE_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_FILE_HEADER_LENGTH = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_LENGTH = 22;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_LENGTH = 20;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LENGTH = 56;
+    private static final long ZIP64_SIZE_MARKER = 0xFFFFFFFFL;
+    private static final short ZIP64_EXTRA_FIELD_ID = 0x0001;
+    private static final String REWRITE_FILE_EXTENSION = ".rewrite";
+    private static final byte[] STREAM_MAGIC = "CFSS".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_READ_LENGTH = 4096;
+
+    public static void createVault(File containerFile, String password, EncryptionDetails details, SecretKey secretKey,
+                                   IvParameterSpec iv, InputStream inputStream, long contentSize) throws Exception {
+        createVault(containerFile, null, password, details, secretKey, iv, inputStream, contentSize);
+    }
+
+    /**
+     * Creates a vault whose password is derived from the given key name, which is kept in the
+     * zip comment. Without a key name the password is derived from the vault file name.
+     */
+    public static void createVault(File containerFile, String keyName, String password, EncryptionDetails details, SecretKey secretKey,
+                                   IvParameterSpec iv, InputStream inputStream, long contentSize) throws Exception {
+        List<byte[]> leaves = new ArrayList<>();
+        details.setPayloadRoot(Base64.getEncoder().encodeToString(new byte[HashTree.HASH_LENGTH]));
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(containerFile), BUFFER_SIZE))) {
+            if (keyName != null) zipOutputStream.setComment(KEY_NAME_PREFIX + keyName);
+            writeHeader(zipOutputStream, HeaderUtil.writeHeader(details, password));
+            zipOutputStream.putNextEntry(getStoredZipParameters(getPayloadFileName(details), ChunkedAES.getEncryptedSize(contentSize, details.getChunkSize())));
+            ChunkedAES.encrypt(secretKey, iv, details.getChunkSize(), inputStream, zipOutputStream, leaves);
+            zipOutputStream.closeEntry();
+        }
+        writePayloadRoot(containerFile, password, details, leaves);
+    }
+
+    /**
+     * Creates a vault with the content compressed on the way into the encryption, without a copy
+     * of the compressed content on disk. The payload entry is started with the largest size the
+     * compressed content can have, and its local header is given the real size afterwards.
+     */
+    public static void createCompressedVault(File containerFile, String keyName, String password, EncryptionDetails details, SecretKey secretKey,
+                                             IvParameterSpec iv, InputStream inputStream, long contentSize) throws Exception {
+        List<byte[]> leaves = new ArrayList<>();
+        long maxSize = ChunkedAES.getEncryptedSize(CompressionUtil.getMaxCompressedSize(contentSize), details.getChunkSize());
+        details.setPayloadRoot(Base64.getEncoder().encodeToString(new byte[HashTree.HASH_LENGTH]));
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(containerFile), BUFFER_SIZE))) {
+            if (keyName != null) zipOutputStream.setComment(KEY_NAME_PREFIX + keyName);
+            writeHeader(zipOutputStream, HeaderUtil.writeHeader(details, password));
+            zipOutputStream.putNextEntry(getStoredZipParameters(getPayloadFileName(details), maxSize));
+            compressInto(details, inputStream, compressedStream ->
+                    ChunkedAES.encrypt(secretKey, iv, details.getChunkSize(), compressedStream, zipOutputStream, leaves));
+            zipOutputStream.closeEntry();
+        }
+        writeEntrySize(containerFile, getPayloadFileName(details));
+        writePayloadRoot(containerFile, password, details, leaves);
+    }
+
+    /**
+     * Creates a keyring vault. The details list one member per content file, and every member
+     * payload is sealed with its own key and stored like the payload of a vault.
+     */
+    public static void createKeyring(File containerFile, String password, EncryptionDetails details,
+                                     List<File> contentFiles, List<SecretKey> secretKeys) throws Exception {
+        List<byte[]> leaves = new ArrayList<>();
+        details.setPayloadRoot(Base64.getEncoder().encodeToString(new byte[HashTree.HASH_LENGTH]));
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(containerFile), BUFFER_SIZE))) {
+            writeHeader(zipOutputStream, HeaderUtil.writeHeader(details, password));
+            for (int i = 0; i < contentFiles.size(); i++) {
+                KeyringMember member = details.getMembers().get(i);
+                IvParameterSpec iv = AES.decodeIvParameterSpec(member.getIvParameterSpec());
+                zipOutputStream.putNextEntry(getStoredZipParameters(getPayloadFileName(member), ChunkedAES.getEncryptedSize(member.getSize(), member.getChunkSize())));
+                try (InputStream inputStream = new FileInputStream(contentFiles.get(i))) {
+                    ChunkedAES.encrypt(secretKeys.get(i), iv, member.getChunkSize(), inputStream, zipOutputStream, leaves);
+                }
+                zipOutputStream.closeEntry();
+            }
+        }
+        writePayloadRoot(containerFile, password, details, leaves);
+    }
+
+    /**
+     * Writes a stream vault with the content of the input stream, compressing the content first
+     * when the details have a compression codec. Only a bounded number of chunks are held in memory.
+     */
+    public static void createStreamVault(OutputStream outputStream, String keyName, String password, EncryptionDetails details,
+                                         SecretKey secretKey, IvParameterSpec iv, InputStream inputStream) throws Exception {
+        byte[] header = HeaderUtil.writeHeader(details, password);
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.write(STREAM_MAGIC);
+        dataOutputStream.writeUTF(keyName);
+        dataOutputStream.writeInt(header.length);
+        dataOutputStream.write(header);
+        if (details.getCompressionCodec() == null) {
+            ChunkedAES.encrypt(secretKey, iv, details.getChunkSize(), inputStream, outputStream);
+            return;
+        }
+        compressInto(details, inputStream, compressedStream -> ChunkedAES.encrypt(secretKey, iv, details.getChunkSize(), compressedStream, outputStream));
+    }
+
+    /**
+     * Compresses the content on another thread and hands the compressed stream to the consumer.
+     */
+    private static void compressInto(EncryptionDetails details, InputStream inputStream, StreamConsumer consumer) throws Exception {
+        // A failed compression is set before the pipe is closed, so the end of the pipe is never
+        // taken for the end of the content, which would seal the last chunk of a truncated payload
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        PipedInputStream pipedStream = new PipedInputStream(BUFFER_SIZE);
+        PipedOutputStream compressingStream = new PipedOutputStream(pipedStream);
+        CompletableFuture<Void> compression = CompletableFuture.runAsync(() -> {
+            try {
+                CompressionUtil.compress(details.getCompressionCodec(), details.getCompressionLevel(), inputStream, compressingStream);
+            } catch (Exception exception) {
+                failure.set(exception);
+            } finally {
+                try {
+                    compressingStream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+        try (InputStream compressedStream = new ProducerInputStream(pipedStream, failure)) {
+            consumer.accept(compressedStream);
+        } catch (Exception exception) {
+            if (failure.get() != null) throw failure.get();
+            throw exception;
+        } finally {
+            compression.join();
+        }
+    }
+
+    /**
+     * Reads the key name at the start of a stream vault, the password is derived from it.
+     */
+    public static String readStreamKeyName(DataInputStream inputStream) throws Exception {
+        byte[] magic = new byte[STREAM_MAGIC.length];
+        inputStream.readFully(magic);
+        if (!Arrays.equals(magic, STREAM_MAGIC)) {
+            throw new Exception("The input is not a stream vault!");
+        }
+        return inputStream.readUTF();
+    }
+
+    /**
+     * Reads the details of a stream vault, after the key name.
+     */
+    public static EncryptionDetails readStreamDetails(DataInputStream inputStream, String password) throws Exception {
+        int headerLength = inputStream.readInt();
+        if (headerLength <= 0 || headerLength > HeaderUtil.MAX_LENGTH) {
+            throw new Exception("The vault header is corrupt!");
+        }
+        byte[] header = new byte[headerLength];
+        inputStream.readFully(header);
+        return HeaderUtil.readHeader(header, password);
+    }
+
+    /**
+     * Decrypts the payload of a stream vault, after its details, into the output stream.
+     */
+    public static void decryptStreamPayload(InputStream inputStream, EncryptionDetails details, SecretKey secretKey, OutputStream outputStream) throws Exception {
+        if (details.getPayloadFormat() != PayloadFormat.CHUNKED_GCM || details.getMembers() != null) {
+            throw new Exception("The stream vault payload is not supported!");
+        }
+        decryptPayload(inputStream, details, secretKey, outputStream);
+    }
+
+    /**
+     * Reads the details from the binary header, or from the JSON details of older vaults.
+     */
+    public static EncryptionDetails readDetails(File containerFile, String password) throws Exception {
+        byte[] header = readHeader(containerFile);
+        if (header != null) return HeaderUtil.readHeader(header, password);
+        try (ZipFile zipFile = new ZipFile(containerFile, password.toCharArray())) {
+            return readDetails(zipFile);
+        }
+    }
+
+    /**
+     * Reads the details that are readable without the passphrase, or null for older vaults.
+     */
+    public static EncryptionDetails readPublicDetails(File containerFile) throws Exception {
+        byte[] header = readHeader(containerFile);
+        return header == null ? null : HeaderUtil.readPublicHeader(header);
+    }
+
+    /**
+     * Replaces the details of the vault, sealed with the new password. The header is written in
+     * place when it fits in the padded header entry, which leaves the payload untouched. Otherwise,
+     * and for older vaults, the payload entries are copied as they are into a new vault.
+     */
+    public static void rewriteDetails(File containerFile, String password, String newPassword, EncryptionDetails details) throws Exception {
+        byte[] header = HeaderUtil.writeHeader(details, newPassword);
+        if (InPlaceVault.isInPlaceVault(containerFile)) {
+            InPlaceVault.writeHeader(containerFile, header);
+            return;
+        }
+        if (readHeader(containerFile) != null && rewriteHeader(containerFile, header)) return;
+        System.out.println("Copying vault to make room for the new header...");
+        File rewriteFile = new File(containerFile.getPath() + REWRITE_FILE_EXTENSION);
+        try {
+            try (ZipFile zipFile = new ZipFile(containerFile, password.toCharArray());
+                 ZipOutputStream zipOutputStream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(rewriteFile), BUFFER_SIZE))) {
+                String keyName = readKeyName(zipFile);
+                if (keyName != null) zipOutputStream.setComment(KEY_NAME_PREFIX + keyName);
+                writeHeader(zipOutputStream, header);
+                for (FileHeader fileHeader : zipFile.getFileHeaders()) {
+                    if (fileHeader.getFileName().equals(HEADER_FILE_NAME) || fileHeader.getFileName().equals(DETAILS_FILE_NAME)) continue;
+                    zipOutputStream.putNextEntry(getStoredZipParameters(fileHeader.getFileName(), fileHeader.getUncompressedSize()));
+                    try (InputStream inputStream = zipFile.getInputStream(fileHeader)) {
+                        inputStream.transferTo(zipOutputStream);
+                    }
+                    zipOutputStream.closeEntry();
+                }
+            }
+            Files.move(rewriteFile.toPath(), containerFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            rewriteFile.delete();
+        }
+    }
+
+    public static EncryptionDetails readDetails(ZipFile zipFile) throws Exception {
+        try (InputStream inputStream = getEntryInputStream(zipFile, DETAILS_FILE_NAME)) {
+            return JsonUtil.getObjectMapper().readValue(inputStream.readAllBytes(), EncryptionDetails.class);
+        } catch (ZipException exception) {
+            if (exception.getType() == ZipException.Type.WRONG_PASSWORD) {
+                throw new Exception("Wrong passphrase!");
+            }
+            throw exception;
+        }
+    }
+
+    public static String readKeyName(ZipFile zipFile) throws Exception {
+        String comment = zipFile.getComment();
+        if (comment == null || !comment.startsWith(KEY_NAME_PREFIX)) return null;
+        return comment.substring(KEY_NAME_PREFIX.length());
+    }
+
+    public static void decryptPayload(ZipFile zipFile, EncryptionDetails details, SecretKey secretKey, OutputStream outputStream) throws Exception {
+        try (InputStream inputStream = getEntryInputStream(zipFile, getPayloadFileName(details))) {
+            decryptPayload(inputStream, details, secretKey, outputStream);
+        }
+    }
+
+    private static void decryptPayload(InputStream inputStream, EncryptionDetails details, SecretKey secretKey, OutputStream outputStream) throws Exception {
+        IvParameterSpec iv = AES.decodeIvParameterSpec(details.getIvParameterSpec());
+        if (details.getPayloadFormat() == PayloadFormat.CHUNK_STORE) {
+            ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+            ChunkedAES.decrypt(secretKey, iv, details.getChunkSize(), inputStream, manifest);
+            ChunkStore.readChunks(new ByteArrayInputStream(manifest.toByteArray()), outputStream);
+        } else if (details.getPayloadFormat() == PayloadFormat.CHUNKED_GCM && details.getCompressionCodec() != null) {
+            try (OutputStream decompressingStream = CompressionUtil.decompressingStream(details.getCompressionCodec(), outputStream)) {
+                ChunkedAES.decrypt(secretKey, iv, details.getChunkSize(), inputStream, decompressingStream);
+            }
+        } else if (details.getPayloadFormat() == PayloadFormat.CHUNKED_GCM) {
+            ChunkedAES.decrypt(secretKey, iv, details.getChunkSize(), inputStream, outputStream);
+        } else {
+            AES.decryptStream(LEGACY_ALGORITHM, secretKey, iv, inputStream, outputStream);
+        }
+    }
+
+    public static void decryptMember(ZipFile zipFile, KeyringMember member, SecretKey secretKey, OutputStream outputStream) throws Exception {
+        IvParameterSpec iv = AES.decodeIvParameterSpec(member.getIvParameterSpec());
+        try (InputStream inputStream = getEntryInputStream(zipFile, getPayloadFileName(member))) {
+            ChunkedAES.decrypt(secretKey, iv, member.getChunkSize(), inputStream, outputStream);
+        }
+    }
+
+    /**
+     * Opens a read-only channel over the decrypted payload. Only the chunks covering the bytes
+     * that are read get decrypted and authenticated, and the most recent ones are cached.
+     */
+    public static SeekableByteChannel openDecryptedChannel(File containerFile, EncryptionDetails details, SecretKey secretKey) throws Exception {
+        if (details.getPayloadFormat() != PayloadFormat.CHUNKED_GCM) {
+            throw new Exception("The vault payload does not support random access!");
+        }
+        if (details.getCompressionCodec() != null) {
+            throw new Exception("The vault payload is compressed and does not support random access!");
+        }
+        IvParameterSpec iv = AES.decodeIvParameterSpec(details.getIvParameterSpec());
+        return openDecryptedChannel(containerFile, getPayloadFileName(details), secretKey, iv, details.getChunkSize());
+    }
+
+    public static SeekableByteChannel openDecryptedChannel(File containerFile, KeyringMember member, SecretKey secretKey) throws Exception {
+        IvParameterSpec iv = AES.decodeIvParameterSpec(member.getIvParameterSpec());
+        return openDecryptedChannel(containerFile, getPayloadFileName(member), secretKey, iv, member.getChunkSize());
+    }
+
+    private static SeekableByteChannel openDecryptedChannel(File containerFile, String fileNameInZip, SecretKey secretKey,
+                                                            IvParameterSpec iv, int chunkSize) throws Exception {
+        FileHeader fileHeader;
+        try (ZipFile zipFile = new ZipFile(containerFile)) {
+            fileHeader = zipFile.getFileHeader(fileNameInZip);
+        }
+        if (fileHeader == null || fileHeader.isEncrypted() || fileHeader.getCompressionMethod() != CompressionMethod.STORE) {
+            throw new Exception("The vault payload is not stored for random access!");
+        }
+        FileChannel fileChannel = FileChannel.open(containerFile.toPath(), StandardOpenOption.READ);
+        try {
+            long payloadOffset = getDataOffset(fileChannel, fileHeader.getOffsetLocalHeader());
+            return new DecryptedChannel(fileChannel, payloadOffset, fileHeader.getCompressedSize(), secretKey, iv, chunkSize, CACHED_CHUNKS);
+        } catch (Exception exception) {
+            fileChannel.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * Hashes the payload entries of the vault in order and returns the root of their hash tree.
+     * Only the stored ciphertext is read, so neither the passphrase nor the secret key is needed.
+     */
+    public static byte[] hashPayload(File containerFile, int chunkSize) throws Exception {
+        if (InPlaceVault.isInPlaceVault(containerFile)) {
+            return InPlaceVault.hashPayload(containerFile, InPlaceVault.getContentSize(containerFile), chunkSize);
+        }
+        List<FileHeader> fileHeaders;
+        try (ZipFile zipFile = new ZipFile(containerFile)) {
+            fileHeaders = zipFile.getFileHeaders();
+        }
+        List<byte[]> leaves = new ArrayList<>();
+        try (FileChannel fileChannel = FileChannel.open(containerFile.toPath(), StandardOpenOption.READ)) {
+            for (FileHeader fileHeader : fileHeaders) {
+                if (fileHeader.getFileName().equals(HEADER_FILE_NAME) || fileHeader.getFileName().equals(DETAILS_FILE_NAME)) continue;
+                if (fileHeader.isEncrypted() || fileHeader.getCompressionMethod() != CompressionMethod.STORE) {
+                    throw new Exception("The vault payload is not stored for verification!");
+                }
+                long payloadOffset = getDataOffset(fileChannel, fileHeader.getOffsetLocalHeader());
+                HashTree.hashPayload(fileChannel, payloadOffset, fileHeader.getCompressedSize(), chunkSize, leaves);
+            }
+        }
+        return HashTree.getRoot(leaves);
+    }
+
+    public static String getPayloadFileName(EncryptionDetails details) {
+        return details.getFileName() + PAYLOAD_FILE_EXTENSION;
+    }
+
+    public static String getPayloadFileName(KeyringMember member) {
+        return getMemberName(member) + PAYLOAD_FILE_EXTENSION;
+    }
+
+    public static String getMemberName(KeyringMember member) {
+        if (member.getFileExtension() == null || member.getFileExtension().isEmpty()) return member.getFileName();
+        return member.getFileName() + "." + member.getFileExtension();
+    }
+
+    /**
+     * Writes the size in the central directory into the local header of the stored entry, which
+     * was written with a larger size, in the zip64 extra field when the local header has one.
+     */
+    private static void writeEntrySize(File containerFile, String fileNameInZip) throws Exception {
+        FileHeader fileHeader;
+        try (ZipFile zipFile = new ZipFile(containerFile)) {
+            fileHeader = zipFile.getFileHeader(fileNameInZip);
+        }
+        if (fileHeader == null) throw new Exception("The vault does not contain " + fileNameInZip + "!");
+        try (FileChannel fileChannel = FileChannel.open(containerFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long offset = fileHeader.getOffsetLocalHeader();
+            ByteBuffer localHeader = ByteBuffer.allocate(LOCAL_FILE_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(fileChannel, localHeader, offset);
+            if (localHeader.getInt(0) != LOCAL_FILE_HEADER_SIGNATURE) throw new Exception("The vault is corrupt!");
+            long size = fileHeader.getUncompressedSize();
+            if (Integer.toUnsignedLong(localHeader.getInt(22)) != ZIP64_SIZE_MARKER) {
+                ByteBuffer field = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, (int) size);
+                writeFully(fileChannel, field, offset + 22);
+                return;
+            }
+            int fileNameLength = Short.toUnsignedInt(localHeader.getShort(26));
+            ByteBuffer extraField = ByteBuffer.allocate(Short.toUnsignedInt(localHeader.getShort(28))).order(ByteOrder.LITTLE_ENDIAN);
+            long extraOffset = offset + LOCAL_FILE_HEADER_LENGTH + fileNameLength;
+            readFully(fileChannel, extraField, extraOffset);
+            for (int i = 0; i + 4 <= extraField.limit(); i += 4 + Short.toUnsignedInt(extraField.getShort(i + 2))) {
+                if (extraField.getShort(i) == ZIP64_EXTRA_FIELD_ID && Short.toUnsignedInt(extraField.getShort(i + 2)) >= 8) {
+                    ByteBuffer field = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, size);
+                    writeFully(fileChannel, field, extraOffset + i + 4);
+                    return;
+                }
+            }
+            throw new Exception("The vault is corrupt!");
+        }
+    }
+
+    private static void writeHeader(ZipOutputStream zipOutputStream, byte[] header) throws Exception {
+        byte[] paddedHeader = Arrays.copyOf(header, header.length + HEADER_PADDING);
+        zipOutputStream.putNextEntry(getStoredZipParameters(HEADER_FILE_NAME, paddedHeader.length));
+        zipOutputStream.write(paddedHeader);
+        zipOutputStream.closeEntry();
+    }
+
+    /**
+     * Writes the header again with the root of the hash tree over the sealed chunks. The header
+     * was written with a placeholder root of the same length, so it always fits in place.
+     */
+    private static void writePayloadRoot(File containerFile, String password, EncryptionDetails details, List<byte[]> leaves) throws Exception {
+        details.setPayloadRoot(Base64.getEncoder().encodeToString(HashTree.getRoot(leaves)));
+        if (!rewriteHeader(containerFile, HeaderUtil.writeHeader(details, password))) {
+            throw new Exception("The vault header is corrupt!");
+        }
+    }
+
+    /**
+     * Writes the header over the padded header entry, which is the first entry of the vault, and
+     * updates its checksum in the local and central headers. Returns false if the header does not fit.
+     */
+    private static boolean rewriteHeader(File containerFile, byte[] header) throws Exception {
+        try (FileChannel fileChannel = FileChannel.open(containerFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long centralDirectoryOffset = getCentralDirectoryOffset(fileChannel);
+            ByteBuffer centralHeader = ByteBuffer.allocate(CENTRAL_FILE_HEADER_LENGTH + HEADER_FILE_NAME.length()).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(fileChannel, centralHeader, centralDirectoryOffset);
+            byte[] fileName = Arrays.copyOfRange(centralHeader.array(), CENTRAL_FILE_HEADER_LENGTH, centralHeader.limit());
+            if (centralHeader.getInt(0) != CENTRAL_FILE_HEADER_SIGNATURE || centralHeader.getInt(42) != 0
+                    || !Arrays.equals(fileName, HEADER_FILE_NAME.getBytes(StandardCharsets.UTF_8))) {
+                throw new Exception("The vault is corrupt!");
+            }
+            long entrySize = Integer.toUnsignedLong(centralHeader.getInt(20));
+            if (header.length > entrySize) return false;
+
+            byte[] paddedHeader = Arrays.copyOf(header, (int) entrySize);
+            CRC32 crc = new CRC32();
+            crc.update(paddedHeader);
+            ByteBuffer checksum = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, (int) crc.getValue());
+
+            ByteBuffer localHeader = ByteBuffer.allocate(LOCAL_FILE_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(fileChannel, localHeader, 0);
+            long dataOffset = getDataOffset(fileChannel, 0);
+            long checksumOffset = 14;
+            if ((localHeader.getShort(6) & 0x08) != 0) {
+                ByteBuffer dataDescriptor = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(fileChannel, dataDescriptor, dataOffset + entrySize);
+                checksumOffset = dataOffset + entrySize + (dataDescriptor.getInt(0) == DATA_DESCRIPTOR_SIGNATURE ? 4 : 0);
+            }
+            writeFully(fileChannel, ByteBuffer.wrap(paddedHeader), dataOffset);
+            writeFully(fileChannel, checksum.duplicate(), checksumOffset);
+            writeFully(fileChannel, checksum.duplicate(), centralDirectoryOffset + 16);
+            fileChannel.force(true);
+            return true;
+        }
+    }
+
+    private static long getCentralDirectoryOffset(FileChannel fileChannel) throws Exception {
+        long size = fileChannel.size();
+        int length = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_LENGTH + 0xFFFF);
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(fileChannel, buffer, size - length);
+        for (int i = length - END_OF_CENTRAL_DIRECTORY_LENGTH; i >= 0; i--) {
+            if (buffer.getInt(i) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) continue;
+            long offset = Integer.toUnsignedLong(buffer.getInt(i + 16));
+            if (offset != 0xFFFFFFFFL) return offset;
+
+            ByteBuffer locator = ByteBuffer.allocate(ZIP64_LOCATOR_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(fileChannel, locator, size - length + i - ZIP64_LOCATOR_LENGTH);
+            ByteBuffer record = ByteBuffer.allocate(ZIP64_END_OF_CENTRAL_DIRECTORY_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                readFully(fileChannel, record, locator.getLong(8));
+                if (record.getInt(0) == ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) return record.getLong(48);
+            }
+            break;
+        }
+        throw new Exception("The vault is corrupt!");
+    }
+
+    /**
+     * Returns the binary header, which is the first entry of the vault, or null if the vault has none.
+     * The header is usually read with a single positional read from the start of the vault.
+     * The header of an in-place vault is read from its trailer.
+     */
+    private static byte[] readHeader(File containerFile) throws Exception {
+        try (FileChannel fileChannel = FileChannel.open(containerFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(HEADER_READ_LENGTH, fileChannel.size())).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(fileChannel, buffer, 0);
+            byte[] fileName = HEADER_FILE_NAME.getBytes(StandardCharsets.UTF_8);
+            if (buffer.limit() < LOCAL_FILE_HEADER_LENGTH + fileName.length
+                    || buffer.getInt(0) != LOCAL_FILE_HEADER_SIGNATURE
+                    || Short.toUnsignedInt(buffer.getShort(26)) != fileName.length
+                    || !Arrays.equals(Arrays.copyOfRange(buffer.array(), LOCAL_FILE_HEADER_LENGTH, LOCAL_FILE_HEADER_LENGTH + fileName.length), fileName)) {
+                return InPlaceVault.readHeader(containerFile);
+            }
+            int offset = LOCAL_FILE_HEADER_LENGTH + fileName.length + Short.toUnsignedInt(buffer.getShort(28));
+            byte[] header = Arrays.copyOfRange(buffer.array(), Math.min(offset, buffer.limit()), buffer.limit());
+            int headerLength = HeaderUtil.getHeaderLength(header);
+            if (headerLength < 0) {
+                throw new Exception("The vault header is corrupt!");
+            }
+            if (headerLength > header.length) {
+                ByteBuffer remaining = ByteBuffer.allocate(headerLength);
+                readFully(fileChannel, remaining, offset);
+                return remaining.array();
+            }
+            return Arrays.copyOf(header, headerLength);
+        }
+    }
+
+    private static void readFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws Exception {
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position()) == -1) {
+                throw new Exception("The vault is truncated!");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws Exception {
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static long getDataOffset(FileChannel fileChannel, long offset) throws Exception {
+        ByteBuffer localHeader = ByteBuffer.allocate(LOCAL_FILE_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(fileChannel, localHeader, offset);
+        if (localHeader.getInt(0) != LOCAL_FILE_HEADER_SIGNATURE) {
+            throw new Exception("The vault is corrupt!");
+        }
+        int fileNameLength = Short.toUnsignedInt(localHeader.getShort(26));
+        int extraFieldLength = Short.toUnsignedInt(localHeader.getShort(28));
+        return offset + LOCAL_FILE_HEADER_LENGTH + fileNameLength + extraFieldLength;
+    }
+
+    private static InputStream getEntryInputStream(ZipFile zipFile, String fileNameInZip) throws Exception {
+        FileHeader fileHeader = zipFile.getFileHeader(fileNameInZip);
+        if (fileHeader == null) {
+            throw new Exception("The vault does not contain " + fileNameInZip + "!");
+        }
+        return zipFile.getInputStream(fileHeader);
+    }
+
+    private static ZipParameters getStoredZipParameters(String fileNameInZip, long entrySize) {
+        ZipParameters zipParameters = new ZipParameters();
+        zipParameters.setFileNameInZip(fileNameInZip);
+        zipParameters.setCompressionMethod(CompressionMethod.STORE);
+        zipParameters.setEntrySize(entrySize);
+        return zipParameters;
+    }
+
+    private interface StreamConsumer {
+
+        void accept(InputStream inputStream) throws Exception;
+
+    }
+
+    /**
+     * Reads what another thread writes into a pipe, and fails instead of ending when the other
+     * thread failed before closing the pipe.
+     */
+    private static class ProducerInputStream extends FilterInputStream {
+
+        private final AtomicReference<Exception> failure;
+
+        private ProducerInputStream(InputStream inputStream, AtomicReference<Exception> failure) {
+            super(inputStream);
+            this.failure = failure;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return checkEnd(super.read());
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return checkEnd(super.read(buffer, offset, length));
+        }
+
+        private int checkEnd(int result) throws IOException {
+            if (result == -1 && failure.get() != null) {
+                throw new IOException("The input failed before its end!", failure.get());
+            }
+            return result;
+        }
+
+    }
+
+}
@@ -0,0 +1,10 @@
+@echo off
+rem Starts Crypto File Safe with the class data sharing archive next to the jar, when there is one.
+rem Options for the JVM, such as -Dcrypto.* properties, are read from CRYPTO_JAVA_OPTS.
+set JAR=%~dp0${project.build.finalName}-jar-with-dependencies.jar
+set ARCHIVE=%~dp0${project.artifactId}.jsa
+if exist "%ARCHIVE%" (
+    java -XX:SharedArchiveFile="%ARCHIVE%" -Xshare:auto %CRYPTO_JAVA_OPTS% -jar "%JAR%" %*
+) else (
+    java %CRYPTO_JAVA_OPTS% -jar "%JAR%" %*
+)
@@ -0,0 +1,110 @@
+package no.odit.crypto.service;
+
+import no.odit.crypto.model.InPlaceJournal;
+import no.odit.crypto.type.JournalMode;
+import no.odit.crypto.util.AES;
+import no.odit.crypto.util.HeaderUtil;
+import no.odit.crypto.util.InPlaceVault;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InPlaceServiceTest {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int CONTENT_SIZE = 10 * CHUNK_SIZE + 123;
+    private static final byte[] HEADER = "header".getBytes(StandardCharsets.US_ASCII);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void deletesJournalOfEncryptionThatWasMovedToTheVault() throws Exception {
+        File contentFile = writeFile("content.bin", CONTENT_SIZE);
+        File containerFile = directory.resolve("content.vault").toFile();
+        InPlaceJournal journal = createJournal(JournalMode.ENCRYPTION, containerFile);
+        File journalFile = InPlaceVault.getJournalFile(contentFile);
+        InPlaceVault.writeJournal(journalFile, journal);
+        SecretKey secretKey = AES.generateKey(256);
+        InPlaceVault.transform(contentFile, journalFile, journal, secretKey, null);
+        InPlaceVault.finishVault(contentFile, journal, HEADER);
+        // Interrupted after the move, before the journal was deleted, then a new file with the same name
+        Files.move(contentFile.toPath(), containerFile.toPath());
+        writeFile("content.bin", CONTENT_SIZE);
+
+        assertNull(InPlaceService.getInterruptedMode(contentFile));
+        assertFalse(journalFile.exists());
+    }
+
+    @Test
+    void deletesJournalOfDecryptionThatWasMovedToTheContent() throws Exception {
+        File containerFile = writeFile("content.vault", CONTENT_SIZE + 1000);
+        File contentFile = writeFile("content.bin", CONTENT_SIZE);
+        File journalFile = InPlaceVault.getJournalFile(containerFile);
+        InPlaceVault.writeJournal(journalFile, createJournal(JournalMode.DECRYPTION, contentFile));
+
+        assertNull(InPlaceService.getInterruptedMode(containerFile));
+        assertFalse(journalFile.exists());
+    }
+
+    @Test
+    void refusesJournalThatDoesNotMatchTheFile() throws Exception {
+        File contentFile = writeFile("content.bin", CONTENT_SIZE / 2);
+        File journalFile = InPlaceVault.getJournalFile(contentFile);
+        InPlaceVault.writeJournal(journalFile, createJournal(JournalMode.ENCRYPTION, directory.resolve("content.vault").toFile()));
+
+        Exception exception = assertThrows(Exception.class, () -> InPlaceService.getInterruptedMode(contentFile));
+        assertTrue(exception.getMessage().startsWith("The journal " + journalFile.getName() + " does not match"));
+        assertTrue(journalFile.exists());
+        assertThrows(Exception.class, () -> InPlaceService.resumeFile(contentFile, "passphrase", false));
+    }
+
+    @Test
+    void keepsJournalOfInterruptedRun() throws Exception {
+        File contentFile = writeFile("content.bin", CONTENT_SIZE);
+        File journalFile = InPlaceVault.getJournalFile(contentFile);
+        InPlaceVault.writeJournal(journalFile, createJournal(JournalMode.ENCRYPTION, directory.resolve("content.vault").toFile()));
+        // Some of the tags were appended before the run was interrupted
+        Files.write(contentFile.toPath(), new byte[5 * 16], StandardOpenOption.APPEND);
+
+        assertEquals(JournalMode.ENCRYPTION, InPlaceService.getInterruptedMode(contentFile));
+        assertTrue(journalFile.exists());
+    }
+
+    private static InPlaceJournal createJournal(JournalMode mode, File targetFile) throws Exception {
+        return InPlaceJournal.builder()
+                .mode(mode)
+                .keyName("content")
+                .targetPath(targetFile.getPath())
+                .contentSize(CONTENT_SIZE)
+                .chunkSize(CHUNK_SIZE)
+                .chunkCount(InPlaceVault.getChunkCount(CONTENT_SIZE, CHUNK_SIZE))
+                .batchChunks(4)
+                .ivParameterSpec(AES.encodeIvParameterSpec(AES.generateIv()))
+                .sealedKey(HeaderUtil.seal(new byte[32], "password"))
+                .header(mode == JournalMode.ENCRYPTION ? HEADER : null)
+                .build();
+    }
+
+    private File writeFile(String name, int size) throws Exception {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        File file = directory.resolve(name).toFile();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+}
@@ -0,0 +1,90 @@
+package no.odit.crypto.util;
+
+import no.odit.crypto.type.CompressionCodec;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class CompressionUtilTest {
+
+    private static final int LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    @Test
+    void roundTripsBlockThatDeflatesToItsOwnLength() throws Exception {
+        byte[] block = findBlockThatDeflatesToItsOwnLength();
+        assertNotNull(block);
+
+        byte[] frame = CompressionUtil.compressBlock(CompressionCodec.DEFLATE, LEVEL, block);
+
+        assertArrayEquals(block, CompressionUtil.decompressBlock(CompressionCodec.DEFLATE, frame));
+    }
+
+    @Test
+    void roundTripsStreamOfBlocksThatDeflateToTheirOwnLength() throws Exception {
+        byte[] block = findBlockThatDeflatesToItsOwnLength();
+        assertNotNull(block);
+        int blockSize = CompressionUtil.BLOCK_SIZE;
+        CompressionUtil.BLOCK_SIZE = block.length;
+        try {
+            byte[] content = new byte[block.length * 3];
+            for (int i = 0; i < 3; i++) System.arraycopy(block, 0, content, i * block.length, block.length);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            CompressionUtil.compress(CompressionCodec.DEFLATE, LEVEL, new ByteArrayInputStream(content), compressed);
+            ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+            CompressionUtil.decompress(CompressionCodec.DEFLATE, new ByteArrayInputStream(compressed.toByteArray()), decompressed);
+
+            assertArrayEquals(content, decompressed.toByteArray());
+        } finally {
+            CompressionUtil.BLOCK_SIZE = blockSize;
+        }
+    }
+
+    @Test
+    void roundTripsCompressibleAndRandomBlocks() throws Exception {
+        byte[] random = new byte[4096];
+        new Random(42).nextBytes(random);
+        for (byte[] block : new byte[][]{new byte[4096], random, {1}}) {
+            byte[] frame = CompressionUtil.compressBlock(CompressionCodec.DEFLATE, LEVEL, block);
+            assertArrayEquals(block, CompressionUtil.decompressBlock(CompressionCodec.DEFLATE, frame));
+        }
+    }
+
+    /**
+     * Returns random bytes followed by zeros that deflate to exactly as many bytes as they are.
+     */
+    private static byte[] findBlockThatDeflatesToItsOwnLength() {
+        for (int seed = 0; seed < 1000; seed++) {
+            for (int zeros = 0; zeros < 64; zeros++) {
+                byte[] block = new byte[50 + zeros];
+                byte[] randomPart = new byte[50];
+                new Random(seed).nextBytes(randomPart);
+                System.arraycopy(randomPart, 0, block, 0, randomPart.length);
+                if (getDeflatedLength(block) == block.length) return block;
+            }
+        }
+        return null;
+    }
+
+    private static int getDeflatedLength(byte[] block) {
+        Deflater deflater = new Deflater(LEVEL);
+        try {
+            deflater.setInput(block);
+            deflater.finish();
+            byte[] buffer = new byte[block.length * 2 + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            return length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package no.odit.crypto.util;
+
+import no.odit.crypto.model.PuzzleDetails;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HeaderUtilTest {
+
+    private static final int MODULUS_LENGTH = 2048;
+    private static final int OLD_LIMIT = Short.MAX_VALUE;
+
+    private final Random random = new Random(42);
+
+    @Test
+    void opensEveryLayerOfPuzzlesLongerThanASignedShort() throws Exception {
+        List<SecretKey> keys = new ArrayList<>();
+        List<PuzzleDetails> puzzles = new ArrayList<>();
+        String lockedPuzzle = null;
+        // The last layer nests a locked puzzle that is longer than a signed short
+        while (puzzles.isEmpty() || Base64.getDecoder().decode(puzzles.get(puzzles.size() - 1).getLockedPuzzle() == null
+                ? "" : puzzles.get(puzzles.size() - 1).getLockedPuzzle()).length <= OLD_LIMIT) {
+            PuzzleDetails puzzle = createPuzzle(lockedPuzzle);
+            SecretKey key = AES.generateKey(256);
+            lockedPuzzle = HeaderUtil.sealPuzzle(puzzle, key);
+            puzzles.add(puzzle);
+            keys.add(key);
+        }
+
+        for (int layer = puzzles.size() - 1; layer >= 0; layer--) {
+            PuzzleDetails opened = HeaderUtil.openPuzzle(lockedPuzzle, keys.get(layer));
+            assertEquals(puzzles.get(layer).getN(), opened.getN());
+            assertEquals(puzzles.get(layer).getZ(), opened.getZ());
+            lockedPuzzle = opened.getLockedPuzzle();
+            assertEquals(puzzles.get(layer).getLockedPuzzle(), lockedPuzzle);
+        }
+        assertNull(lockedPuzzle);
+    }
+
+    @Test
+    void refusesToSealPuzzleThatDoesNotFitTheHeader() throws Exception {
+        String lockedPuzzle = null;
+        Exception exception = null;
+        for (int layer = 0; exception == null && layer < 1000; layer++) {
+            try {
+                lockedPuzzle = HeaderUtil.sealPuzzle(createPuzzle(lockedPuzzle), AES.generateKey(256));
+            } catch (Exception failure) {
+                exception = failure;
+            }
+        }
+
+        assertTrue(Base64.getDecoder().decode(lockedPuzzle).length > OLD_LIMIT);
+        assertTrue(exception.getMessage().endsWith("is too long for the vault header!"));
+        String lastPuzzle = lockedPuzzle;
+        assertThrows(Exception.class, () -> HeaderUtil.sealPuzzle(createPuzzle(lastPuzzle), AES.generateKey(256)));
+    }
+
+    private PuzzleDetails createPuzzle(String lockedPuzzle) {
+        return PuzzleDetails.builder()
+                .n(new BigInteger(MODULUS_LENGTH, random).setBit(MODULUS_LENGTH - 1))
+                .t(BigInteger.valueOf(1_000_000))
+                .z(new BigInteger(MODULUS_LENGTH, random))
+                .lockedPuzzle(lockedPuzzle)
+                .build();
+    }
+
+}
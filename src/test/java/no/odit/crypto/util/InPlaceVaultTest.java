@@ -0,0 +1,203 @@
+package no.odit.crypto.util;
+
+import no.odit.crypto.model.InPlaceJournal;
+import no.odit.crypto.type.JournalMode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class InPlaceVaultTest {
+
+    private static final String PASSWORD = "password";
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int BATCH_CHUNKS = 8;
+    private static final int CONTENT_SIZE = 40 * CHUNK_SIZE + 1234;
+    private static final byte[] HEADER = "header".getBytes(StandardCharsets.US_ASCII);
+
+    // The run is interrupted while writing the fourth batch, after 3.5 of its chunks were written
+    private static final int TORN_BATCH_START = 3 * BATCH_CHUNKS;
+    private static final int TORN_LENGTH = 3 * CHUNK_SIZE + CHUNK_SIZE / 2;
+
+    private final String iv = AES.encodeIvParameterSpec(AES.generateIv());
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void resumesInterruptedEncryption() throws Exception {
+        byte[] content = randomContent();
+        File file = writeFile("content.bin", content);
+        SecretKey secretKey = AES.generateKey(256);
+        InPlaceJournal journal = createJournal(JournalMode.ENCRYPTION, file, InPlaceVault.getChunkCount(CONTENT_SIZE, CHUNK_SIZE), secretKey);
+        File journalFile = InPlaceVault.getJournalFile(file);
+        InPlaceVault.writeJournal(journalFile, journal);
+
+        interrupt(file, journalFile, journal, secretKey, content);
+        InPlaceVault.transform(file, journalFile, journal, secretKey, null);
+        InPlaceVault.finishVault(file, journal, HEADER);
+        InPlaceVault.deleteJournal(journalFile);
+
+        assertArrayEquals(HEADER, InPlaceVault.readHeader(file));
+        assertEquals(CONTENT_SIZE, InPlaceVault.getContentSize(file));
+        assertArrayEquals(content, decrypt(file, secretKey));
+    }
+
+    @Test
+    void rollsBackInterruptedEncryption() throws Exception {
+        byte[] content = randomContent();
+        File file = writeFile("content.bin", content);
+        SecretKey secretKey = AES.generateKey(256);
+        InPlaceJournal journal = createJournal(JournalMode.ENCRYPTION, file, InPlaceVault.getChunkCount(CONTENT_SIZE, CHUNK_SIZE), secretKey);
+        File journalFile = InPlaceVault.getJournalFile(file);
+        InPlaceVault.writeJournal(journalFile, journal);
+
+        interrupt(file, journalFile, journal, secretKey, content);
+        long progress = InPlaceVault.recover(file, journalFile, journal, secretKey);
+        assertEquals(TORN_BATCH_START, progress);
+
+        InPlaceJournal rollBack = createJournal(JournalMode.DECRYPTION, file, progress, secretKey);
+        InPlaceVault.writeJournal(journalFile, rollBack);
+        InPlaceVault.transform(file, journalFile, rollBack, secretKey, null);
+        InPlaceVault.truncateVault(file, CONTENT_SIZE);
+        InPlaceVault.deleteJournal(journalFile);
+
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    void resumesInterruptedDecryption() throws Exception {
+        byte[] content = randomContent();
+        File file = writeFile("content.bin", content);
+        SecretKey secretKey = AES.generateKey(256);
+        encrypt(file, secretKey);
+        byte[] sealed = Files.readAllBytes(file.toPath());
+
+        long chunkCount = InPlaceVault.getChunkCount(CONTENT_SIZE, CHUNK_SIZE);
+        InPlaceJournal journal = createJournal(JournalMode.DECRYPTION, file, chunkCount, secretKey);
+        File journalFile = InPlaceVault.getJournalFile(file);
+        InPlaceVault.writeJournal(journalFile, journal);
+
+        interrupt(file, journalFile, journal, secretKey, sealed);
+        InPlaceVault.transform(file, journalFile, journal, secretKey, null);
+        InPlaceVault.truncateVault(file, CONTENT_SIZE);
+        InPlaceVault.deleteJournal(journalFile);
+
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    void hashesPayloadLikeTheSealedChunks() throws Exception {
+        File file = writeFile("content.bin", randomContent());
+        SecretKey secretKey = AES.generateKey(256);
+        List<byte[]> leaves = encrypt(file, secretKey);
+
+        assertArrayEquals(HashTree.getRoot(leaves), InPlaceVault.hashPayload(file, CONTENT_SIZE, CHUNK_SIZE));
+    }
+
+    @Test
+    void wipesJournalBeforeDeletingIt() throws Exception {
+        File file = writeFile("content.bin", randomContent());
+        SecretKey secretKey = AES.generateKey(256);
+        InPlaceJournal journal = createJournal(JournalMode.ENCRYPTION, file, InPlaceVault.getChunkCount(CONTENT_SIZE, CHUNK_SIZE), secretKey);
+        File journalFile = InPlaceVault.getJournalFile(file);
+        InPlaceVault.writeJournal(journalFile, journal);
+        // A second link keeps the data of the journal readable after it is deleted
+        Path link = Files.createLink(directory.resolve("journal.link"), journalFile.toPath());
+        byte[] before = Files.readAllBytes(link);
+        assertNotEquals(-1, indexOf(before, journal.getSealedKey()));
+
+        InPlaceVault.deleteJournal(journalFile);
+
+        assertFalse(journalFile.exists());
+        byte[] after = Files.readAllBytes(link);
+        assertEquals(before.length, after.length);
+        assertArrayEquals(new byte[after.length], after);
+    }
+
+    /**
+     * Runs the journal up to the end of the fourth batch, then puts back the old bytes after the
+     * first 3.5 chunks of that batch, as if the run was interrupted while the batch was written.
+     */
+    private void interrupt(File file, File journalFile, InPlaceJournal journal, SecretKey secretKey, byte[] oldBytes) throws Exception {
+        InPlaceJournal partial = createJournal(journal.getMode(), file, TORN_BATCH_START + BATCH_CHUNKS, secretKey);
+        InPlaceVault.transform(file, journalFile, partial, secretKey, null);
+        int tornStart = TORN_BATCH_START * CHUNK_SIZE + TORN_LENGTH;
+        int tornEnd = (TORN_BATCH_START + BATCH_CHUNKS) * CHUNK_SIZE;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(tornStart);
+            randomAccessFile.write(oldBytes, tornStart, tornEnd - tornStart);
+        }
+        assertFalse(Arrays.equals(oldBytes, 0, CONTENT_SIZE, Files.readAllBytes(file.toPath()), 0, CONTENT_SIZE));
+    }
+
+    private List<byte[]> encrypt(File file, SecretKey secretKey) throws Exception {
+        InPlaceJournal journal = createJournal(JournalMode.ENCRYPTION, file, InPlaceVault.getChunkCount(CONTENT_SIZE, CHUNK_SIZE), secretKey);
+        File journalFile = InPlaceVault.getJournalFile(file);
+        InPlaceVault.writeJournal(journalFile, journal);
+        List<byte[]> leaves = new ArrayList<>();
+        InPlaceVault.transform(file, journalFile, journal, secretKey, leaves);
+        InPlaceVault.finishVault(file, journal, HEADER);
+        InPlaceVault.deleteJournal(journalFile);
+        return leaves;
+    }
+
+    private byte[] decrypt(File file, SecretKey secretKey) throws Exception {
+        InPlaceJournal journal = createJournal(JournalMode.DECRYPTION, file, InPlaceVault.getChunkCount(CONTENT_SIZE, CHUNK_SIZE), secretKey);
+        File journalFile = InPlaceVault.getJournalFile(file);
+        InPlaceVault.writeJournal(journalFile, journal);
+        InPlaceVault.transform(file, journalFile, journal, secretKey, null);
+        InPlaceVault.truncateVault(file, CONTENT_SIZE);
+        InPlaceVault.deleteJournal(journalFile);
+        return Files.readAllBytes(file.toPath());
+    }
+
+    private InPlaceJournal createJournal(JournalMode mode, File file, long chunkCount, SecretKey secretKey) throws Exception {
+        return InPlaceJournal.builder()
+                .mode(mode)
+                .keyName("content")
+                .targetPath(file.getPath())
+                .contentSize(CONTENT_SIZE)
+                .chunkSize(CHUNK_SIZE)
+                .chunkCount(chunkCount)
+                .batchChunks(BATCH_CHUNKS)
+                .ivParameterSpec(iv)
+                .sealedKey(HeaderUtil.seal(AES.encodeSecretKey(secretKey).getBytes(StandardCharsets.UTF_8), PASSWORD))
+                .header(mode == JournalMode.ENCRYPTION ? HEADER : null)
+                .build();
+    }
+
+    private File writeFile(String name, byte[] content) throws Exception {
+        File file = directory.resolve(name).toFile();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] randomContent() {
+        byte[] content = new byte[CONTENT_SIZE];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            if (Arrays.equals(bytes, i, i + part.length, part, 0, part.length)) return i;
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,93 @@
+package no.odit.crypto.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MontgomerySquarerTest {
+
+    private static final long[] ITERATIONS = {0, 1, 2, 3, 64, 1000, 4097};
+
+    private final Random random = new Random(20240101);
+
+    @Test
+    void matchesBigIntegerOnPuzzleModuli() {
+        for (int i = 0; i < 3; i++) {
+            BigInteger p = BigInteger.probablePrime(1024, random);
+            BigInteger q = BigInteger.probablePrime(1024, random);
+            assertMatches(p.multiply(q), BigInteger.TWO);
+        }
+    }
+
+    @Test
+    void matchesBigIntegerOnRandomValues() {
+        for (int i = 0; i < 5; i++) {
+            BigInteger n = new BigInteger(2048, random).setBit(2047).setBit(0);
+            assertMatches(n, new BigInteger(2040, random).mod(n));
+        }
+    }
+
+    @Test
+    void matchesBigIntegerOnEdgeWidths() {
+        assertMatches(BigInteger.ONE.shiftLeft(1024).setBit(0), BigInteger.TWO);
+        assertMatches(new BigInteger(1025, random).setBit(1024).setBit(0), BigInteger.TWO);
+        assertMatches(new BigInteger(1056, random).setBit(1055).setBit(0), BigInteger.TWO);
+        assertMatches(new BigInteger(2047, random).setBit(2046).setBit(0), BigInteger.TWO);
+    }
+
+    @Test
+    void matchesBigIntegerOnAllOnesTopLimbs() {
+        BigInteger allOnes = BigInteger.ONE.shiftLeft(2048).subtract(BigInteger.ONE);
+        assertMatches(allOnes, BigInteger.TWO);
+        assertMatches(allOnes, allOnes.subtract(BigInteger.TWO));
+
+        BigInteger topLimbs = allOnes.xor(new BigInteger(1024, random)).setBit(0);
+        assertMatches(topLimbs, BigInteger.TWO);
+        assertMatches(topLimbs, topLimbs.subtract(BigInteger.ONE));
+
+        BigInteger shortAllOnes = BigInteger.ONE.shiftLeft(1025).subtract(BigInteger.ONE);
+        assertMatches(shortAllOnes, shortAllOnes.subtract(BigInteger.ONE));
+    }
+
+    @Test
+    void matchesBigIntegerAcrossReloads() {
+        BigInteger n = BigInteger.probablePrime(1024, random).multiply(BigInteger.probablePrime(1024, random));
+        Squarer expected = new BigIntegerSquarer(n);
+        Squarer actual = new MontgomerySquarer(n);
+        expected.load(BigInteger.TWO);
+        actual.load(BigInteger.TWO);
+        for (int i = 0; i < 10; i++) {
+            expected.square(97);
+            actual.square(97);
+            assertEquals(expected.get(), actual.get());
+            actual.load(actual.get());
+        }
+    }
+
+    @Test
+    void supportsOnlyOddModuliInRange() {
+        assertTrue(MontgomerySquarer.supports(BigInteger.ONE.shiftLeft(2048).subtract(BigInteger.ONE)));
+        assertTrue(MontgomerySquarer.supports(BigInteger.ONE.shiftLeft(1024).setBit(0)));
+        assertFalse(MontgomerySquarer.supports(BigInteger.ONE.shiftLeft(1023).setBit(0)));
+        assertFalse(MontgomerySquarer.supports(BigInteger.ONE.shiftLeft(2048).setBit(0)));
+        assertFalse(MontgomerySquarer.supports(BigInteger.ONE.shiftLeft(2047)));
+    }
+
+    private void assertMatches(BigInteger n, BigInteger start) {
+        for (long times : ITERATIONS) {
+            Squarer expected = new BigIntegerSquarer(n);
+            Squarer actual = new MontgomerySquarer(n);
+            expected.load(start);
+            actual.load(start);
+            expected.square(times);
+            actual.square(times);
+            assertEquals(expected.get(), actual.get(), "Mismatch for " + n.bitLength() + " bits after " + times + " squarings");
+        }
+    }
+
+}
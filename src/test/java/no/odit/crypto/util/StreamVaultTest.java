@@ -0,0 +1,130 @@
+package no.odit.crypto.util;
+
+import no.odit.crypto.model.EncryptionDetails;
+import no.odit.crypto.type.CompressionCodec;
+import no.odit.crypto.type.PayloadFormat;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class StreamVaultTest {
+
+    private static final String KEY_NAME = "stream-test";
+    private static final String PASSWORD = "password";
+    private static final int CONTENT_SIZE = 5_000_000;
+    private static final int FAILURE_OFFSET = 3 * 1024 * 1024;
+
+    @Test
+    void roundTripsCompressedContent() throws Exception {
+        byte[] content = randomContent();
+        SecretKey secretKey = AES.generateKey(256);
+        IvParameterSpec iv = AES.generateIv();
+        ByteArrayOutputStream vault = new ByteArrayOutputStream();
+
+        VaultUtil.createStreamVault(vault, KEY_NAME, PASSWORD, createDetails(iv, CompressionCodec.DEFLATE), secretKey, iv, new ByteArrayInputStream(content));
+
+        assertArrayEquals(content, decrypt(vault.toByteArray(), secretKey));
+    }
+
+    @Test
+    void failedInputIsNeverSealedAsComplete() throws Exception {
+        assertFailedInputIsNeverSealedAsComplete(CompressionCodec.DEFLATE);
+    }
+
+    @Test
+    void failedUncompressedInputIsNeverSealedAsComplete() throws Exception {
+        assertFailedInputIsNeverSealedAsComplete(null);
+    }
+
+    private void assertFailedInputIsNeverSealedAsComplete(CompressionCodec codec) throws Exception {
+        SecretKey secretKey = AES.generateKey(256);
+        IvParameterSpec iv = AES.generateIv();
+        ByteArrayOutputStream vault = new ByteArrayOutputStream();
+        InputStream failingStream = new FailingInputStream(randomContent(), FAILURE_OFFSET);
+
+        Exception exception = assertThrows(Exception.class, () ->
+                VaultUtil.createStreamVault(vault, KEY_NAME, PASSWORD, createDetails(iv, codec), secretKey, iv, failingStream));
+        assertEquals("Input failed!", getRootCause(exception).getMessage());
+
+        assertThrows(Exception.class, () -> decrypt(vault.toByteArray(), secretKey));
+    }
+
+    private static byte[] decrypt(byte[] vault, SecretKey secretKey) throws Exception {
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(vault));
+        assertEquals(KEY_NAME, VaultUtil.readStreamKeyName(inputStream));
+        EncryptionDetails details = VaultUtil.readStreamDetails(inputStream, PASSWORD);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        VaultUtil.decryptStreamPayload(inputStream, details, secretKey, content);
+        return content.toByteArray();
+    }
+
+    private static EncryptionDetails createDetails(IvParameterSpec iv, CompressionCodec codec) {
+        return EncryptionDetails.builder()
+                .fileName(KEY_NAME)
+                .date(LocalDate.now())
+                .time(LocalTime.now())
+                .ivParameterSpec(AES.encodeIvParameterSpec(iv))
+                .payloadFormat(PayloadFormat.CHUNKED_GCM)
+                .chunkSize(1024 * 1024)
+                .compressionCodec(codec)
+                .compressionLevel(codec == null ? null : 6)
+                .n(BigInteger.valueOf(77))
+                .t(BigInteger.ONE)
+                .z(BigInteger.TEN)
+                .build();
+    }
+
+    private static byte[] randomContent() {
+        byte[] content = new byte[CONTENT_SIZE];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+
+    private static Throwable getRootCause(Throwable throwable) {
+        while (throwable.getCause() != null) throwable = throwable.getCause();
+        return throwable;
+    }
+
+    private static class FailingInputStream extends InputStream {
+
+        private final ByteArrayInputStream content;
+        private final int failureOffset;
+        private int position;
+
+        private FailingInputStream(byte[] content, int failureOffset) {
+            this.content = new ByteArrayInputStream(content);
+            this.failureOffset = failureOffset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position >= failureOffset) throw new IOException("Input failed!");
+            position++;
+            return content.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (position >= failureOffset) throw new IOException("Input failed!");
+            int read = content.read(buffer, offset, Math.min(length, failureOffset - position));
+            position += read;
+            return read;
+        }
+
+    }
+
+}